@@ -0,0 +1,239 @@
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Measures parsing and execution of the bundled programs, and of generated programs of varying size,
+ * and prints the results as JSON (in the same shape as JMH's JSON output) so that they can be compared between runs.
+ *
+ * Each benchmark is run repeatedly for a fixed time per iteration, for some warmup iterations (which are discarded)
+ * and then some measurement iterations; the score is the mean time per operation over the measurement iterations.
+ * The parts of a run are measured separately:
+ *  - parse:   Parser.parse, i.e. decoding every line and linking the Program
+ *  - decode:  Parser.decode alone on each line
+ *  - compile: BytecodeCompiler.compile, which the bytecode engine's execute also includes
+ *  - execute: Interpreter.execute with no trace, on each engine
+ *  - trace:   Interpreter.execute with a full trace to a null writer (the trace's cost is trace - execute)
+ *
+ * Usage: [--warmup N] [--iterations N] [--time MS] [--filter REGEX] [--output FILE]
+ */
+final class Benchmarks
+{
+    private static final String[] BUNDLED = {"count.txt", "multiply.txt", "factorial.txt"};
+    private static final int[] DEPTHS = {1, 2, 3};
+    private static final int[] ITERATIONS = {10, 100};
+    private static final int[] VARIABLES = {1, 8};
+
+    /** Stops the JIT from removing benchmarked work whose result is otherwise unused */
+    static volatile Object blackhole;
+
+    private int warmupIterations = 3;
+    private int measurementIterations = 5;
+    private long iterationMillis = 500;
+    private Pattern filter = Pattern.compile(".*");
+    private final List<String> results = new ArrayList<>();
+
+    /** One operation to measure */
+    private interface Operation
+    {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Benchmarks benchmarks = new Benchmarks();
+        PrintStream out = System.out;
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "--warmup": benchmarks.warmupIterations = Integer.parseInt(args[++i]); break;
+                case "--iterations": benchmarks.measurementIterations = Integer.parseInt(args[++i]); break;
+                case "--time": benchmarks.iterationMillis = Long.parseLong(args[++i]); break;
+                case "--filter": benchmarks.filter = Pattern.compile(args[++i]); break;
+                case "--output": out = new PrintStream(args[++i], "UTF-8"); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        for (String file : BUNDLED)
+        {
+            String code = new String(Files.readAllBytes(Paths.get("resources", file)));
+            Map<String, Object> params = new LinkedHashMap<>();
+            params.put("program", file);
+            benchmarks.runAll(code, params);
+        }
+        for (int depth : DEPTHS)
+        {
+            for (int iterations : ITERATIONS)
+            {
+                for (int variables : VARIABLES)
+                {
+                    Map<String, Object> params = new LinkedHashMap<>();
+                    params.put("program", "generated");
+                    params.put("depth", depth);
+                    params.put("iterations", iterations);
+                    params.put("variables", variables);
+                    benchmarks.runAll(generate(depth, iterations, variables), params);
+                }
+            }
+        }
+
+        out.println("[");
+        out.println(String.join(",\n", benchmarks.results));
+        out.println("]");
+        out.flush();
+    }
+
+    /**
+     * Runs every benchmark on one program
+     * @param code The program's source code
+     * @param params Describes the program in the results
+     */
+    private void runAll(String code, Map<String, Object> params) throws Exception
+    {
+        Program program = Parser.parse(code);
+        String[] lines = code.split("\\r?\\n");
+
+        measure("parse", params, () -> blackhole = Parser.parse(code));
+        measure("decode", params, () -> {
+            for (int i = 0; i < lines.length; i++)
+                blackhole = Parser.decode(lines[i].toLowerCase(), i);
+        });
+        measure("compile", params, () -> blackhole = BytecodeCompiler.compile(program, false));
+        for (Engine engine : Engine.values())
+        {
+            Map<String, Object> engineParams = new LinkedHashMap<>(params);
+            engineParams.put("engine", engine.name());
+            measure("execute", engineParams, () -> {
+                Interpreter interpreter = new Interpreter(program, null);
+                interpreter.setEngine(engine);
+                interpreter.execute();
+                blackhole = interpreter.getRegisters();
+            });
+            measure("trace", engineParams, () -> {
+                Interpreter interpreter = new Interpreter(program, new BufferedTrace(Writer.nullWriter()));
+                interpreter.setEngine(engine);
+                interpreter.execute();
+                blackhole = interpreter.getRegisters();
+            });
+        }
+    }
+
+    /**
+     * Runs one benchmark and records its result, unless it is filtered out
+     * @param name The benchmark's name
+     * @param params The parameters it is run with
+     * @param operation The operation to time
+     */
+    private void measure(String name, Map<String, Object> params, Operation operation) throws Exception
+    {
+        String id = name + params;
+        if (!filter.matcher(id).find())
+            return;
+        System.err.println("# " + id);
+
+        for (int i = 0; i < warmupIterations; i++)
+            iteration(operation);
+        double[] scores = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++)
+        {
+            scores[i] = iteration(operation);
+            System.err.printf(Locale.ROOT, "  %.3f us/op%n", scores[i]);
+        }
+        results.add(toJson(name, params, scores));
+    }
+
+    /**
+     * Runs the operation repeatedly for iterationMillis
+     * @return The mean time per operation in microseconds
+     */
+    private double iteration(Operation operation) throws Exception
+    {
+        long end = System.nanoTime() + iterationMillis * 1_000_000;
+        long operations = 0;
+        long start = System.nanoTime();
+        long now;
+        do
+        {
+            operation.run();
+            operations++;
+            now = System.nanoTime();
+        }
+        while (now < end);
+        return (now - start) / 1e3 / operations;
+    }
+
+    private static String toJson(String name, Map<String, Object> params, double[] scores)
+    {
+        double mean = 0;
+        for (double score : scores)
+            mean += score;
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores)
+            variance += (score - mean) * (score - mean);
+        double error = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : Double.NaN;
+
+        StringBuilder json = new StringBuilder();
+        json.append("  {\"benchmark\": \"").append(name).append("\", \"mode\": \"avgt\", \"params\": {");
+        String separator = "";
+        for (Map.Entry<String, Object> param : params.entrySet())
+        {
+            json.append(separator).append('"').append(param.getKey()).append("\": \"").append(param.getValue()).append('"');
+            separator = ", ";
+        }
+        json.append("}, \"primaryMetric\": {\"score\": ").append(number(mean))
+            .append(", \"scoreError\": ").append(number(error))
+            .append(", \"scoreUnit\": \"us/op\", \"rawData\": [[");
+        for (int i = 0; i < scores.length; i++)
+            json.append(i > 0 ? ", " : "").append(number(scores[i]));
+        return json.append("]]}}").toString();
+    }
+
+    private static String number(double value)
+    {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    /**
+     * Generates a program of nested counting loops
+     * @param depth How many loops are nested
+     * @param iterations How many times each loop runs
+     * @param variables How many variables the innermost loop increments
+     * @return The program's source code
+     */
+    static String generate(int depth, int iterations, int variables)
+    {
+        StringBuilder code = new StringBuilder();
+        code.append("# Generated: depth ").append(depth).append(", ").append(iterations)
+            .append(" iterations, ").append(variables).append(" variables\n");
+        for (int d = 0; d < depth; d++)
+        {
+            indent(code, d).append("c").append(d).append(" = ").append(iterations).append(";\n");
+            indent(code, d).append("while c").append(d).append(" not 0 do;\n");
+        }
+        for (int v = 0; v < variables; v++)
+            indent(code, depth).append("incr v").append(v).append(";\n");
+        for (int d = depth - 1; d >= 0; d--)
+        {
+            indent(code, d + 1).append("decr c").append(d).append(";\n");
+            indent(code, d).append("end;\n");
+        }
+        return code.toString();
+    }
+
+    private static StringBuilder indent(StringBuilder code, int depth)
+    {
+        for (int i = 0; i < depth; i++)
+            code.append("    ");
+        return code;
+    }
+}
@@ -0,0 +1,448 @@
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks the engines and optimisations against each other on random programs, and the CompilationModel against
+ * the Parser on random edits, and prints the first program (or edit) on which they disagree with what each did.
+ *
+ * The programs use a few variables in nested loops, with gotos to any line, division (often by 0) and
+ * multiplication. A quarter of them define procedures first, which call each other (and themselves) and return
+ * early, and are called from the rest of the program; the compiled engines leave these to the interpreter, so
+ * they mostly check the optimisations and tracing around calls. Some start a variable near the top of a long,
+ * so that sums overflow (and, widening, promote).
+ * Multiplication is left out of those, and the products of wide values are limited in size (as by the
+ * ExecutionServer), as squaring in a loop would otherwise grow a value without bound. Each program is run with and
+ * without widening:
+ *  - on every engine, each of which must end the same way after the same number of steps with the same
+ *    variables, and for a third of the programs write the same trace. A program that ends within the step limit
+ *    is run on each again without counting steps, as the compiled engines then run without calling back
+ *  - with the optimisations on, which must end the same way with the same variables on every engine, if it
+ *    ended within the step limit without them (the number of steps is different), and not by a product being too
+ *    large (which the loop summaries do not check)
+ *
+ * Program N (and editing session N) is made from the seed N, so one that fails can be checked again on its own
+ * with --seed N --programs 1.
+ *
+ * Usage: [--programs N] [--edits N] [--seed N] [--max-steps N]
+ */
+final class DifferentialFuzzer
+{
+    private static final int EDITS_PER_SESSION = 30;
+
+    private static final String USAGE = String.join("\n",
+            "Usage: [options]",
+            "  --programs N         random programs to run on every engine, with and without the optimisations",
+            "                       (default: 2000)",
+            "  --edits N            random editing sessions of " + EDITS_PER_SESSION
+                    + " edits each to compare the incremental compiler",
+            "                       with the parser on (default: 2000)",
+            "  --seed N             the seed of the first program and editing session (default: 1)",
+            "  --max-steps N        stop each run after N steps (default: 5000)");
+
+    private static final String[] VARIABLES = {"a", "b", "c", "d"};
+    private static final String[] PARAMETERS = {"x", "y", "z"};
+    private static final String GOTO_TARGET = "<target>";   // Replaced with a line number once all are generated
+    private static final long LARGE_VALUE = 1L << 62;
+    private static final int MAX_VALUE_BITS = 4096;
+    // What the editing sessions type, including lines that do not parse and that leave loops unmatched
+    private static final String[] EDIT_LINES = {
+            "while x not 0 do;", "end;", "incr x;", "decr y;", "# comment", "", "bogus", "clear while;",
+            "ifz x goto 3;", "x = 5;", "Y = x + z;", "proc p with x and y do;", "call p with x and z;",
+            "call p with x;", "return;"};
+
+    private int programs = 2000;
+    private int sessions = 2000;
+    private long seed = 1;
+    private long maxSteps = 5000;
+    private Random random;
+    private int[] parameterCounts;      // Of each procedure of the program being generated
+    private String[] names;             // The variables the statements being generated use
+
+    private DifferentialFuzzer() {}
+
+    /**
+     * Runs the checks given on the command line, and exits with 0 if nothing disagreed, 1 if anything did, or 2 if
+     * the arguments are invalid
+     */
+    public static void main(String[] args)
+    {
+        System.exit(run(args));
+    }
+
+    private static int run(String[] args)
+    {
+        DifferentialFuzzer fuzzer = new DifferentialFuzzer();
+        try
+        {
+            fuzzer.parseArguments(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        int ended = 0;
+        for (int i = 0; i < fuzzer.programs; i++)
+        {
+            fuzzer.random = new Random(fuzzer.seed + i);
+            String source = fuzzer.generate();
+            String difference;
+            try
+            {
+                Program program = Parser.parse(source);
+                difference = fuzzer.check(program, false);
+                if (difference == null)
+                    difference = fuzzer.check(program, true);
+                if (difference == null && fuzzer.ends(program))
+                    ended++;
+            }
+            catch (InterpreterException e)
+            {
+                difference = "it does not parse: " + e.getMessage();
+            }
+            if (difference != null)
+            {
+                System.out.println("Program " + (fuzzer.seed + i) + ":\n" + source + difference);
+                return 1;
+            }
+        }
+        for (int i = 0; i < fuzzer.sessions; i++)
+        {
+            fuzzer.random = new Random(fuzzer.seed + i);
+            String difference = fuzzer.checkEdits();
+            if (difference != null)
+            {
+                System.out.println("Editing session " + (fuzzer.seed + i) + ": " + difference);
+                return 1;
+            }
+        }
+        System.out.printf("%d programs (%d ending within %d steps) and %d edits: no differences%n",
+                          fuzzer.programs, ended, fuzzer.maxSteps, fuzzer.sessions * EDITS_PER_SESSION);
+        return 0;
+    }
+
+    private void parseArguments(String[] args)
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            switch (arg)
+            {
+                case "--programs": programs = Integer.parseInt(value(args, ++i, arg)); break;
+                case "--edits": sessions = Integer.parseInt(value(args, ++i, arg)); break;
+                case "--seed": seed = Long.parseLong(value(args, ++i, arg)); break;
+                case "--max-steps": maxSteps = Long.parseLong(value(args, ++i, arg)); break;
+                default: throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (programs < 0 || sessions < 0 || maxSteps < 1)
+            throw new IllegalArgumentException("--programs and --edits cannot be negative, and --max-steps must be "
+                                               + "at least 1");
+    }
+
+    private static String value(String[] args, int i, String option)
+    {
+        if (i >= args.length)
+            throw new IllegalArgumentException(option + " needs a value");
+        return args[i];
+    }
+
+    /**
+     * Makes a random program
+     * @return Its source code
+     */
+    private String generate()
+    {
+        boolean large = random.nextInt(4) == 0;
+        List<String> lines = new ArrayList<>();
+        parameterCounts = new int[random.nextInt(4) == 0 ? 1 + random.nextInt(2) : 0];
+        for (int i = 0; i < parameterCounts.length; i++)
+            parameterCounts[i] = 1 + random.nextInt(PARAMETERS.length);
+        for (int i = 0; i < parameterCounts.length; i++)
+        {
+            List<String> parameters = Arrays.asList(PARAMETERS).subList(0, parameterCounts[i]);
+            lines.add("proc p" + i + " with " + String.join(" and ", parameters) + " do;");
+            // Its parameters, and a variable of its own
+            names = parameters.toArray(new String[parameters.size() + 1]);
+            names[parameters.size()] = VARIABLES[0];
+            statements(lines, 1, 1 + random.nextInt(5), !large, true);
+            lines.add("end;");
+        }
+
+        // The rest of the program is after the procedures, and its gotos cannot jump into them
+        int start = lines.size();
+        names = VARIABLES;
+        statements(lines, 0, 3 + random.nextInt(12), !large, false);
+        if (large)
+            lines.add(start + random.nextInt(lines.size() - start + 1), variable() + " = " + LARGE_VALUE + ";");
+        StringBuilder source = new StringBuilder();
+        for (String line : lines)
+        {
+            String target = Integer.toString(start + 1 + random.nextInt(lines.size() - start + 1));
+            source.append(line.replace(GOTO_TARGET, target)).append('\n');
+        }
+        return source.toString();
+    }
+
+    /**
+     * Adds random statements, and loops of them
+     * @param depth How many loops they are inside
+     * @param count How many to add
+     * @param multiply True to include multiplication
+     * @param inProcedure True if they are in a procedure, so may return (but do not use gotos)
+     */
+    private void statements(List<String> lines, int depth, int count, boolean multiply, boolean inProcedure)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            switch (random.nextInt(18))
+            {
+                case 0: lines.add("clear " + variable() + ";"); break;
+                case 1: lines.add("incr " + variable() + ";"); break;
+                case 2: lines.add("decr " + variable() + ";"); break;
+                case 3: lines.add("del " + variable() + ";"); break;
+                case 4: lines.add("swap " + variable() + " and " + variable() + ";"); break;
+                case 5: lines.add("copy " + variable() + " to " + variable() + ";"); break;
+                case 6: lines.add(variable() + " = " + random.nextInt(4) + ";"); break;
+                case 7: lines.add(variable() + " = " + variable() + " + " + variable() + ";"); break;
+                case 8: lines.add(variable() + " = " + variable() + " - " + variable() + ";"); break;
+                case 9: lines.add(variable() + " = " + variable() + " / " + variable() + ";"); break;
+                case 10:
+                    if (multiply)
+                        lines.add(variable() + " = " + variable() + " * " + variable() + ";");
+                    break;
+                case 11:
+                case 12:
+                    if (inProcedure)
+                        lines.add("return;");
+                    else
+                        lines.add((random.nextBoolean() ? "ifp " : "ifz ") + variable() + " goto " + GOTO_TARGET + ";");
+                    break;
+                case 13:
+                case 14:
+                    if (parameterCounts.length > 0)
+                    {
+                        int procedure = random.nextInt(parameterCounts.length);
+                        String[] arguments = new String[parameterCounts[procedure]];
+                        for (int j = 0; j < arguments.length; j++)
+                            arguments[j] = variable();
+                        lines.add("call p" + procedure + " with " + String.join(" and ", arguments) + ";");
+                    }
+                    break;
+                default:
+                    if (depth < 3)
+                    {
+                        // Usually counts down, so that most programs end
+                        String counter = variable();
+                        lines.add("while " + counter + " not 0 do;");
+                        statements(lines, depth + 1, 1 + random.nextInt(4), multiply, inProcedure);
+                        lines.add("decr " + counter + ";");
+                        lines.add("end;");
+                    }
+            }
+        }
+    }
+
+    private String variable()
+    {
+        return names[random.nextInt(names.length)];
+    }
+
+    /**
+     * Runs a program on every engine, and with the optimisations on if it ends within the step limit
+     * @param wide True to run it with widening
+     * @return What was different, or null if nothing was
+     */
+    private String check(Program program, boolean wide)
+    {
+        boolean traced = random.nextInt(3) == 0;
+        Outcome expected = run(program, Engine.INTERPRETER, wide, false, traced, true);
+        for (Engine engine : Engine.values())
+        {
+            if (engine == Engine.INTERPRETER)
+                continue;
+            Outcome outcome = run(program, engine, wide, false, traced, true);
+            String difference = expected.compare(outcome, true);
+            if (difference != null)
+                return describe(engine, wide, false) + " differs from the interpreter: " + difference;
+        }
+        if (expected.status.startsWith("stopped") || expected.status.endsWith(MAX_VALUE_BITS + " bits"))
+            return null;
+
+        for (Engine engine : Engine.values())
+        {
+            Outcome outcome = run(program, engine, wide, false, false, false);
+            String difference = expected.compare(outcome, false);
+            if (difference != null)
+                return describe(engine, wide, false) + " differs without counting steps: " + difference;
+
+            outcome = run(program, engine, wide, true, false, true);
+            difference = expected.compare(outcome, false);
+            if (difference != null)
+                return describe(engine, wide, true) + " differs from running unoptimised: " + difference;
+        }
+        return null;
+    }
+
+    private static String describe(Engine engine, boolean wide, boolean optimise)
+    {
+        return "The " + engine.name().toLowerCase(Locale.ROOT) + " engine" + (wide ? ", widening," : "")
+               + (optimise ? " with the optimisations on" : "");
+    }
+
+    /** @return True if the program ends (completes, or fails) within the step limit */
+    private boolean ends(Program program)
+    {
+        return !run(program, Engine.INTERPRETER, false, false, false, true).status.startsWith("stopped");
+    }
+
+    /**
+     * Runs a program
+     * @param traced True to trace every step
+     * @param counted True to count steps and stop at the step limit (doubled if optimised, as the assignments
+     *                left by the PartialEvaluator are steps too)
+     * @return How it ended
+     */
+    private Outcome run(Program program, Engine engine, boolean wide, boolean optimise, boolean traced,
+                        boolean counted)
+    {
+        StringWriter trace = new StringWriter();
+        Interpreter interpreter = new Interpreter(program, traced ? new BufferedTrace(TraceMode.FULL, 1, trace,
+                                                                                      program) : null);
+        interpreter.setEngine(engine);
+        RegisterFile registers = new RegisterFile(program.getVariableNames(), wide);
+        registers.limitBits(MAX_VALUE_BITS);
+        interpreter.startAt(0, registers);
+        interpreter.setOptimiseLoops(optimise);
+        if (counted)
+        {
+            interpreter.setCountSteps(true);
+            interpreter.setStepLimit(optimise ? 2 * maxSteps : maxSteps);
+        }
+        String status = "ok";
+        try
+        {
+            interpreter.execute();
+        }
+        catch (LimitExceededException e)
+        {
+            status = "stopped: " + e.getMessage();
+        }
+        catch (InterpreterException e)
+        {
+            status = "error: " + e.getMessage();
+        }
+        catch (ArithmeticException e)
+        {
+            // Once the JIT has compiled a division by 0 it may throw an ArithmeticException without a message
+            status = "error: " + (e.getMessage() != null ? e.getMessage() : "/ by zero");
+        }
+        StringBuilder variables = new StringBuilder();
+        BufferedTrace.appendVariables(variables, interpreter.getRegisters());
+        return new Outcome(status, interpreter.getSteps(), variables.toString().trim(), trace.toString());
+    }
+
+    /**
+     * How a run ended
+     */
+    private static final class Outcome
+    {
+        final String status;
+        final long steps;
+        final String variables;
+        final String trace;
+
+        Outcome(String status, long steps, String variables, String trace)
+        {
+            this.status = status;
+            this.steps = steps;
+            this.variables = variables;
+            this.trace = trace;
+        }
+
+        /**
+         * @param other How another run of the same program ended
+         * @param exactly True to compare the steps and the trace as well
+         * @return What was different, or null if nothing was
+         */
+        String compare(Outcome other, boolean exactly)
+        {
+            if (!other.status.equals(status))
+                return "it ended with " + other.status + " rather than " + status;
+            if (!other.variables.equals(variables))
+                return "it ended with " + other.variables + " rather than " + variables;
+            if (exactly && other.steps != steps)
+                return "it ran " + other.steps + " steps rather than " + steps;
+            if (exactly && !other.trace.equals(trace))
+                return "its trace was\n" + other.trace + "rather than\n" + trace;
+            return null;
+        }
+    }
+
+    /**
+     * Makes random edits to a document, and after each compares the program the CompilationModel has compiled
+     * incrementally with the one the Parser makes from the whole document
+     * @return What was different, or null if nothing was
+     */
+    private String checkEdits()
+    {
+        List<String> document = new ArrayList<>(List.of(""));
+        CompilationModel model = new CompilationModel("");
+        for (int edit = 0; edit < EDITS_PER_SESSION; edit++)
+        {
+            int from = random.nextInt(document.size());
+            int removed = 1 + random.nextInt(Math.min(3, document.size() - from));
+            String[] added = new String[1 + random.nextInt(3)];
+            for (int i = 0; i < added.length; i++)
+                added[i] = EDIT_LINES[random.nextInt(EDIT_LINES.length)];
+            document.subList(from, from + removed).clear();
+            document.addAll(from, Arrays.asList(added));
+            model.replaceLines(from, removed, added);
+
+            String source = String.join("\n", document);
+            String expected;
+            String actual;
+            try
+            {
+                expected = listing(Parser.parse(source));
+            }
+            catch (InterpreterException e)
+            {
+                expected = "a syntax error";
+            }
+            try
+            {
+                actual = listing(model.getProgram());
+            }
+            catch (InterpreterException e)
+            {
+                actual = "a syntax error";
+            }
+            if (!actual.equals(expected))
+                return "after an edit to\n" + source + "\nthe incremental compiler gives " + actual
+                       + "\nrather than " + expected;
+        }
+        return null;
+    }
+
+    /** @return Each instruction of a program, with its line and where it jumps to */
+    private static String listing(Program program)
+    {
+        StringBuilder listing = new StringBuilder();
+        for (int pc = 0; pc < program.size(); pc++)
+        {
+            Instruction instruction = program.get(pc);
+            listing.append(instruction.opcode).append(" on line ").append(instruction.line + 1);
+            if (instruction.target != Instruction.NONE)
+                listing.append(" to ").append(instruction.target);
+            listing.append("; ");
+        }
+        return listing.toString();
+    }
+}
@@ -0,0 +1,190 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * An immutable expression of the form c + a1*v1 + a2*v2 + ..., over the values of variables (by slot)
+ * at some fixed point in a program, used to describe the effect of a loop symbolically
+ */
+final class AffineExpression
+{
+    private static final int[] NO_SLOTS = {};
+    private static final long[] NO_COEFFICIENTS = {};
+
+    private final long constant;
+    private final int[] slots;          // Sorted, and with no zero coefficients
+    private final long[] coefficients;
+
+    private AffineExpression(long constant, int[] slots, long[] coefficients)
+    {
+        this.constant = constant;
+        this.slots = slots;
+        this.coefficients = coefficients;
+    }
+
+    /** @return The expression c */
+    static AffineExpression constant(long c)
+    {
+        return new AffineExpression(c, NO_SLOTS, NO_COEFFICIENTS);
+    }
+
+    /** @return The expression 1*slot */
+    static AffineExpression variable(int slot)
+    {
+        return new AffineExpression(0, new int[] {slot}, new long[] {1});
+    }
+
+    /** @return True if the expression does not depend on any variable */
+    boolean isConstant() { return slots.length == 0; }
+
+    /** @return The constant term */
+    long getConstant() { return constant; }
+
+    /** @return The slots the expression depends on */
+    int[] getSlots() { return slots.clone(); }
+
+    /**
+     * @throws ArithmeticException If a coefficient overflows
+     */
+    AffineExpression plus(AffineExpression other)
+    {
+        return combine(other, 1);
+    }
+
+    /**
+     * @throws ArithmeticException If a coefficient overflows
+     */
+    AffineExpression minus(AffineExpression other)
+    {
+        return combine(other, -1);
+    }
+
+    /**
+     * @throws ArithmeticException If a coefficient overflows
+     */
+    AffineExpression times(long factor)
+    {
+        if (factor == 0)
+            return constant(0);
+        long[] scaled = new long[coefficients.length];
+        for (int i = 0; i < scaled.length; i++)
+            scaled[i] = Math.multiplyExact(coefficients[i], factor);
+        return new AffineExpression(Math.multiplyExact(constant, factor), slots, scaled);
+    }
+
+    /**
+     * Replaces each variable with the expression for its value in the given state
+     * @param state The expression for each slot's value, or null where a slot's value is itself
+     * @return The composed expression
+     * @throws ArithmeticException If a coefficient overflows
+     */
+    AffineExpression substitute(AffineExpression[] state)
+    {
+        AffineExpression result = constant(constant);
+        for (int i = 0; i < slots.length; i++)
+        {
+            AffineExpression value = state[slots[i]] != null ? state[slots[i]] : variable(slots[i]);
+            result = result.plus(value.times(coefficients[i]));
+        }
+        return result;
+    }
+
+    /**
+     * @param registers The variable values to evaluate with
+     * @return The value of the expression
+     * @throws ArithmeticException If the value overflows
+     */
+    long evaluate(RegisterFile registers)
+    {
+        long value = constant;
+        for (int i = 0; i < slots.length; i++)
+            value = Math.addExact(value, Math.multiplyExact(coefficients[i], registers.get(slots[i])));
+        return value;
+    }
+
+    /**
+     * @param registers The variable values to evaluate with
+     * @return The exact value of the expression
+     */
+    BigInteger evaluateBig(RegisterFile registers)
+    {
+        BigInteger value = BigInteger.valueOf(constant);
+        for (int i = 0; i < slots.length; i++)
+            value = value.add(BigInteger.valueOf(coefficients[i]).multiply(registers.getBig(slots[i])));
+        return value;
+    }
+
+    private AffineExpression combine(AffineExpression other, long sign)
+    {
+        int[] mergedSlots = new int[slots.length + other.slots.length];
+        long[] mergedCoefficients = new long[mergedSlots.length];
+        int i = 0, j = 0, n = 0;
+        while (i < slots.length || j < other.slots.length)
+        {
+            int slot;
+            long coefficient;
+            if (j >= other.slots.length || (i < slots.length && slots[i] < other.slots[j]))
+            {
+                slot = slots[i];
+                coefficient = coefficients[i++];
+            }
+            else if (i >= slots.length || other.slots[j] < slots[i])
+            {
+                slot = other.slots[j];
+                coefficient = Math.multiplyExact(sign, other.coefficients[j++]);
+            }
+            else
+            {
+                slot = slots[i];
+                coefficient = Math.addExact(coefficients[i++], Math.multiplyExact(sign, other.coefficients[j++]));
+            }
+            if (coefficient != 0)
+            {
+                mergedSlots[n] = slot;
+                mergedCoefficients[n++] = coefficient;
+            }
+        }
+        long mergedConstant = Math.addExact(constant, Math.multiplyExact(sign, other.constant));
+        return new AffineExpression(mergedConstant, Arrays.copyOf(mergedSlots, n), Arrays.copyOf(mergedCoefficients, n));
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof AffineExpression))
+            return false;
+        AffineExpression other = (AffineExpression) o;
+        return constant == other.constant && Arrays.equals(slots, other.slots)
+                && Arrays.equals(coefficients, other.coefficients);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * (31 * Long.hashCode(constant) + Arrays.hashCode(slots)) + Arrays.hashCode(coefficients);
+    }
+
+    /**
+     * @param names The variable names, indexed by slot
+     * @return The expression in Bare Bones style, e.g. "2 * y + z + 1"
+     */
+    String toString(String[] names)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < slots.length; i++)
+        {
+            long coefficient = coefficients[i];
+            if (builder.length() > 0)
+                builder.append(coefficient < 0 ? " - " : " + ");
+            else if (coefficient < 0)
+                builder.append("-");
+            if (Math.abs(coefficient) != 1)
+                builder.append(Math.abs(coefficient)).append(" * ");
+            builder.append(names[slots[i]]);
+        }
+        if (builder.length() == 0)
+            builder.append(constant);
+        else if (constant != 0)
+            builder.append(constant < 0 ? " - " : " + ").append(Math.abs(constant));
+        return builder.toString();
+    }
+}
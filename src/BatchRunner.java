@@ -0,0 +1,474 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Runs Bare Bones programs from the command line without the GUI, several at once on a pool of worker threads,
+ * and prints the final variables, step count and run time of each one in the order they were given.
+ *
+ * Usage: [options] file-or-directory...   (a directory means every .txt file in it)
+ *    or: --replay trace-file              (prints the full trace rebuilt from a delta trace)
+ *    or: --serve [options]                (runs programs sent over HTTP, see ExecutionServer)
+ *    or: --load [options] program-file    (measures a server, see LoadGenerator)
+ */
+final class BatchRunner
+{
+    private static final int PROFILE_LINES = 10;
+    private static final long DEFAULT_CACHE_MEGABYTES = 64;    // With --cache-dir but not --cache
+
+    private static final String USAGE = String.join("\n",
+            "Usage: [options] file-or-directory...",
+            "   or: --replay trace-file   print the full trace rebuilt from a delta trace",
+            "   or: --serve [options]     run programs sent over HTTP to localhost (--serve --help for options)",
+            "   or: --load [options] program-file",
+            "                             measure the throughput and latency of a server (--load --help)",
+            "  --threads N          worker threads (default: number of cores)",
+            "  --timeout MS         stop each program after MS milliseconds",
+            "  --max-steps N        stop each program after N steps",
+            "  --engine NAME        interpreter (default), bytecode or nodes",
+            "  --compare-engines    run each program again on every other engine, and fail it if any ends",
+            "                       differently, or with different variables or steps (use --max-steps",
+            "                       rather than --timeout, which stops each engine at a different point)",
+            "  --optimise           summarise counting loops",
+            "  --wide               promote values that overflow a long instead of wrapping",
+            "  --profile            list each program's slowest lines (runs on the interpreter)",
+            "  --trace MODE[:N]     write each program's trace to <program>.trace:",
+            "                       full, every_nth:N, last_k:K, final_only or delta:N (only what each",
+            "                       step changed, and every variable every N steps, by default "
+                    + BufferedTrace.DEFAULT_SNAPSHOT_INTERVAL + ")",
+            "  --trace-dir DIR      the directory to write traces to (default: current directory)",
+            "  --checkpoint-every N save each program's state to <program>.ckpt every N steps",
+            "  --checkpoint-seconds T",
+            "                       save each program's state every T seconds",
+            "  --checkpoint-dir DIR the directory to save checkpoints in (default: current directory)",
+            "  --resume             carry on from each program's checkpoint, if it has one",
+            "  --sweep NAME=FROM..TO",
+            "                       run each program once for every value of NAME from FROM to TO, in place",
+            "                       of the value the program's opening lines set it to (repeat for every",
+            "                       combination of several variables; --profile, --trace and checkpoints",
+            "                       do not apply)",
+            "  --cache MB           remember up to MB megabytes of results, and reuse them for programs that",
+            "                       run again from the same variables (traced, profiled and checkpointed runs",
+            "                       are not cached)",
+            "  --cache-dir DIR      keep the results in DIR as well, so they are reused after a restart");
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long timeoutMillis = 0;
+    private long maxSteps = Long.MAX_VALUE;
+    private Engine engine = Engine.INTERPRETER;
+    private boolean compareEngines = false;
+    private boolean optimise = false;
+    private boolean wide = false;
+    private boolean profile = false;
+    private TraceMode traceMode = null;
+    private int traceInterval = 1;
+    private Path traceDir = Paths.get(".");
+    private long checkpointSteps = 0;
+    private long checkpointMillis = 0;
+    private Path checkpointDir = Paths.get(".");
+    private boolean resume = false;
+    private final Map<String, long[]> sweeps = new LinkedHashMap<>();   // {from, to} for each variable
+    private long cacheMegabytes = 0;
+    private Path cacheDir = null;
+    private ResultCache cache = null;
+    private final List<Path> programs = new ArrayList<>();
+
+    private BatchRunner() {}
+
+    /**
+     * Runs the programs given on the command line
+     * @param args The command line arguments
+     * @return The exit status: 0 if every program completed, 1 if any failed, 2 if the arguments are invalid
+     */
+    static int run(String[] args)
+    {
+        if (args.length > 0 && args[0].equals("--replay"))
+            return TraceReplayer.run(Arrays.copyOfRange(args, 1, args.length));
+        if (args.length > 0 && args[0].equals("--serve"))
+            return ExecutionServer.run(Arrays.copyOfRange(args, 1, args.length));
+        if (args.length > 0 && args[0].equals("--load"))
+            return LoadGenerator.run(Arrays.copyOfRange(args, 1, args.length));
+        BatchRunner runner = new BatchRunner();
+        try
+        {
+            runner.parseArguments(args);
+        }
+        catch (IllegalArgumentException | IOException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        return runner.runAll();
+    }
+
+    private void parseArguments(String[] args) throws IOException
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            switch (arg)
+            {
+                case "--threads": threads = Integer.parseInt(value(args, ++i, arg)); break;
+                case "--timeout": timeoutMillis = Long.parseLong(value(args, ++i, arg)); break;
+                case "--max-steps": maxSteps = Long.parseLong(value(args, ++i, arg)); break;
+                case "--engine": engine = Engine.valueOf(value(args, ++i, arg).toUpperCase(Locale.ROOT)); break;
+                case "--compare-engines": compareEngines = true; break;
+                case "--optimise": optimise = true; break;
+                case "--wide": wide = true; break;
+                case "--profile": profile = true; break;
+                case "--trace":
+                    String[] mode = value(args, ++i, arg).split(":", 2);
+                    traceMode = TraceMode.valueOf(mode[0].toUpperCase(Locale.ROOT));
+                    traceInterval = mode.length > 1 ? Integer.parseInt(mode[1])
+                            : traceMode == TraceMode.DELTA ? BufferedTrace.DEFAULT_SNAPSHOT_INTERVAL : 1;
+                    break;
+                case "--trace-dir": traceDir = Paths.get(value(args, ++i, arg)); break;
+                case "--checkpoint-every": checkpointSteps = Long.parseLong(value(args, ++i, arg)); break;
+                case "--checkpoint-seconds": checkpointMillis = Long.parseLong(value(args, ++i, arg)) * 1000; break;
+                case "--checkpoint-dir": checkpointDir = Paths.get(value(args, ++i, arg)); break;
+                case "--resume": resume = true; break;
+                case "--sweep": addSweep(value(args, ++i, arg)); break;
+                case "--cache": cacheMegabytes = Long.parseLong(value(args, ++i, arg)); break;
+                case "--cache-dir": cacheDir = Paths.get(value(args, ++i, arg)); break;
+                default:
+                    if (arg.startsWith("--"))
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                    addPrograms(Paths.get(arg));
+            }
+        }
+        if (threads < 1)
+            throw new IllegalArgumentException("--threads must be at least 1");
+        if (programs.isEmpty())
+            throw new IllegalArgumentException("No programs given");
+        if (cacheMegabytes < 0)
+            throw new IllegalArgumentException("--cache must not be negative");
+        if (compareEngines && (resume || !sweeps.isEmpty()))
+            throw new IllegalArgumentException("--compare-engines cannot be used with --resume or --sweep");
+        if (cacheDir != null)
+        {
+            Files.createDirectories(cacheDir);
+            if (cacheMegabytes == 0)
+                cacheMegabytes = DEFAULT_CACHE_MEGABYTES;
+        }
+        if (cacheMegabytes > 0)
+            cache = new ResultCache(cacheMegabytes << 20, cacheDir);
+    }
+
+    private static String value(String[] args, int i, String option)
+    {
+        if (i >= args.length)
+            throw new IllegalArgumentException(option + " needs a value");
+        return args[i];
+    }
+
+    private void addSweep(String sweep)
+    {
+        String[] parts = sweep.split("=|\\.\\.");
+        if (parts.length != 3)
+            throw new IllegalArgumentException("--sweep needs NAME=FROM..TO, not " + sweep);
+        long from = Long.parseLong(parts[1]);
+        long to = Long.parseLong(parts[2]);
+        if (from > to)
+            throw new IllegalArgumentException("--sweep range " + sweep + " is empty");
+        sweeps.put(parts[0].toLowerCase(Locale.ROOT), new long[] {from, to});
+    }
+
+    private void addPrograms(Path path) throws IOException
+    {
+        if (!Files.isDirectory(path))
+        {
+            programs.add(path);
+            return;
+        }
+        try (Stream<Path> files = Files.list(path))
+        {
+            programs.addAll(files.filter(file -> file.toString().endsWith(".txt")).sorted().collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Runs every program on the worker pool, printing each result as soon as it and those before it are done
+     * @return The exit status
+     */
+    private int runAll()
+    {
+        if (!sweeps.isEmpty())
+            return sweepAll();
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, programs.size()));
+        List<Future<Result>> results = new ArrayList<>();
+        for (Path program : programs)
+            results.add(pool.submit(() -> runProgram(program)));
+        pool.shutdown();
+
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++)
+        {
+            Result result;
+            try
+            {
+                result = results.get(i).get();
+            }
+            catch (ExecutionException e)
+            {
+                result = new Result(programs.get(i), "error: " + e.getCause(), 0, 0, "", null);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return 1;
+            }
+            if (!result.status.equals("ok"))
+                failed++;
+            System.out.println(result);
+        }
+
+        System.out.printf("%d programs, %d failed, %.1f ms wall time%n",
+                programs.size(), failed, (System.nanoTime() - start) / 1e6);
+        if (cache != null)
+            System.out.println("Result cache: " + cache);
+        return failed == 0 ? 0 : 1;
+    }
+
+    /**
+     * Runs each program in turn for every combination of the swept variables, with the runs of each program
+     * spread over the worker threads, printing each result in order
+     * @return The exit status
+     */
+    private int sweepAll()
+    {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long runs = 0;
+        long failed = 0;
+        for (Path program : programs)
+        {
+            ParameterSweep sweep;
+            try
+            {
+                sweep = new ParameterSweep(SourceLoader.load(program).getModel().getProgram(), engine, wide, optimise);
+            }
+            catch (IOException | InterpreterException e)
+            {
+                System.out.println(program + ": error: " + e.getMessage());
+                failed++;
+                continue;
+            }
+            sweep.setPool(pool);
+            sweep.setStepLimit(maxSteps);
+            sweep.setTimeLimit(timeoutMillis);
+            sweep.setResultCache(cache);
+            try (Stream<ParameterSweep.Result> results = sweep.run(combinations(), true))
+            {
+                for (Iterator<ParameterSweep.Result> i = results.iterator(); i.hasNext(); )
+                {
+                    ParameterSweep.Result result = i.next();
+                    runs++;
+                    if (result.error != null)
+                        failed++;
+                    System.out.println(program + ": " + result);
+                }
+            }
+        }
+        pool.shutdown();
+
+        System.out.printf("%d runs, %d failed, %.1f ms wall time%n", runs, failed, (System.nanoTime() - start) / 1e6);
+        if (cache != null)
+            System.out.println("Result cache: " + cache);
+        return failed == 0 ? 0 : 1;
+    }
+
+    /** @return Every combination of the swept variables' values, the last varying fastest */
+    private Stream<Map<String, Long>> combinations()
+    {
+        Stream<Map<String, Long>> combinations = Stream.of(new LinkedHashMap<>());
+        for (Map.Entry<String, long[]> sweep : sweeps.entrySet())
+        {
+            long[] range = sweep.getValue();
+            combinations = combinations.flatMap(bindings -> LongStream.rangeClosed(range[0], range[1]).mapToObj(value -> {
+                Map<String, Long> extended = new LinkedHashMap<>(bindings);
+                extended.put(sweep.getKey(), value);
+                return extended;
+            }));
+        }
+        return combinations;
+    }
+
+    /** Runs on a worker thread */
+    private Result runProgram(Path program)
+    {
+        long start = System.nanoTime();
+        Interpreter interpreter = null;
+        String status = "ok";
+        BufferedWriter traceOut = null;
+        SourceLoader source = null;
+        Program parsed = null;
+        try
+        {
+            source = SourceLoader.load(program);
+            parsed = source.getModel().getProgram();
+            TraceSink trace = null;
+            if (traceMode != null)
+            {
+                traceOut = Files.newBufferedWriter(traceDir.resolve(program.getFileName() + ".trace"));
+                trace = new BufferedTrace(traceMode, traceInterval, traceOut, parsed);
+            }
+            interpreter = new Interpreter(parsed, trace);
+            interpreter.setEngine(engine);
+            interpreter.setOptimiseLoops(optimise);
+            interpreter.setWideIntegers(wide);
+            interpreter.setCountSteps(true);
+            interpreter.setStepLimit(maxSteps);
+            interpreter.setTimeLimit(timeoutMillis);
+            interpreter.setProfiling(profile);
+            interpreter.setResultCache(cache);
+            Path checkpoint = checkpointDir.resolve(program.getFileName() + ".ckpt");
+            if (checkpointSteps > 0 || checkpointMillis > 0)
+                interpreter.setCheckpointing(checkpoint, checkpointSteps, checkpointMillis);
+            if (resume && Files.exists(checkpoint))
+                interpreter.resume(checkpoint);
+            interpreter.execute();
+        }
+        catch (LimitExceededException e)
+        {
+            status = "stopped: " + e.getMessage();
+        }
+        catch (InterpreterException e)
+        {
+            status = "error: " + e.getMessage();
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            status = "error: " + e;
+        }
+        catch (ArithmeticException e)
+        {
+            status = "error: " + e.getMessage();
+        }
+        finally
+        {
+            if (traceOut != null)
+            {
+                try { traceOut.close(); }
+                catch (IOException e) { status = "error: " + e; }
+            }
+        }
+
+        long nanos = System.nanoTime() - start;
+        if (interpreter == null)
+            return new Result(program, status, 0, nanos, "", null);
+        StringBuilder variables = new StringBuilder();
+        BufferedTrace.appendVariables(variables, interpreter.getRegisters());
+        if (compareEngines)
+        {
+            String difference = compareEngines(parsed, status, interpreter.getSteps(), variables.toString().trim());
+            if (difference != null)
+                status = "error: " + difference;
+        }
+        List<String> hotSpots = profile ? interpreter.getProfiler().report(source.getLines(), PROFILE_LINES) : null;
+        return new Result(program, status, interpreter.getSteps(), nanos, variables.toString().trim(), hotSpots);
+    }
+
+    /**
+     * Runs a program again on every engine but the one it was run on, without a trace, profiling, checkpoints or
+     * the cache, to check that they all give the same result
+     * @param program The program
+     * @param status How it ended on the engine it was run on
+     * @param steps The steps it ran there
+     * @param variables Its final variables there
+     * @return What the first engine to give a different result did differently, or null if none did
+     */
+    private String compareEngines(Program program, String status, long steps, String variables)
+    {
+        for (Engine other : Engine.values())
+        {
+            if (other == engine)
+                continue;
+            Interpreter interpreter = new Interpreter(program, null);
+            interpreter.setEngine(other);
+            interpreter.setOptimiseLoops(optimise);
+            interpreter.setWideIntegers(wide);
+            interpreter.setCountSteps(true);
+            interpreter.setStepLimit(maxSteps);
+            interpreter.setTimeLimit(timeoutMillis);
+            String otherStatus = "ok";
+            try
+            {
+                interpreter.execute();
+            }
+            catch (LimitExceededException e)
+            {
+                otherStatus = "stopped: " + e.getMessage();
+            }
+            catch (InterpreterException | ArithmeticException e)
+            {
+                otherStatus = "error: " + e.getMessage();
+            }
+            StringBuilder otherVariables = new StringBuilder();
+            BufferedTrace.appendVariables(otherVariables, interpreter.getRegisters());
+            String name = other.name().toLowerCase(Locale.ROOT);
+            if (!otherStatus.equals(status))
+                return name + " engine ended with " + otherStatus;
+            if (interpreter.getSteps() != steps)
+                return name + " engine ran " + interpreter.getSteps() + " steps";
+            if (!otherVariables.toString().trim().equals(variables))
+                return name + " engine ended with " + otherVariables.toString().trim();
+        }
+        return null;
+    }
+
+    /**
+     * The outcome of running one program
+     */
+    private static final class Result
+    {
+        final Path program;
+        final String status;
+        final long steps;
+        final long nanos;
+        final String variables;
+        final List<String> hotSpots;  // Null if not profiled
+
+        Result(Path program, String status, long steps, long nanos, String variables, List<String> hotSpots)
+        {
+            this.program = program;
+            this.status = status;
+            this.steps = steps;
+            this.nanos = nanos;
+            this.variables = variables;
+            this.hotSpots = hotSpots;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder result = new StringBuilder(String.format("%s: %s, %d steps, %.3f ms%n    %s",
+                    program, status, steps, nanos / 1e6, variables));
+            if (hotSpots != null)
+            {
+                for (String hotSpot : hotSpots)
+                    result.append(System.lineSeparator()).append("      ").append(hotSpot);
+            }
+            return result.toString();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.util.BitSet;
+
+/**
+ * A TraceSink which writes the variables as lines of "name:value, " pairs, in one of the TraceModes.
+ * Lines are built in a StringBuilder and handed to the Writer in large chunks, so the Writer should
+ * not need to be buffered itself.
+ *
+ * A DELTA trace starts with a line naming every variable in slot order, "#variables name name ...". Then each
+ * step writes its (1 based) source line and "| ", followed by the pairs of just the variables it changed
+ * ("name:undefined" for one it deleted), except every Nth step, which writes its line and "= " followed by all
+ * the defined variables. When the program stops, a line of "= " and the final variables ends the trace.
+ * A TraceReplayer turns it back into a FULL trace
+ */
+final class BufferedTrace implements TraceSink
+{
+    private static final int FLUSH_THRESHOLD = 8192;
+    /** How often a DELTA trace writes all the variables, unless told otherwise */
+    static final int DEFAULT_SNAPSHOT_INTERVAL = 1000;
+    static final String VARIABLES_HEADER = "#variables";
+    static final String UNDEFINED = "undefined";
+
+    private final TraceMode mode;
+    private final int interval;
+    private final Writer out;
+    private final StringBuilder buffer = new StringBuilder(FLUSH_THRESHOLD * 2);
+
+    // LAST_K only: the most recent lines, reused once the ring fills up
+    private final StringBuilder[] ring;
+    private int ringNext;
+    private int ringCount;
+
+    // DELTA only: the variables as of the last step, to compare the next one with
+    private final Program program;
+    private final int[][] writes;               // The slots each instruction may change, or null for any of them
+    private long[] lastValues;
+    private BigInteger[] lastWide;              // Created when a wide value is first seen
+    private final BitSet lastDefined = new BitSet();
+
+    private long steps;
+    private boolean lastStepWritten = true;
+
+    /**
+     * @param mode Which steps to write
+     * @param interval N for EVERY_NTH and DELTA, K for LAST_K, and ignored otherwise
+     * @param out The writer to write the trace to, which is flushed (but not closed) when the program stops
+     * @param program The program being traced, to find the line of each step, which is only needed for DELTA.
+     *                Its instructions must be the ones that run, so it cannot be partially evaluated, which
+     *                the Interpreter does not do when every step is traced
+     */
+    BufferedTrace(TraceMode mode, int interval, Writer out, Program program)
+    {
+        if (interval < 1)
+            throw new IllegalArgumentException("Trace interval must be at least 1");
+        if (mode == TraceMode.DELTA && program == null)
+            throw new IllegalArgumentException("A delta trace needs the program, for its line numbers");
+        this.mode = mode;
+        this.interval = interval;
+        this.out = out;
+        this.ring = mode == TraceMode.LAST_K ? new StringBuilder[interval] : null;
+        this.program = program;
+        this.writes = mode == TraceMode.DELTA ? new int[program.size()][] : null;
+        for (int pc = 0; writes != null && pc < writes.length; pc++)
+        {
+            switch (program.get(pc).opcode)
+            {
+                case WHILE:     // A summarised loop changes whatever it summarises
+                case CALL:
+                case RETURN: break;
+                default:
+                    BitSet slots = ControlFlowGraph.defines(program.get(pc));
+                    slots.or(ControlFlowGraph.marksDefined(program.get(pc)));
+                    writes[pc] = slots.stream().toArray();
+            }
+        }
+
+        // A call changes the procedure's slots without completing a step, so any step in a procedure may show them
+        for (int pc = 0; writes != null && pc < writes.length; pc++)
+        {
+            Instruction instruction = program.get(pc);
+            if (instruction.opcode != Opcode.CALL)
+                continue;
+            int[] slots = program.getCallSite((int) instruction.literal).procedure.slots;
+            int end = program.get(instruction.target - 1).target;     // Just past the procedure's end
+            for (int body = instruction.target; body < end; body++)
+            {
+                if (writes[body] != null)
+                    writes[body] = slots;
+            }
+        }
+    }
+
+    /**
+     * @param mode Which steps to write, other than DELTA
+     * @param interval N for EVERY_NTH, K for LAST_K, and ignored otherwise
+     * @param out The writer to write the trace to, which is flushed (but not closed) when the program stops
+     */
+    BufferedTrace(TraceMode mode, int interval, Writer out)
+    {
+        this(mode, interval, out, null);
+    }
+
+    /**
+     * @param out The writer to write every step to
+     */
+    BufferedTrace(Writer out)
+    {
+        this(TraceMode.FULL, 1, out);
+    }
+
+    @Override
+    public boolean tracesSteps()
+    {
+        return mode != TraceMode.FINAL_ONLY;
+    }
+
+    @Override
+    public void step(int pc, RegisterFile registers)
+    {
+        steps++;
+        switch (mode)
+        {
+            case FULL:
+                appendVariables(buffer, registers);
+                break;
+            case EVERY_NTH:
+                lastStepWritten = steps % interval == 0;
+                if (lastStepWritten)
+                    appendVariables(buffer, registers);
+                break;
+            case LAST_K:
+                if (ring[ringNext] == null)
+                    ring[ringNext] = new StringBuilder();
+                ring[ringNext].setLength(0);
+                appendVariables(ring[ringNext], registers);
+                ringNext = (ringNext + 1) % ring.length;
+                ringCount = Math.min(ringCount + 1, ring.length);
+                return;
+            case FINAL_ONLY:
+                return;
+            case DELTA:
+                if (lastValues == null)
+                    start(registers);
+                buffer.append(program.get(pc).line + 1);
+                if (steps % interval == 0)
+                    appendSnapshot(registers);
+                else
+                    appendChanges(writes[pc], registers);
+                break;
+        }
+        if (buffer.length() >= FLUSH_THRESHOLD)
+            drain();
+    }
+
+    @Override
+    public void finish(RegisterFile registers)
+    {
+        switch (mode)
+        {
+            case EVERY_NTH:
+                if (!lastStepWritten)
+                    appendVariables(buffer, registers);
+                break;
+            case LAST_K:
+                for (int i = 0; i < ringCount; i++)
+                    buffer.append(ring[(ringNext - ringCount + i + ring.length) % ring.length]);
+                break;
+            case FINAL_ONLY:
+                appendVariables(buffer, registers);
+                break;
+            case DELTA:
+                if (lastValues == null)
+                    start(registers);
+                appendSnapshot(registers);
+                break;
+            default:
+                break;
+        }
+        drain();
+        try
+        {
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** @return The number of steps traced so far, whether or not they were written */
+    long getSteps() { return steps; }
+
+    /**
+     * Appends one line of the trace: each defined variable and its value, in slot order
+     * @param builder The builder to append to
+     * @param registers The variables to append
+     */
+    static void appendVariables(StringBuilder builder, RegisterFile registers)
+    {
+        for (int slot = registers.nextDefined(0); slot >= 0; slot = registers.nextDefined(slot + 1))
+        {
+            builder.append(registers.getName(slot)).append(':');
+            if (registers.isWide(slot))
+                builder.append(registers.getBig(slot));
+            else
+                builder.append(registers.get(slot));
+            builder.append(", ");
+        }
+        builder.append('\n');
+    }
+
+    /** Writes the header of a DELTA trace, and starts comparing against no variables being defined */
+    private void start(RegisterFile registers)
+    {
+        lastValues = new long[registers.size()];
+        buffer.append(VARIABLES_HEADER);
+        for (int slot = 0; slot < registers.size(); slot++)
+            buffer.append(' ').append(registers.getName(slot));
+        buffer.append('\n');
+    }
+
+    /** Appends "= " and every defined variable, and remembers them */
+    private void appendSnapshot(RegisterFile registers)
+    {
+        buffer.append("= ");
+        appendVariables(buffer, registers);
+        for (int slot = 0; slot < lastValues.length; slot++)
+            remember(slot, registers);
+    }
+
+    /**
+     * Appends "| " and each variable that has changed since the last step, and remembers them
+     * @param slots The slots the step may have changed, in order, or null to check them all
+     */
+    private void appendChanges(int[] slots, RegisterFile registers)
+    {
+        buffer.append("| ");
+        int count = slots != null ? slots.length : lastValues.length;
+        for (int i = 0; i < count; i++)
+        {
+            int slot = slots != null ? slots[i] : i;
+            if (isUnchanged(slot, registers))
+                continue;
+            buffer.append(registers.getName(slot)).append(':');
+            if (!registers.isDefined(slot))
+                buffer.append(UNDEFINED);
+            else if (registers.isWide(slot))
+                buffer.append(registers.getBig(slot));
+            else
+                buffer.append(registers.get(slot));
+            buffer.append(", ");
+            remember(slot, registers);
+        }
+        buffer.append('\n');
+    }
+
+    private boolean isUnchanged(int slot, RegisterFile registers)
+    {
+        BigInteger last = lastWide != null ? lastWide[slot] : null;
+        return registers.isDefined(slot) == lastDefined.get(slot) && registers.get(slot) == lastValues[slot]
+                && (registers.isWide(slot) ? registers.getBig(slot).equals(last) : last == null);
+    }
+
+    private void remember(int slot, RegisterFile registers)
+    {
+        lastValues[slot] = registers.get(slot);
+        lastDefined.set(slot, registers.isDefined(slot));
+        if (registers.isWide(slot))
+        {
+            if (lastWide == null)
+                lastWide = new BigInteger[lastValues.length];
+            lastWide[slot] = registers.getBig(slot);
+        }
+        else if (lastWide != null)
+            lastWide[slot] = null;
+    }
+
+    /** Hands everything buffered so far to the writer */
+    private void drain()
+    {
+        if (buffer.length() == 0)
+            return;
+        try
+        {
+            out.append(buffer);
+            buffer.setLength(0);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,685 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+/**
+ * Compiles a Program into a JVM class implementing CompiledCode, loaded as a hidden class, so that HotSpot can
+ * JIT compile Bare Bones loops directly.
+ * Each variable becomes a long local (plus an int local recording whether it is defined), while/ifp/ifz become
+ * JVM branches, and the registers are only written back when the trace is called or the program stops.
+ * Every jump back to an earlier instruction reads the cancellation, so that any loop can be stopped.
+ * The class file is written by hand (version 49, so no stack map frames are needed) to avoid a bytecode library
+ */
+final class BytecodeCompiler
+{
+    // JVM opcodes
+    private static final int ICONST_0 = 0x03, ICONST_1 = 0x04, LCONST_0 = 0x09, LCONST_1 = 0x0a, BIPUSH = 0x10,
+                             SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14, ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19,
+                             ISTORE = 0x36, LSTORE = 0x37, POP = 0x57, LADD = 0x61, LSUB = 0x65, LMUL = 0x69,
+                             LDIV = 0x6d, LCMP = 0x94, IFEQ = 0x99, IFNE = 0x9a, IFGT = 0x9d, IFLE = 0x9e, GOTO = 0xa7,
+                             TABLESWITCH = 0xaa, IRETURN = 0xac, RETURN = 0xb1, GETFIELD = 0xb4, INVOKEVIRTUAL = 0xb6,
+                             INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, INVOKEINTERFACE = 0xb9, WIDE = 0xc4, IFNULL = 0xc6;
+
+    // Local variable indexes of CompiledCode.run, PC starts as the pc parameter
+    private static final int THIS = 0, REGISTERS = 1, TRACE = 2, CANCELLATION = 3, PC = 4, FIRST_VARIABLE = 5;
+
+    private static final String CLASS_NAME = "BareBonesCode";
+    private static final String REGISTER_FILE = "RegisterFile";
+    private static final String CANCELLATION_CLASS = "CompiledCode$Cancellation";
+
+    private final Program program;
+    private final boolean exact;
+    private final ConstantPool pool = new ConstantPool();
+    private final Code code = new Code();
+
+    // Labels
+    private final int[] instructionLabels;
+    private final int[] resumeLabels;
+    private final int endLabel;
+    private final int traceLabel;
+    private final int handBackLabel;
+    private int handlerPosition;
+
+    private BytecodeCompiler(Program program, boolean exact)
+    {
+        this.program = program;
+        this.exact = exact;
+        instructionLabels = new int[program.size() + 1];
+        resumeLabels = new int[program.size()];
+        for (int pc = 0; pc <= program.size(); pc++)
+            instructionLabels[pc] = code.newLabel();
+        for (int pc = 0; pc < program.size(); pc++)
+            resumeLabels[pc] = code.newLabel();
+        endLabel = instructionLabels[program.size()];
+        traceLabel = code.newLabel();
+        handBackLabel = code.newLabel();
+    }
+
+    /**
+     * Compiles and loads a program
+     * @param program The program to compile
+     * @param exact True to hand an instruction back to the interpreter if it overflows a long, so that
+     *              the interpreter can promote its result (see RegisterFile), rather than wrapping
+     * @return The compiled program, or null if it is too large to compile into a single JVM method, or has
+     *         procedures (whose calls are left to the interpreter's CallStack)
+     */
+    static CompiledCode compile(Program program, boolean exact)
+    {
+        if (program.hasProcedures())
+            return null;
+        byte[] classFile = new BytecodeCompiler(program, exact).writeClass();
+        if (classFile == null)
+            return null;
+
+        try
+        {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            return (CompiledCode) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        }
+        catch (Throwable e)
+        {
+            throw new IllegalStateException("Generated invalid bytecode", e);
+        }
+    }
+
+    /**
+     * @return The class file, or null if the program is too large
+     */
+    private byte[] writeClass()
+    {
+        int variables = program.variableCount();
+        int maxLocals = FIRST_VARIABLE + 3 * variables;
+        if (variables > Short.MAX_VALUE || maxLocals > 0xffff)
+            return null;
+
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int iface = pool.classRef("CompiledCode");
+
+        byte[] constructor = writeConstructor(superClass);
+        byte[] run = writeRun();
+        int exceptionClass = pool.classRef("java/lang/ArithmeticException");
+        if (run.length > Short.MAX_VALUE)
+            return null;
+
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int codeAttribute = pool.utf8("Code");
+            int initName = pool.utf8("<init>");
+            int initType = pool.utf8("()V");
+            int runName = pool.utf8("run");
+            int runType = pool.utf8("(L" + REGISTER_FILE + ";Ljava/util/function/IntConsumer;L"
+                                   + CANCELLATION_CLASS + ";I)I");
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            pool.write(out);
+            out.writeShort(0x0010 | 0x0020); // final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+
+            out.writeShort(0x0001); // public <init>()V
+            out.writeShort(initName);
+            out.writeShort(initType);
+            out.writeShort(1);
+            writeCodeAttribute(out, codeAttribute, 1, 1, constructor, -1);
+
+            out.writeShort(0x0001 | 0x0010); // public final run
+            out.writeShort(runName);
+            out.writeShort(runType);
+            out.writeShort(1);
+            writeCodeAttribute(out, codeAttribute, 6, maxLocals, run, program.size() > 0 ? exceptionClass : -1);
+
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e); // Cannot happen writing to memory
+        }
+    }
+
+    private void writeCodeAttribute(DataOutputStream out, int name, int maxStack, int maxLocals, byte[] body,
+                                    int exceptionClass) throws IOException
+    {
+        boolean hasHandler = exceptionClass >= 0;
+        out.writeShort(name);
+        out.writeInt(12 + body.length + (hasHandler ? 8 : 0));
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(body.length);
+        out.write(body);
+        if (hasHandler)
+        {
+            // Any ArithmeticException thrown by the program body hands execution back to the interpreter
+            out.writeShort(1);
+            out.writeShort(code.labelPosition(instructionLabels[0]));
+            out.writeShort(code.labelPosition(endLabel));
+            out.writeShort(handlerPosition);
+            out.writeShort(exceptionClass);
+        }
+        else
+        {
+            out.writeShort(0);
+        }
+        out.writeShort(0); // attributes
+    }
+
+    private byte[] writeConstructor(int superClass)
+    {
+        Code init = new Code();
+        init.op(ALOAD, THIS);
+        init.op(INVOKESPECIAL);
+        init.u2(pool.methodRef(superClass, "<init>", "()V"));
+        init.op(RETURN);
+        return init.toByteArray();
+    }
+
+    private byte[] writeRun()
+    {
+        // Load the registers into locals, then jump to the starting instruction
+        for (int slot = 0; slot < program.variableCount(); slot++)
+        {
+            code.op(ALOAD, REGISTERS);
+            pushInt(slot);
+            invokeRegisters("get", "(I)J");
+            code.local(LSTORE, value(slot));
+            code.op(ALOAD, REGISTERS);
+            pushInt(slot);
+            invokeRegisters("isDefined", "(I)Z");
+            code.local(ISTORE, defined(slot));
+        }
+        code.local(ILOAD, PC);
+        code.tableSwitch(endLabel, instructionLabels);
+
+        for (int pc = 0; pc < program.size(); pc++)
+        {
+            code.bind(instructionLabels[pc]);
+            compileInstruction(pc, program.get(pc));
+        }
+
+        // Completed: write back the registers and return the program size
+        code.bind(endLabel);
+        spill();
+        pushInt(program.size());
+        code.op(IRETURN);
+
+        // Shared trace call: PC holds the completed instruction, and is used to return to it afterwards
+        code.bind(traceLabel);
+        spill();
+        code.op(ALOAD, TRACE);
+        code.local(ILOAD, PC);
+        code.op(INVOKEINTERFACE);
+        code.u2(pool.interfaceMethodRef(pool.classRef("java/util/function/IntConsumer"), "accept", "(I)V"));
+        code.op(2);
+        code.op(0);
+        int[] resumeTargets = new int[resumeLabels.length];
+        for (int pc = 0; pc < resumeLabels.length; pc++)
+            resumeTargets[pc] = code.isBound(resumeLabels[pc]) ? resumeLabels[pc] : endLabel;
+        code.local(ILOAD, PC);
+        code.tableSwitch(endLabel, resumeTargets);
+
+        // Arithmetic exception: write back the registers and return the instruction that threw
+        handlerPosition = code.size();
+        code.op(POP);
+        code.bind(handBackLabel);
+        spill();
+        code.local(ILOAD, PC);
+        code.op(IRETURN);
+
+        return code.toByteArray();
+    }
+
+    private void compileInstruction(int pc, Instruction instruction)
+    {
+        int a = instruction.operand1;
+        int b = instruction.operand2;
+        int dest = instruction.destination;
+        switch (instruction.opcode)
+        {
+            case CLEAR:
+                setValue(a, LCONST_0);
+                break;
+            case INCR:
+                if (exact)
+                    setPc(pc);
+                code.local(LLOAD, value(a));
+                code.op(LCONST_1);
+                arithmetic(LADD, "addExact");
+                store(a);
+                break;
+            case DECR:
+                int zero = code.newLabel();
+                int done = code.newLabel();
+                code.local(LLOAD, value(a));
+                code.op(LCONST_0);
+                code.op(LCMP);
+                code.branch(IFLE, zero);
+                code.local(LLOAD, value(a));
+                code.op(LCONST_1);
+                code.op(LSUB);
+                code.local(LSTORE, value(a));
+                code.branch(GOTO, done);
+                code.bind(zero);
+                code.op(LCONST_0);
+                code.local(LSTORE, value(a));
+                code.bind(done);
+                define(a, ICONST_1);
+                break;
+            case DEL:
+                code.op(LCONST_0);
+                code.local(LSTORE, value(a));
+                define(a, ICONST_0);
+                break;
+            case SWAP:
+                code.local(LLOAD, value(a));
+                code.local(LLOAD, value(b));
+                code.local(LSTORE, value(a));
+                store(b);
+                define(a, ICONST_1);
+                break;
+            case COPY:
+                define(a, ICONST_1);
+                code.local(LLOAD, value(a));
+                store(b);
+                break;
+            case ADD: binary(pc, a, b, dest, LADD, "addExact"); break;
+            case SUBTRACT: binary(pc, a, b, dest, LSUB, "subtractExact"); break;
+            case MULTIPLY: binary(pc, a, b, dest, LMUL, "multiplyExact"); break;
+            case DIVIDE:
+                setPc(pc);
+                define(a, ICONST_1);
+                define(b, ICONST_1);
+                if (exact)
+                {
+                    // The only overflowing division is MIN_VALUE / -1, so divide by -1 as an exact negation
+                    int divide = code.newLabel();
+                    int quotient = code.newLabel();
+                    code.local(LLOAD, value(b));
+                    code.op(LDC2_W);
+                    code.u2(pool.longConstant(-1));
+                    code.op(LCMP);
+                    code.branch(IFNE, divide);
+                    code.local(LLOAD, value(a));
+                    invokeMath("negateExact", "(J)J");
+                    code.branch(GOTO, quotient);
+                    code.bind(divide);
+                    code.local(LLOAD, value(a));
+                    code.local(LLOAD, value(b));
+                    code.op(LDIV);
+                    code.bind(quotient);
+                }
+                else
+                {
+                    code.local(LLOAD, value(a));
+                    code.local(LLOAD, value(b));
+                    code.op(LDIV);
+                }
+                store(dest);
+                break;
+            case ASSIGN:
+                code.op(LDC2_W);
+                code.u2(pool.longConstant(instruction.literal));
+                store(dest);
+                break;
+            case IFP:
+            case IFZ:
+                define(a, ICONST_1);
+                trace(pc);
+                code.local(LLOAD, value(a));
+                code.op(LCONST_0);
+                code.op(LCMP);
+                if (instruction.target <= pc)
+                {
+                    int fallThrough = code.newLabel();
+                    code.branch(instruction.opcode == Opcode.IFP ? IFLE : IFNE, fallThrough);
+                    jumpBack(instruction.target);
+                    code.bind(fallThrough);
+                }
+                else
+                    code.branch(instruction.opcode == Opcode.IFP ? IFGT : IFEQ, instructionLabels[instruction.target]);
+                return;
+            case WHILE:
+                code.local(LLOAD, value(a));
+                code.op(LCONST_0);
+                code.op(LCMP);
+                if (instruction.summary != null)
+                {
+                    // Hand back to the interpreter to apply the loop summary
+                    int exit = code.newLabel();
+                    code.branch(IFLE, exit);
+                    pushInt(pc);
+                    code.local(ISTORE, PC);
+                    code.branch(GOTO, handBackLabel);
+                    code.bind(exit);
+                }
+                else
+                    code.branch(IFGT, instructionLabels[pc + 1]);
+                trace(pc);
+                code.branch(GOTO, instructionLabels[instruction.target]);
+                return;
+            case END:
+                jumpBack(instruction.target);
+                return;
+        }
+        trace(pc);
+    }
+
+    /** Jumps back to an earlier instruction, or hands it back to the interpreter if the run has been cancelled */
+    private void jumpBack(int target)
+    {
+        // A field read is all HotSpot needs to keep in the loop, where a call would have it save the locals around it
+        int cancelled = code.newLabel();
+        code.op(ALOAD, CANCELLATION);
+        code.op(GETFIELD);
+        code.u2(pool.fieldRef(pool.classRef(CANCELLATION_CLASS), "requested", "Z"));
+        code.branch(IFNE, cancelled);
+        code.branch(GOTO, instructionLabels[target]);
+        code.bind(cancelled);
+        setPc(target);
+        code.branch(GOTO, handBackLabel);
+    }
+
+    /** Emits dest = a (op) b, defining all three */
+    private void binary(int pc, int a, int b, int dest, int op, String exactMethod)
+    {
+        if (exact)
+            setPc(pc);
+        define(a, ICONST_1);
+        define(b, ICONST_1);
+        code.local(LLOAD, value(a));
+        code.local(LLOAD, value(b));
+        arithmetic(op, exactMethod);
+        store(dest);
+    }
+
+    /** Emits a long operation, or in exact mode the Math method which throws on overflow instead */
+    private void arithmetic(int op, String exactMethod)
+    {
+        if (exact)
+            invokeMath(exactMethod, "(JJ)J");
+        else
+            code.op(op);
+    }
+
+    private void invokeMath(String name, String type)
+    {
+        code.op(INVOKESTATIC);
+        code.u2(pool.methodRef(pool.classRef("java/lang/Math"), name, type));
+    }
+
+    /** Records the instruction about to execute, for the exception handler to return */
+    private void setPc(int pc)
+    {
+        pushInt(pc);
+        code.local(ISTORE, PC);
+    }
+
+    /** Stores the long on the stack into a variable and defines it */
+    private void store(int slot)
+    {
+        code.local(LSTORE, value(slot));
+        define(slot, ICONST_1);
+    }
+
+    private void setValue(int slot, int constantOp)
+    {
+        code.op(constantOp);
+        store(slot);
+    }
+
+    private void define(int slot, int constantOp)
+    {
+        code.op(constantOp);
+        code.local(ISTORE, defined(slot));
+    }
+
+    /** Calls the trace (if there is one) for a completed instruction */
+    private void trace(int pc)
+    {
+        code.op(ALOAD, TRACE);
+        code.branch(IFNULL, resumeLabels[pc]);
+        pushInt(pc);
+        code.local(ISTORE, PC);
+        code.branch(GOTO, traceLabel);
+        code.bind(resumeLabels[pc]);
+    }
+
+    /** Writes every local variable back to the registers */
+    private void spill()
+    {
+        for (int slot = 0; slot < program.variableCount(); slot++)
+        {
+            code.op(ALOAD, REGISTERS);
+            pushInt(slot);
+            code.local(LLOAD, value(slot));
+            code.local(ILOAD, defined(slot));
+            invokeRegisters("put", "(IJZ)V");
+        }
+    }
+
+    private void invokeRegisters(String name, String type)
+    {
+        code.op(INVOKEVIRTUAL);
+        code.u2(pool.methodRef(pool.classRef(REGISTER_FILE), name, type));
+    }
+
+    private void pushInt(int value)
+    {
+        if (value >= -1 && value <= 5)
+            code.op(ICONST_0 + value);
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+        {
+            code.op(BIPUSH);
+            code.op(value & 0xff);
+        }
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+        {
+            code.op(SIPUSH);
+            code.u2(value);
+        }
+        else
+        {
+            code.op(LDC_W);
+            code.u2(pool.intConstant(value));
+        }
+    }
+
+    private static int value(int slot) { return FIRST_VARIABLE + 3 * slot; }
+
+    private static int defined(int slot) { return FIRST_VARIABLE + 3 * slot + 2; }
+
+    /**
+     * A growable method body with labels, whose branch offsets are filled in when it is finished
+     */
+    private static final class Code
+    {
+        private byte[] bytes = new byte[256];
+        private int size;
+        private final List<Integer> labels = new ArrayList<>();
+        private final List<int[]> fixups = new ArrayList<>(); // {offset position, instruction position, label, width}
+
+        int size() { return size; }
+
+        int newLabel()
+        {
+            labels.add(-1);
+            return labels.size() - 1;
+        }
+
+        void bind(int label) { labels.set(label, size); }
+
+        boolean isBound(int label) { return labels.get(label) >= 0; }
+
+        int labelPosition(int label) { return labels.get(label); }
+
+        void op(int... values)
+        {
+            for (int value : values)
+            {
+                if (size == bytes.length)
+                    bytes = Arrays.copyOf(bytes, size * 2);
+                bytes[size++] = (byte) value;
+            }
+        }
+
+        void u2(int value) { op(value >> 8, value); }
+
+        void u4(int value) { op(value >> 24, value >> 16, value >> 8, value); }
+
+        /** Emits a load or store of a local variable, widening the index if needed */
+        void local(int opcode, int index)
+        {
+            if (index > 0xff)
+            {
+                op(WIDE, opcode);
+                u2(index);
+            }
+            else
+                op(opcode, index);
+        }
+
+        void branch(int opcode, int label)
+        {
+            int position = size;
+            op(opcode);
+            fixups.add(new int[] {size, position, label, 2});
+            u2(0);
+        }
+
+        /** Emits a switch on the int on the stack, jumping to targets[value] */
+        void tableSwitch(int defaultLabel, int[] targets)
+        {
+            int position = size;
+            op(TABLESWITCH);
+            while (size % 4 != 0)
+                op(0);
+            fixups.add(new int[] {size, position, defaultLabel, 4});
+            u4(0);
+            u4(0);
+            u4(Math.max(targets.length - 1, 0));
+            if (targets.length == 0)
+            {
+                fixups.add(new int[] {size, position, defaultLabel, 4});
+                u4(0);
+            }
+            for (int target : targets)
+            {
+                fixups.add(new int[] {size, position, target, 4});
+                u4(0);
+            }
+        }
+
+        byte[] toByteArray()
+        {
+            for (int[] fixup : fixups)
+            {
+                int offset = labels.get(fixup[2]) - fixup[1];
+                if (fixup[3] == 4)
+                {
+                    bytes[fixup[0]] = (byte) (offset >> 24);
+                    bytes[fixup[0] + 1] = (byte) (offset >> 16);
+                    bytes[fixup[0] + 2] = (byte) (offset >> 8);
+                    bytes[fixup[0] + 3] = (byte) offset;
+                }
+                else
+                {
+                    bytes[fixup[0]] = (byte) (offset >> 8);
+                    bytes[fixup[0] + 1] = (byte) offset;
+                }
+            }
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * The constant pool of the generated class, de-duplicating entries
+     */
+    private static final class ConstantPool
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value)
+        {
+            return entry("U" + value, 1, () -> { out.writeByte(1); out.writeUTF(value); });
+        }
+
+        int classRef(String name)
+        {
+            int nameIndex = utf8(name);
+            return entry("C" + name, 1, () -> { out.writeByte(7); out.writeShort(nameIndex); });
+        }
+
+        int fieldRef(int owner, String name, String type)
+        {
+            return memberRef(9, owner, name, type);
+        }
+
+        int methodRef(int owner, String name, String type)
+        {
+            return memberRef(10, owner, name, type);
+        }
+
+        int interfaceMethodRef(int owner, String name, String type)
+        {
+            return memberRef(11, owner, name, type);
+        }
+
+        int intConstant(int value)
+        {
+            return entry("I" + value, 1, () -> { out.writeByte(3); out.writeInt(value); });
+        }
+
+        int longConstant(long value)
+        {
+            return entry("J" + value, 2, () -> { out.writeByte(5); out.writeLong(value); });
+        }
+
+        private int memberRef(int tag, int owner, String name, String type)
+        {
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            int nameAndType = entry("N" + name + type, 1,
+                                    () -> { out.writeByte(12); out.writeShort(nameIndex); out.writeShort(typeIndex); });
+            return entry("M" + tag + owner + "." + name + type, 1,
+                         () -> { out.writeByte(tag); out.writeShort(owner); out.writeShort(nameAndType); });
+        }
+
+        private int entry(String key, int width, EntryWriter writer)
+        {
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+
+            try { writer.write(); }
+            catch (IOException e)
+            {
+                throw new IllegalStateException(e); // Cannot happen writing to memory
+            }
+            entries.put(key, count);
+            count += width;
+            return count - width;
+        }
+
+        void write(DataOutputStream classFile) throws IOException
+        {
+            classFile.writeShort(count);
+            classFile.write(bytes.toByteArray());
+        }
+
+        private interface EntryWriter { void write() throws IOException; }
+    }
+}
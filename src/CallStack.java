@@ -0,0 +1,265 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * The procedure calls a running program is in the middle of, kept in arrays of primitives that are allocated once
+ * and only grown if calls nest deeper than they have before, so that a call allocates nothing.
+ *
+ * Each procedure has slots of its own for its parameters and locals, and cannot see any other variables. A call
+ * saves the procedure's slots in a new frame (they only hold anything if the procedure is recursive), then starts
+ * the procedure with just its parameters defined, copied from the arguments. A return copies the parameters back
+ * to the arguments, and restores the saved slots
+ */
+final class CallStack
+{
+    /** The deepest calls may nest */
+    static final int MAX_DEPTH = 100_000;
+
+    private static final byte UNDEFINED = 0, LONG = 1, WIDE = 2;
+
+    /**
+     * A copy of one frame, for the TimeTravelDebugger to put back when it undoes a return
+     */
+    static final class Frame
+    {
+        private final int callSite;
+        private final long[] values;
+        private final byte[] kinds;
+        private final BigInteger[] wide;    // Null if no value in it is wide
+
+        private Frame(int callSite, long[] values, byte[] kinds, BigInteger[] wide)
+        {
+            this.callSite = callSite;
+            this.values = values;
+            this.kinds = kinds;
+            this.wide = wide;
+        }
+    }
+
+    private final Program program;
+    private int depth = 0;
+    private int[] callSites = new int[64];      // The index of each frame's call
+    private int[] bases = new int[64];          // Where each frame's saved slots start
+    private int top = 0;                        // The end of the saved slots
+    private long[] values = new long[1024];
+    private byte[] kinds = new byte[1024];      // UNDEFINED, LONG or WIDE
+    private BigInteger[] wide = null;           // Created when a wide value is first saved
+    private final long[] arguments;             // The values being passed, between reading and writing them
+    private final BigInteger[] wideArguments;
+
+    /**
+     * @param program The program, which is running with no calls in progress
+     */
+    CallStack(Program program)
+    {
+        this.program = program;
+        int most = 0;
+        for (int pc = 0; pc < program.size(); pc++)
+        {
+            if (program.get(pc).opcode == Opcode.CALL)
+                most = Math.max(most, program.getCallSite((int) program.get(pc).literal).arguments.length);
+        }
+        arguments = new long[most];
+        wideArguments = new BigInteger[most];
+    }
+
+    /** @return The number of calls in progress */
+    int depth() { return depth; }
+
+    /** @return The index of the call made last, which a return goes back to */
+    int caller() { return callSites[depth - 1]; }
+
+    /**
+     * Calls a procedure
+     * @param pc The index of the call
+     * @param registers The variables
+     * @return The index of the procedure's first instruction, or -1 if calls are already MAX_DEPTH deep
+     *         (in which case nothing is changed)
+     */
+    int call(int pc, RegisterFile registers)
+    {
+        if (depth == MAX_DEPTH)
+            return -1;
+        Instruction instruction = program.get(pc);
+        Program.CallSite site = program.getCallSite((int) instruction.literal);
+        int[] slots = site.procedure.slots;
+
+        // The arguments may be the procedure's own slots, if it calls itself, so are read before they are saved
+        read(site.arguments, registers);
+        if (depth == callSites.length)
+        {
+            callSites = Arrays.copyOf(callSites, 2 * depth);
+            bases = Arrays.copyOf(bases, 2 * depth);
+        }
+        callSites[depth] = pc;
+        bases[depth] = top;
+        depth++;
+        reserve(slots.length);
+        for (int slot : slots)
+        {
+            save(top++, slot, registers);
+            registers.delete(slot);
+        }
+        write(site.procedure.parameters, registers);
+        return instruction.target;
+    }
+
+    /**
+     * Returns from the procedure called last
+     * @param registers The variables
+     * @return The index of the instruction after the call
+     * @throws IllegalStateException If no call is in progress
+     */
+    int ret(RegisterFile registers)
+    {
+        if (depth == 0)
+            throw new IllegalStateException("Returned from outside a procedure");
+        depth--;
+        int pc = callSites[depth];
+        Program.CallSite site = program.getCallSite((int) program.get(pc).literal);
+
+        // The arguments may be the procedure's own slots, if it called itself, so are written after they are restored
+        read(site.procedure.parameters, registers);
+        top = bases[depth];
+        int[] slots = site.procedure.slots;
+        for (int i = 0; i < slots.length; i++)
+            restore(top + i, slots[i], registers);
+        write(site.arguments, registers);
+        return pc + 1;
+    }
+
+    /**
+     * @return A copy of the frame of the procedure called last, as it is now
+     */
+    Frame top()
+    {
+        int base = bases[depth - 1];
+        BigInteger[] wideValues = wide != null ? Arrays.copyOfRange(wide, base, top) : null;
+        return new Frame(callSites[depth - 1], Arrays.copyOfRange(values, base, top),
+                         Arrays.copyOfRange(kinds, base, top), wideValues);
+    }
+
+    /**
+     * Puts a frame back, as it was when top() copied it, without changing any variables
+     * @param frame The frame
+     */
+    void push(Frame frame)
+    {
+        if (depth == callSites.length)
+        {
+            callSites = Arrays.copyOf(callSites, 2 * depth);
+            bases = Arrays.copyOf(bases, 2 * depth);
+        }
+        callSites[depth] = frame.callSite;
+        bases[depth] = top;
+        depth++;
+        reserve(frame.values.length);
+        System.arraycopy(frame.values, 0, values, top, frame.values.length);
+        System.arraycopy(frame.kinds, 0, kinds, top, frame.kinds.length);
+        if (frame.wide != null)
+        {
+            if (wide == null)
+                wide = new BigInteger[values.length];
+            System.arraycopy(frame.wide, 0, wide, top, frame.wide.length);
+        }
+        top += frame.values.length;
+    }
+
+    /**
+     * Removes the frame of the procedure called last, without changing any variables
+     */
+    void drop()
+    {
+        depth--;
+        top = bases[depth];
+    }
+
+    /**
+     * @return A copy of the calls in progress, which changes independently of these
+     */
+    CallStack copy()
+    {
+        CallStack copy = new CallStack(program, arguments.length);
+        copy.depth = depth;
+        copy.callSites = callSites.clone();
+        copy.bases = bases.clone();
+        copy.top = top;
+        copy.values = values.clone();
+        copy.kinds = kinds.clone();
+        copy.wide = wide != null ? wide.clone() : null;
+        return copy;
+    }
+
+    private CallStack(Program program, int mostArguments)
+    {
+        this.program = program;
+        arguments = new long[mostArguments];
+        wideArguments = new BigInteger[mostArguments];
+    }
+
+    /** Makes room for a frame of the given size at the top */
+    private void reserve(int size)
+    {
+        if (top + size <= values.length)
+            return;
+        int length = Math.max(2 * values.length, top + size);
+        values = Arrays.copyOf(values, length);
+        kinds = Arrays.copyOf(kinds, length);
+        if (wide != null)
+            wide = Arrays.copyOf(wide, length);
+    }
+
+    private void save(int index, int slot, RegisterFile registers)
+    {
+        if (registers.isWide(slot))
+        {
+            if (wide == null)
+                wide = new BigInteger[values.length];
+            wide[index] = registers.getBig(slot);
+            kinds[index] = WIDE;
+        }
+        else
+        {
+            values[index] = registers.get(slot);
+            kinds[index] = registers.isDefined(slot) ? LONG : UNDEFINED;
+        }
+    }
+
+    private void restore(int index, int slot, RegisterFile registers)
+    {
+        switch (kinds[index])
+        {
+            case WIDE:
+                registers.setBig(slot, wide[index]);
+                wide[index] = null;
+                break;
+            case LONG: registers.set(slot, values[index]); break;
+            default: registers.delete(slot);
+        }
+    }
+
+    /** Reads the values being passed (an undefined variable passes 0) */
+    private void read(int[] slots, RegisterFile registers)
+    {
+        for (int i = 0; i < slots.length; i++)
+        {
+            wideArguments[i] = registers.isWide(slots[i]) ? registers.getBig(slots[i]) : null;
+            arguments[i] = registers.get(slots[i]);
+        }
+    }
+
+    /** Writes the values read last to the given slots, defining them */
+    private void write(int[] slots, RegisterFile registers)
+    {
+        for (int i = 0; i < slots.length; i++)
+        {
+            if (wideArguments[i] != null)
+            {
+                registers.setBig(slots[i], wideArguments[i]);
+                wideArguments[i] = null;
+            }
+            else
+                registers.set(slots[i], arguments[i]);
+        }
+    }
+}
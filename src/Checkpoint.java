@@ -0,0 +1,256 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A snapshot of a running program's state, taken between two instructions: the index of the next instruction,
+ * the number of steps completed, and the variables. There is no loop stack to save, as loops are plain jumps.
+ *
+ * The binary format is, big endian:
+ *   int magic "BBCK", short version, 32 byte SHA-256 hash of the program, byte flags (1 = widening),
+ *   int pc, long steps, int slot count, then for each defined slot (in order):
+ *   varint slot delta (from the previous defined slot + 1), byte kind, and the value:
+ *   kind 0 = zigzag varint long, kind 1 = int length then two's complement bytes of a BigInteger
+ */
+final class Checkpoint
+{
+    private static final int MAGIC = 0x4242434B;    // "BBCK"
+    private static final short VERSION = 1;
+    private static final int FLAG_WIDENING = 1;
+
+    private final byte[] programHash;
+    private final boolean widening;
+    private final int pc;
+    private final long steps;
+    private final RegisterFile registers;   // Without names, which are not saved
+
+    private Checkpoint(byte[] programHash, boolean widening, int pc, long steps, RegisterFile registers)
+    {
+        this.programHash = programHash;
+        this.widening = widening;
+        this.pc = pc;
+        this.steps = steps;
+        this.registers = registers;
+    }
+
+    /**
+     * Writes a checkpoint, replacing the file atomically so that a crash part way through leaves the previous one
+     * @param file The file to write
+     * @param programHash The hash of the running program, from hash()
+     * @param registers Its variables
+     * @param pc The index of the next instruction to execute
+     * @param steps The number of steps completed
+     * @throws IOException If the file cannot be written
+     */
+    static void save(Path file, byte[] programHash, RegisterFile registers, int pc, long steps) throws IOException
+    {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary))))
+        {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.write(programHash);
+            out.writeByte(registers.isWidening() ? FLAG_WIDENING : 0);
+            out.writeInt(pc);
+            out.writeLong(steps);
+            writeVariables(out, registers);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param file The file to read
+     * @return The checkpoint it holds
+     * @throws IOException If the file cannot be read, or is not a checkpoint
+     */
+    static Checkpoint load(Path file) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+        {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a checkpoint");
+            short version = in.readShort();
+            if (version != VERSION)
+                throw new IOException(file + " is a version " + version + " checkpoint, expected " + VERSION);
+            byte[] programHash = new byte[32];
+            in.readFully(programHash);
+            boolean widening = (in.readByte() & FLAG_WIDENING) != 0;
+            int pc = in.readInt();
+            long steps = in.readLong();
+            RegisterFile registers;
+            try
+            {
+                registers = readVariables(in, null, widening);
+            }
+            catch (IOException e)
+            {
+                throw new IOException(file + " is corrupt: " + e.getMessage(), e);
+            }
+            return new Checkpoint(programHash, widening, pc, steps, registers);
+        }
+    }
+
+    /**
+     * Writes the variables in the format described above, from the slot count on
+     * @param out The stream to write to
+     * @param registers The variables
+     * @throws IOException If they cannot be written
+     */
+    static void writeVariables(DataOutputStream out, RegisterFile registers) throws IOException
+    {
+        out.writeInt(registers.size());
+        int next = 0;
+        for (int slot = registers.nextDefined(0); slot >= 0; slot = registers.nextDefined(slot + 1))
+        {
+            writeVarint(out, slot - next);
+            next = slot + 1;
+            if (registers.isWide(slot))
+            {
+                byte[] bytes = registers.getBig(slot).toByteArray();
+                out.writeByte(1);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            else
+            {
+                long value = registers.get(slot);
+                out.writeByte(0);
+                writeVarint(out, (value << 1) ^ (value >> 63));
+            }
+        }
+        writeVarint(out, -1); // End of the slots (no real delta is negative)
+    }
+
+    /**
+     * Reads variables written by writeVariables
+     * @param in The stream to read from
+     * @param names The name of the variable in each slot, or null to leave them unnamed
+     * @param widening True to promote values that overflow a long when the variables are run with
+     * @return The variables
+     * @throws IOException If they cannot be read, or there are not as many as there are names
+     */
+    static RegisterFile readVariables(DataInputStream in, String[] names, boolean widening) throws IOException
+    {
+        int slotCount = in.readInt();
+        if (slotCount < 0 || (names != null && names.length != slotCount))
+            throw new IOException("Expected " + (names == null ? "some" : names.length) + " variables, not " + slotCount);
+
+        RegisterFile registers = new RegisterFile(names != null ? names : new String[slotCount], widening);
+        int slot = 0;
+        for (long delta = readVarint(in); delta != -1; delta = readVarint(in))
+        {
+            if (delta < 0 || delta >= slotCount - slot)
+                throw new IOException("Corrupt variables");
+            slot += (int) delta;
+            if (in.readByte() == 1)
+            {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                registers.setBig(slot, new BigInteger(bytes));
+            }
+            else
+            {
+                long zigzag = readVarint(in);
+                registers.set(slot, (zigzag >>> 1) ^ -(zigzag & 1));
+            }
+            slot++;
+        }
+        return registers;
+    }
+
+    /**
+     * @param program The program to check against
+     * @return True if the checkpoint was taken while running the given program
+     */
+    boolean matches(Program program)
+    {
+        return Arrays.equals(programHash, hash(program)) && registers.size() == program.variableCount()
+                && pc >= 0 && pc <= program.size();
+    }
+
+    /** @return The index of the next instruction to execute */
+    int getPc() { return pc; }
+
+    /** @return The number of steps completed */
+    long getSteps() { return steps; }
+
+    /**
+     * @param names The program's variable names
+     * @return The saved variables
+     */
+    RegisterFile toRegisters(String[] names)
+    {
+        RegisterFile named = new RegisterFile(names, widening);
+        for (int slot = registers.nextDefined(0); slot >= 0; slot = registers.nextDefined(slot + 1))
+            named.setBig(slot, registers.getBig(slot));
+        return named;
+    }
+
+    /**
+     * @return A SHA-256 hash of the program's instructions and variable names (but not its loop summaries,
+     *         which do not change what it does)
+     */
+    static byte[] hash(Program program)
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        for (int pc = 0; pc < program.size(); pc++)
+        {
+            Instruction instruction = program.get(pc);
+            long[] fields = {instruction.opcode.ordinal(), instruction.line, instruction.operand1, instruction.operand2,
+                             instruction.destination, instruction.literal, instruction.target};
+            for (long field : fields)
+            {
+                for (int shift = 56; shift >= 0; shift -= 8)
+                    digest.update((byte) (field >>> shift));
+            }
+        }
+        for (String name : program.getVariableNames())
+        {
+            digest.update(name.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return digest.digest();
+    }
+
+    /** Writes an unsigned LEB128 varint (-1 is written as the largest 10 byte value) */
+    private static void writeVarint(DataOutputStream out, long value) throws IOException
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed checkpoint");
+    }
+}
@@ -0,0 +1,242 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * The compiled form of source code that is being edited, kept up to date line by line so that only the lines
+ * which change are decoded again, and so that every syntax error can be reported while the code is edited.
+ *
+ * The while/end nesting (which procs take part in, as they are also closed by an end) is kept as the depth of
+ * nesting before each line, which is only recomputed from the first edited line until it agrees with the depth
+ * from before the edit. An end which does not close any while is an error, and does not change the depth
+ */
+final class CompilationModel
+{
+    /** One line of source code, and what it decoded to */
+    private static final class Line
+    {
+        final String text;              // Lower case
+        DecodedInstruction decoded;     // Null if the line is blank, a comment, or an error
+        String error;                   // Null unless the line is not a valid statement
+        int decodedAt;                  // The line number it was decoded at, which the above refer to
+        int depth;                      // The number of open whiles and procs before the line
+
+        Line(String text)
+        {
+            this.text = text;
+        }
+    }
+
+    private final List<Line> lines = new ArrayList<>();
+    private int finalDepth = 0;         // The number of whiles left open at the end
+    private Program program = null;     // Built on demand, and dropped on every edit
+
+    /**
+     * @param code The source code to start from
+     */
+    CompilationModel(String code)
+    {
+        String[] texts = code.split("\\r?\\n", -1);
+        replaceLines(0, 0, texts);
+    }
+
+    /**
+     * Starts with no lines, for them to be added one at a time with appendLine
+     */
+    CompilationModel() {}
+
+    /**
+     * Adds a line to the end, and decodes it
+     * @param text The line
+     */
+    void appendLine(String text)
+    {
+        program = null;
+        Line line = new Line(text.toLowerCase());
+        decode(line, lines.size());
+        line.depth = finalDepth;
+        lines.add(line);
+        finalDepth = depthAfter(lines.size() - 1);
+    }
+
+    /** @return The number of lines */
+    int lineCount() { return lines.size(); }
+
+    /**
+     * Replaces some lines, and decodes the new lines
+     * @param from The (0 based) index of the first line to replace
+     * @param removed The number of lines to replace
+     * @param texts The lines to replace them with
+     */
+    void replaceLines(int from, int removed, String[] texts)
+    {
+        program = null;
+        lines.subList(from, from + removed).clear();
+        List<Line> added = new ArrayList<>(texts.length);
+        for (int i = 0; i < texts.length; i++)
+        {
+            Line line = new Line(texts[i].toLowerCase());
+            decode(line, from + i);
+            added.add(line);
+        }
+        lines.addAll(from, added);
+        updateNesting(from, from + texts.length);
+    }
+
+    /**
+     * Recomputes the depth before each line from the first changed line, stopping once the depth
+     * agrees with the old depth of an unchanged line (as nothing after that can have changed)
+     * @param from The first changed line
+     * @param unchanged The first line after the changed ones
+     */
+    private void updateNesting(int from, int unchanged)
+    {
+        int depth = from > 0 ? depthAfter(from - 1) : 0;
+        for (int i = from; i < lines.size(); i++)
+        {
+            Line line = lines.get(i);
+            if (i >= unchanged && line.depth == depth)
+                return;
+            line.depth = depth;
+            depth = depthAfter(i);
+        }
+        finalDepth = depth;
+    }
+
+    private int depthAfter(int i)
+    {
+        Line line = lines.get(i);
+        if (line.decoded == null)
+            return line.depth;
+        switch (line.decoded.getOpcode())
+        {
+            case WHILE:
+            case PROC: return line.depth + 1;
+            case END: return Math.max(line.depth - 1, 0);
+            default: return line.depth;
+        }
+    }
+
+    /**
+     * @return Every error in the code, in line order, with the same messages as the Parser
+     */
+    List<String> getDiagnostics()
+    {
+        // A while is unmatched if the depth never falls back to its own depth after it
+        boolean[] unmatchedWhile = new boolean[lines.size()];
+        if (finalDepth > 0)
+        {
+            int minimumAfter = finalDepth;
+            for (int i = lines.size() - 1; i >= 0; i--)
+            {
+                Line line = lines.get(i);
+                if ((isOpcode(line, Opcode.WHILE) || isOpcode(line, Opcode.PROC)) && minimumAfter > line.depth)
+                    unmatchedWhile[i] = true;
+                minimumAfter = Math.min(minimumAfter, line.depth);
+            }
+        }
+
+        List<DecodedInstruction> decoded = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++)
+        {
+            Line line = current(i);
+            if (line.decoded != null)
+                decoded.add(line.decoded);
+        }
+        SortedMap<Integer, String> procedureErrors = Parser.checkProcedures(decoded);
+
+        List<String> diagnostics = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++)
+        {
+            Line line = current(i);
+            if (line.error != null)
+                diagnostics.add(line.error);
+            else if (isOpcode(line, Opcode.END) && line.depth == 0)
+                diagnostics.add("No matching while for line " + (i + 1) + ": " + line.text);
+            else if (unmatchedWhile[i])
+                diagnostics.add("No matching end for line " + (i + 1) + ": " + line.text);
+            else if (procedureErrors.containsKey(i))
+                diagnostics.add(procedureErrors.get(i));
+        }
+        return diagnostics;
+    }
+
+    /**
+     * @return The compiled program
+     * @throws SyntaxErrorException With the first error, if there are any
+     */
+    Program getProgram() throws SyntaxErrorException
+    {
+        if (program != null)
+            return program;
+
+        FlightEvents.Parse event = new FlightEvents.Parse();
+        event.begin();
+        long start = System.nanoTime();
+        try
+        {
+            List<String> diagnostics = getDiagnostics();
+            if (!diagnostics.isEmpty())
+            {
+                InterpreterMetrics.get().syntaxError();
+                event.error = diagnostics.get(0);
+                throw new SyntaxErrorException(diagnostics.get(0));
+            }
+
+            List<DecodedInstruction> instructions = new ArrayList<>();
+            for (int i = 0; i < lines.size(); i++)
+            {
+                Line line = current(i);
+                if (line.decoded != null)
+                    instructions.add(line.decoded);
+            }
+            program = new Program(instructions.toArray(new DecodedInstruction[0]), lines.size());
+            event.instructions = program.size();
+            return program;
+        }
+        finally
+        {
+            InterpreterMetrics.get().parsed(System.nanoTime() - start);
+            event.lines = lines.size();
+            event.commit();
+        }
+    }
+
+    /**
+     * @return The line at the given index, with its decoded instruction and error referring to that line number
+     */
+    private Line current(int i)
+    {
+        Line line = lines.get(i);
+        if (line.decodedAt != i)
+        {
+            // Moved by an edit above it
+            if (line.error != null)
+                decode(line, i);
+            else if (line.decoded != null)
+                line.decoded = line.decoded.atLine(i);
+            line.decodedAt = i;
+        }
+        return line;
+    }
+
+    private static void decode(Line line, int lineNo)
+    {
+        line.decodedAt = lineNo;
+        line.error = null;
+        try
+        {
+            line.decoded = Parser.decode(line.text, lineNo);
+        }
+        catch (InterpreterException e)
+        {
+            line.decoded = null;
+            line.error = e.getMessage();
+        }
+    }
+
+    private static boolean isOpcode(Line line, Opcode opcode)
+    {
+        return line.decoded != null && line.decoded.getOpcode() == opcode;
+    }
+}
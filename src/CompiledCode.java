@@ -0,0 +1,35 @@
+import java.util.function.IntConsumer;
+
+/**
+ * A Program compiled by the BytecodeCompiler (to JVM bytecode) or the NodeCompiler (to a tree of nodes)
+ */
+interface CompiledCode
+{
+    /**
+     * Runs the program from the given instruction until it completes, until an instruction throws
+     * an ArithmeticException (e.g. division by 0), until it reaches an instruction it leaves to the interpreter
+     * (bytecode leaves loops with a LoopSummary), or until it is cancelled.
+     * The interpreter should then execute that instruction itself, and can call run again from the next one
+     * @param registers The variables to start from, which hold the final variables when this returns
+     * @param trace Called with the instruction index whenever a statement completes, or null for no trace.
+     *              The registers are up to date whenever it is called
+     * @param cancellation Checked whenever it jumps back to an earlier instruction (including each loop iteration),
+     *                     which it hands back if cancelled, so that a loop which completes no statement can be stopped
+     * @param pc The index of the instruction to start from
+     * @return The index of the instruction execution stopped at - the program size if it completed
+     */
+    int run(RegisterFile registers, IntConsumer trace, Cancellation cancellation, int pc);
+
+    /**
+     * @return True if it can run with wide values in the registers, false if only the interpreter can
+     */
+    default boolean handlesWide() { return false; }
+
+    /**
+     * Set from any thread to stop a run. A field rather than a callback, as compiled code reads it on every jump back
+     */
+    final class Cancellation
+    {
+        volatile boolean requested = false;
+    }
+}
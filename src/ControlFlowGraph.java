@@ -0,0 +1,717 @@
+import java.util.*;
+
+/**
+ * The control flow graph of a Program, split into basic blocks: straight-line runs of instructions that are only
+ * entered at their first instruction and only leave from their last, so they can run without any dispatch between
+ * them. Blocks are numbered in program order, and block blockCount() is the exit (the index just past the end).
+ *
+ * Each variable's state (its value and whether it is defined) is treated as one location, which instructions use
+ * (read) and define (overwrite completely). From those, the graph finds the variables live after each instruction
+ * and the definitions reaching each instruction. Every variable is live at the exit, as the final variables are
+ * the program's output.
+ *
+ * It also finds the jumps that make the structure of the program hard to reason about: a goto into the body of a
+ * loop from outside it, and cycles that are not natural loops (irreducible control flow).
+ *
+ * A call is treated as a branch to its procedure or past itself, and a return as a jump to the exit, which is
+ * enough to find the blocks but not to follow variables through calls, so programs with procedures should not
+ * have their dead stores removed
+ */
+final class ControlFlowGraph
+{
+    private final Program program;
+    private final int blockCount;
+    private final int[] blockStart;     // The index of each block's first instruction, then size()
+    private final int[] blockOf;        // The block of each instruction, then the exit
+    private final int[][] successors;
+    private final int[][] predecessors;
+    private final int[] idom;           // The immediate dominator of each block, or -1 if unreachable (or the entry)
+    private final List<String> warnings = new ArrayList<>();
+
+    private final BitSet[] use;         // The variables a block uses before it defines them
+    private final BitSet[] def;
+    private final BitSet[] liveOut;
+    // Reaching definitions, found on demand. A definition is one variable defined (or marked) by one instruction
+    private int[] firstDefinition;      // The first definition of each instruction, then the number of definitions
+    private int[] definitionPc;         // The instruction of each definition
+    private BitSet[] definitionsOf;     // The definitions of each variable
+    private BitSet[] reachIn;           // The definitions that reach the start of each block
+
+    private ControlFlowGraph(Program program)
+    {
+        this.program = program;
+        int size = program.size();
+
+        // A block starts at the entry, at every jump target, and after every jump
+        boolean[] leader = new boolean[size + 1];
+        leader[0] = true;
+        leader[size] = true;
+        for (int pc = 0; pc < size; pc++)
+        {
+            Instruction instruction = program.get(pc);
+            if (isJump(instruction))
+            {
+                if (instruction.target != Instruction.NONE)
+                    leader[instruction.target] = true;
+                leader[pc + 1] = true;
+            }
+        }
+
+        blockOf = new int[size + 1];
+        List<Integer> starts = new ArrayList<>();
+        for (int pc = 0; pc <= size; pc++)
+        {
+            if (leader[pc] && pc < size)
+                starts.add(pc);
+            blockOf[pc] = pc < size ? starts.size() - 1 : starts.size();
+        }
+        blockCount = starts.size();
+        blockStart = new int[blockCount + 1];
+        for (int b = 0; b < blockCount; b++)
+            blockStart[b] = starts.get(b);
+        blockStart[blockCount] = size;
+
+        successors = new int[blockCount + 1][];
+        List<List<Integer>> incoming = new ArrayList<>();
+        for (int b = 0; b <= blockCount; b++)
+            incoming.add(new ArrayList<>());
+        for (int b = 0; b < blockCount; b++)
+        {
+            int last = blockStart[b + 1] - 1;
+            Instruction instruction = program.get(last);
+            switch (instruction.opcode)
+            {
+                case IFP:
+                case IFZ:
+                case WHILE: successors[b] = distinct(blockOf[last + 1], blockOf[instruction.target]); break;
+                case END:
+                case PROC: successors[b] = new int[] {blockOf[instruction.target]}; break;
+                case CALL: successors[b] = distinct(blockOf[last + 1], blockOf[instruction.target]); break;
+                case RETURN: successors[b] = new int[] {blockCount}; break;
+                default: successors[b] = new int[] {blockOf[last + 1]};
+            }
+            for (int successor : successors[b])
+                incoming.get(successor).add(b);
+        }
+        successors[blockCount] = new int[0];
+        predecessors = new int[blockCount + 1][];
+        for (int b = 0; b <= blockCount; b++)
+            predecessors[b] = incoming.get(b).stream().mapToInt(Integer::intValue).toArray();
+
+        idom = dominators();
+        findUnsafeJumps();
+        findIrreducibleLoops();
+
+        use = new BitSet[blockCount + 1];
+        def = new BitSet[blockCount + 1];
+        for (int b = 0; b <= blockCount; b++)
+        {
+            use[b] = new BitSet();
+            def[b] = new BitSet();
+            for (int pc = blockStart[b]; pc < blockEnd(b); pc++)
+            {
+                BitSet uses = uses(program.get(pc));
+                // An instruction that fails stops the program, which outputs every variable as it was
+                if (canFail(program.get(pc)))
+                    uses.set(0, program.variableCount());
+                uses.andNot(def[b]);
+                use[b].or(uses);
+                def[b].or(defines(program.get(pc)));
+            }
+        }
+        use[blockCount].set(0, program.variableCount()); // The output
+        liveOut = liveness();
+    }
+
+    /**
+     * @param program The program to analyse
+     * @return Its control flow graph, with liveness and reaching definitions
+     */
+    static ControlFlowGraph build(Program program)
+    {
+        return new ControlFlowGraph(program);
+    }
+
+    /** @return The number of basic blocks, not counting the exit */
+    int blockCount() { return blockCount; }
+
+    /** @return The index of the first instruction of a block */
+    int blockStart(int block) { return blockStart[block]; }
+
+    /** @return The index just past the last instruction of a block */
+    int blockEnd(int block) { return block < blockCount ? blockStart[block + 1] : blockStart[block]; }
+
+    /** @return The block an instruction is in (or the exit, for size()) */
+    int blockOf(int pc) { return blockOf[pc]; }
+
+    /** @return The blocks that can run straight after a block */
+    int[] successors(int block) { return successors[block].clone(); }
+
+    /** @return The blocks that can run straight before a block */
+    int[] predecessors(int block) { return predecessors[block].clone(); }
+
+    /** @return True if a block can run at all */
+    boolean isReachable(int block) { return block == 0 || idom[block] >= 0; }
+
+    /**
+     * @return True if every path from the entry to block b passes through block a
+     */
+    boolean dominates(int a, int b)
+    {
+        if (!isReachable(b))
+            return false;
+        for (int block = b; block != 0; block = idom[block])
+        {
+            if (block == a)
+                return true;
+        }
+        return a == 0;
+    }
+
+    /**
+     * @return A line describing each goto into a loop, then each irreducible loop
+     */
+    List<String> getWarnings() { return Collections.unmodifiableList(warnings); }
+
+    /** @return True if no goto jumps into a loop and every cycle is a natural loop */
+    boolean isStructured() { return warnings.isEmpty(); }
+
+    /**
+     * @param pc An instruction index
+     * @return The register slots whose values can still be read (or output) after the instruction runs
+     */
+    BitSet liveAfter(int pc)
+    {
+        int block = blockOf[pc];
+        BitSet live = (BitSet) liveOut[block].clone();
+        for (int i = blockEnd(block) - 1; i > pc; i--)
+            transferLiveness(program.get(i), live);
+        return live;
+    }
+
+    /**
+     * @param pc An instruction index
+     * @return The instructions whose definitions can reach the instruction, including those which only mark an
+     *         operand as defined (variables that may still be unset from the start of the program are not included)
+     */
+    BitSet reachingDefinitions(int pc)
+    {
+        BitSet instructions = new BitSet();
+        BitSet reaching = reachingBefore(pc);
+        for (int d = reaching.nextSetBit(0); d >= 0; d = reaching.nextSetBit(d + 1))
+            instructions.set(definitionPc[d]);
+        return instructions;
+    }
+
+    /** @return The definitions that reach an instruction */
+    private BitSet reachingBefore(int pc)
+    {
+        if (reachIn == null)
+            reachIn = reachingDefinitions();
+        // The definitions in the block before the instruction, latest first, then those reaching the block
+        int block = blockOf[pc];
+        BitSet reaching = new BitSet();
+        BitSet killed = new BitSet();
+        for (int i = pc - 1; i >= blockStart[block]; i--)
+            addDefinitions(i, killed, reaching);
+        BitSet reachingBlock = (BitSet) reachIn[block].clone();
+        for (int slot = killed.nextSetBit(0); slot >= 0; slot = killed.nextSetBit(slot + 1))
+            reachingBlock.andNot(definitionsOf[slot]);
+        reaching.or(reachingBlock);
+        return reaching;
+    }
+
+    /**
+     * Removes every instruction whose only effect is to set variables that are never read again, nor output,
+     * such as a clear followed by an assignment, or an incr of a variable that is later deleted, and every del
+     * of a variable that cannot be defined by then.
+     * Only clear, assign, del, incr, decr and swap are removed: copy and arithmetic also define their operands,
+     * and divide can fail. The final variables are the same, but fewer steps run, so should not be used when
+     * every step is traced
+     * @param report Has a line added describing each instruction that is removed
+     * @return The program without its dead stores (this graph's program, if it has none)
+     */
+    Program eliminateDeadStores(List<String> report)
+    {
+        String[] names = program.getVariableNames();
+        ControlFlowGraph graph = this;
+        while (true)
+        {
+            // Each kind of removal assumes the instructions the other kind would remove are still there
+            String reason = "dead store";
+            boolean[] removed = graph.deadStores();
+            if (removed == null)
+            {
+                reason = "del of an unset variable";
+                removed = graph.redundantDeletes();
+            }
+            if (removed == null)
+                return graph.program;
+            for (int pc = 0; pc < removed.length; pc++)
+            {
+                Instruction instruction = graph.program.get(pc);
+                if (removed[pc])
+                    report.add("Line " + (instruction.line + 1) + ": removed " + reason + ", "
+                               + describe(instruction, names));
+            }
+            // Removing a store can leave the stores before it dead too
+            graph = new ControlFlowGraph(graph.program.without(removed));
+        }
+    }
+
+    /** @return Which instructions only set variables that are not live afterwards, or null if none do */
+    private boolean[] deadStores()
+    {
+        boolean[] removed = new boolean[program.size()];
+        boolean any = false;
+        for (int b = 0; b < blockCount; b++)
+        {
+            BitSet live = (BitSet) liveOut[b].clone();
+            for (int pc = blockEnd(b) - 1; pc >= blockStart[b]; pc--)
+            {
+                Instruction instruction = program.get(pc);
+                if (isRemovable(instruction) && !defines(instruction).intersects(live))
+                {
+                    removed[pc] = any = true;
+                    continue;   // So it uses nothing either
+                }
+                transferLiveness(instruction, live);
+            }
+        }
+        return any ? removed : null;
+    }
+
+    /** @return Which instructions are redundant deletes, or null if none are */
+    private boolean[] redundantDeletes()
+    {
+        boolean[] removed = new boolean[program.size()];
+        boolean any = false;
+        for (int pc = 0; pc < program.size(); pc++)
+        {
+            if (isRedundantDelete(pc))
+                removed[pc] = any = true;
+        }
+        return any ? removed : null;
+    }
+
+    /**
+     * @return True if an instruction is a del of a variable that cannot be defined when it runs (as it is only
+     *         ever deleted, if anything, before then)
+     */
+    private boolean isRedundantDelete(int pc)
+    {
+        Instruction instruction = program.get(pc);
+        if (instruction.opcode != Opcode.DEL)
+            return false;
+        int slot = instruction.operand1;
+        int block = blockOf[pc];
+        for (int i = pc - 1; i >= blockStart[block]; i--)
+        {
+            Instruction before = program.get(i);
+            if (defines(before).get(slot))
+                return before.opcode == Opcode.DEL;
+            if (marksDefined(before).get(slot))
+                return false;
+        }
+        if (reachIn == null)
+            reachIn = reachingDefinitions();
+        BitSet reaching = (BitSet) reachIn[block].clone();
+        reaching.and(definitionsOf[slot]);
+        for (int d = reaching.nextSetBit(0); d >= 0; d = reaching.nextSetBit(d + 1))
+        {
+            if (program.get(definitionPc[d]).opcode != Opcode.DEL)
+                return false;
+        }
+        return true;
+    }
+
+    private int[] dominators()
+    {
+        // Cooper, Harvey & Kennedy's iterative algorithm, over a reverse postorder
+        int[] order = reversePostorder();
+        int[] position = new int[blockCount + 1];
+        Arrays.fill(position, -1);
+        for (int i = 0; i < order.length; i++)
+            position[order[i]] = i;
+
+        int[] dominator = new int[blockCount + 1];
+        Arrays.fill(dominator, -1);
+        dominator[0] = 0;
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            for (int i = 1; i < order.length; i++)
+            {
+                int block = order[i];
+                int newIdom = -1;
+                for (int predecessor : predecessors[block])
+                {
+                    if (dominator[predecessor] < 0)
+                        continue;
+                    if (newIdom < 0)
+                        newIdom = predecessor;
+                    else
+                    {
+                        // Intersect
+                        int a = predecessor, b = newIdom;
+                        while (a != b)
+                        {
+                            while (position[a] > position[b])
+                                a = dominator[a];
+                            while (position[b] > position[a])
+                                b = dominator[b];
+                        }
+                        newIdom = a;
+                    }
+                }
+                if (dominator[block] != newIdom)
+                {
+                    dominator[block] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+        dominator[0] = -1;
+        return dominator;
+    }
+
+    private int[] reversePostorder()
+    {
+        int[] order = new int[blockCount + 1];
+        int count = 0;
+        boolean[] visited = new boolean[blockCount + 1];
+        Deque<int[]> stack = new ArrayDeque<>();   // {block, next successor to visit}
+        stack.push(new int[] {0, 0});
+        visited[0] = true;
+        while (!stack.isEmpty())
+        {
+            int[] top = stack.peek();
+            if (top[1] < successors[top[0]].length)
+            {
+                int successor = successors[top[0]][top[1]++];
+                if (!visited[successor])
+                {
+                    visited[successor] = true;
+                    stack.push(new int[] {successor, 0});
+                }
+            }
+            else
+                order[count++] = stack.pop()[0];
+        }
+        int[] reversed = new int[count];
+        for (int i = 0; i < count; i++)
+            reversed[i] = order[count - 1 - i];
+        return reversed;
+    }
+
+    /** Finds gotos that land inside a loop's body from outside the loop */
+    private void findUnsafeJumps()
+    {
+        for (int pc = 0; pc < program.size(); pc++)
+        {
+            Instruction jump = program.get(pc);
+            if (jump.opcode != Opcode.IFP && jump.opcode != Opcode.IFZ)
+                continue;
+            // The innermost loop around the target (if it contains the goto, so do the loops around it)
+            for (int start = jump.target - 1; start >= 0; start--)
+            {
+                Instruction loop = program.get(start);
+                if (loop.opcode != Opcode.WHILE || loop.target <= jump.target)
+                    continue;
+                int end = loop.target - 1;
+                if (pc < start || pc > end)
+                    warnings.add("Line " + (jump.line + 1) + ": goto jumps into the loop at line " + (loop.line + 1));
+                break;
+            }
+        }
+    }
+
+    /** Finds cycles entered other than through a block that dominates the rest of them */
+    private void findIrreducibleLoops()
+    {
+        // An edge back to a block still being visited closes a cycle, which is a natural loop if its target dominates
+        int[] state = new int[blockCount + 1];    // 0 = unvisited, 1 = on the stack, 2 = done
+        Deque<int[]> stack = new ArrayDeque<>();
+        stack.push(new int[] {0, 0});
+        state[0] = 1;
+        while (!stack.isEmpty())
+        {
+            int[] top = stack.peek();
+            if (top[1] >= successors[top[0]].length)
+            {
+                state[stack.pop()[0]] = 2;
+                continue;
+            }
+            int successor = successors[top[0]][top[1]++];
+            if (state[successor] == 0)
+            {
+                state[successor] = 1;
+                stack.push(new int[] {successor, 0});
+            }
+            else if (state[successor] == 1 && !dominates(successor, top[0]))
+            {
+                warnings.add("Line " + (program.get(blockEnd(top[0]) - 1).line + 1)
+                             + ": irreducible loop, entered other than through line "
+                             + (program.get(blockStart[successor]).line + 1));
+            }
+        }
+    }
+
+    private BitSet[] liveness()
+    {
+        BitSet[] out = new BitSet[blockCount + 1];
+        BitSet[] in = new BitSet[blockCount + 1];
+        for (int b = 0; b <= blockCount; b++)
+        {
+            out[b] = new BitSet();
+            in[b] = (BitSet) use[b].clone();
+        }
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            for (int b = blockCount - 1; b >= 0; b--)
+            {
+                BitSet newOut = new BitSet();
+                for (int successor : successors[b])
+                    newOut.or(in[successor]);
+                if (newOut.equals(out[b]))
+                    continue;
+                out[b] = newOut;
+                BitSet newIn = (BitSet) newOut.clone();
+                newIn.andNot(def[b]);
+                newIn.or(use[b]);
+                in[b] = newIn;
+                changed = true;
+            }
+        }
+        return out;
+    }
+
+    private BitSet[] reachingDefinitions()
+    {
+        definitionsOf = new BitSet[program.variableCount()];
+        for (int slot = 0; slot < definitionsOf.length; slot++)
+            definitionsOf[slot] = new BitSet();
+        firstDefinition = new int[program.size() + 1];
+        List<Integer> pcs = new ArrayList<>();
+        for (int pc = 0; pc < program.size(); pc++)
+        {
+            firstDefinition[pc] = pcs.size();
+            BitSet defined = defines(program.get(pc));
+            defined.or(marksDefined(program.get(pc)));
+            for (int slot = defined.nextSetBit(0); slot >= 0; slot = defined.nextSetBit(slot + 1))
+            {
+                definitionsOf[slot].set(pcs.size());
+                pcs.add(pc);
+            }
+        }
+        firstDefinition[program.size()] = pcs.size();
+        definitionPc = pcs.stream().mapToInt(Integer::intValue).toArray();
+
+        // The definitions each block makes that last to its end, and the definitions it replaces
+        BitSet[] gen = new BitSet[blockCount + 1];
+        BitSet[] kill = new BitSet[blockCount + 1];
+        for (int b = 0; b <= blockCount; b++)
+        {
+            gen[b] = new BitSet();
+            kill[b] = new BitSet();
+            BitSet killed = new BitSet();
+            for (int pc = blockEnd(b) - 1; pc >= blockStart[b]; pc--)
+                addDefinitions(pc, killed, gen[b]);
+            for (int slot = killed.nextSetBit(0); slot >= 0; slot = killed.nextSetBit(slot + 1))
+                kill[b].or(definitionsOf[slot]);
+        }
+
+        BitSet[] in = new BitSet[blockCount + 1];
+        BitSet[] out = new BitSet[blockCount + 1];
+        for (int b = 0; b <= blockCount; b++)
+        {
+            in[b] = new BitSet();
+            out[b] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            for (int b = 0; b <= blockCount; b++)
+            {
+                BitSet newIn = new BitSet();
+                for (int predecessor : predecessors[b])
+                    newIn.or(out[predecessor]);
+                BitSet newOut = (BitSet) newIn.clone();
+                newOut.andNot(kill[b]);
+                newOut.or(gen[b]);
+                in[b] = newIn;
+                if (!newOut.equals(out[b]))
+                {
+                    out[b] = newOut;
+                    changed = true;
+                }
+            }
+        }
+        return in;
+    }
+
+    /** Moves the live variables from after an instruction to before it */
+    private void transferLiveness(Instruction instruction, BitSet live)
+    {
+        if (canFail(instruction))
+        {
+            // As it may stop the program before it changes anything, every variable is output as it is
+            live.set(0, program.variableCount());
+            return;
+        }
+        live.andNot(defines(instruction));
+        live.or(uses(instruction));
+    }
+
+    /**
+     * Adds an instruction's definitions of the variables that are not defined again later on, working backwards
+     * @param pc The instruction
+     * @param killed The variables defined later on, which has the instruction's definitions added
+     * @param reaching The definitions so far
+     */
+    private void addDefinitions(int pc, BitSet killed, BitSet reaching)
+    {
+        // Marking an operand as defined only changes it if it was not, so does not replace its other definitions
+        BitSet defined = defines(program.get(pc));
+        BitSet touched = marksDefined(program.get(pc));
+        touched.or(defined);
+        int d = firstDefinition[pc];
+        for (int slot = touched.nextSetBit(0); slot >= 0; slot = touched.nextSetBit(slot + 1), d++)
+        {
+            if (!killed.get(slot))
+                reaching.set(d);
+        }
+        killed.or(defined);
+    }
+
+    /** @return The register slots an instruction reads */
+    static BitSet uses(Instruction instruction)
+    {
+        BitSet slots = new BitSet();
+        switch (instruction.opcode)
+        {
+            case INCR:
+            case DECR:
+            case COPY:
+            case IFP:
+            case IFZ:
+            case WHILE: slots.set(instruction.operand1); break;
+            case SWAP:
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+                slots.set(instruction.operand1);
+                slots.set(instruction.operand2);
+                break;
+            default:
+        }
+        return slots;
+    }
+
+    /**
+     * @return The register slots an instruction overwrites completely (an operand that is only marked as defined,
+     *         keeping its value, is not included)
+     */
+    static BitSet defines(Instruction instruction)
+    {
+        BitSet slots = new BitSet();
+        switch (instruction.opcode)
+        {
+            case CLEAR:
+            case INCR:
+            case DECR:
+            case DEL: slots.set(instruction.operand1); break;
+            case SWAP:
+                slots.set(instruction.operand1);
+                slots.set(instruction.operand2);
+                break;
+            case COPY: slots.set(instruction.operand2); break;
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+            case ASSIGN: slots.set(instruction.destination); break;
+            default:
+        }
+        return slots;
+    }
+
+    /** @return The register slots an instruction marks as defined, if they are not already, keeping their values */
+    static BitSet marksDefined(Instruction instruction)
+    {
+        BitSet slots = new BitSet();
+        switch (instruction.opcode)
+        {
+            case COPY:
+            case IFP:
+            case IFZ: slots.set(instruction.operand1); break;
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+                slots.set(instruction.operand1);
+                slots.set(instruction.operand2);
+                break;
+            default:
+        }
+        return slots;
+    }
+
+    private static boolean isJump(Instruction instruction)
+    {
+        switch (instruction.opcode)
+        {
+            case IFP:
+            case IFZ:
+            case WHILE:
+            case END:
+            case PROC:
+            case CALL:
+            case RETURN: return true;
+            default: return false;
+        }
+    }
+
+    /**
+     * @return True if an instruction can stop the program with an ArithmeticException (divide by 0, or a multiply
+     *         whose result would go over RegisterFile.limitBits), which makes every variable live before it
+     */
+    private static boolean canFail(Instruction instruction)
+    {
+        return instruction.opcode == Opcode.DIVIDE || instruction.opcode == Opcode.MULTIPLY;
+    }
+
+    private static boolean isRemovable(Instruction instruction)
+    {
+        switch (instruction.opcode)
+        {
+            case CLEAR:
+            case ASSIGN:
+            case DEL:
+            case INCR:
+            case DECR:
+            case SWAP: return true;
+            default: return false;
+        }
+    }
+
+    private static int[] distinct(int a, int b)
+    {
+        return a == b ? new int[] {a} : new int[] {a, b};
+    }
+
+    private static String describe(Instruction instruction, String[] names)
+    {
+        switch (instruction.opcode)
+        {
+            case ASSIGN: return names[instruction.destination] + " = " + instruction.literal;
+            case SWAP: return "swap " + names[instruction.operand1] + " with " + names[instruction.operand2];
+            default: return instruction.opcode.name().toLowerCase() + " " + names[instruction.operand1];
+        }
+    }
+}
@@ -1,132 +1,75 @@
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-// TODO: document
-// TODO: create subclasses to remove the ambiguty of operator1/2/dest
-
-class DecodedInstruction
+/**
+ * A single line of Bare Bones source decoded into its operation and operands.
+ * Instances are immutable and are only created by the Parser, once per line, before execution starts
+ * (or moved to another line by the CompilationModel, when lines are inserted or removed above them)
+ */
+final class DecodedInstruction
 {
+    private final Opcode opcode;
+    Opcode getOpcode() { return opcode; }
 
-    private String instruction = "";
-    String getInstruction() { return !instruction.equals("") ? instruction : null; }
-
-    private String operator1 = "";
-    String getOperator1() { return !operator1.equals("") ? operator1 : null; }
-
-    private String operator2 = "";
-    String getOperator2() { return !operator2.equals("") ? operator2 : null; }
-
-    private String destination = "";
-    String getDestination(){ return !destination.equals("") ? destination : null; }
-
-    DecodedInstruction(String line)
-    {
-        Pattern variablePattern = Pattern.compile(Interpreter.UNARY_OPERATOR_REG_EX);
-        Matcher variableMatcher = variablePattern.matcher(line);
-        variableMatcher.find();
-
-        // TODO: REDO (maybe like the GUI pattern matching with groups)
-
-        try
-        {
-            instruction = variableMatcher.group(1);
-            operator1 = variableMatcher.group(2);
-        }
-        catch (IllegalStateException e)
-        {
-            Pattern whilePattern = Pattern.compile(Interpreter.WHILE_REG_EX);
-            Matcher whileMatcher = whilePattern.matcher(line);
-            whileMatcher.find();
+    private final int line;
+    /** @return the (0 based) index of the source line this instruction was decoded from */
+    int getLine() { return line; }
 
-            try
-            {
-                instruction = whileMatcher.group(1);
-                operator1 = whileMatcher.group(2);
-            }
-            catch (IllegalStateException e2)
-            {
-                Pattern endPattern = Pattern.compile(Interpreter.END_REG_EX);
-                Matcher endMatcher = endPattern.matcher(line);
-                endMatcher.find();
+    private final String operator1;
+    String getOperator1() { return operator1; }
 
-                try
-                {
-                    instruction = endMatcher.group(1);
-                }
-                catch (IllegalStateException e3)
-                {
+    private final String operator2;
+    String getOperator2() { return operator2; }
 
-                    Pattern binaryPattern = Pattern.compile(Interpreter.SWAP_REG_EX);
-                    Matcher binaryMatcher = binaryPattern.matcher(line);
-                    binaryMatcher.find();
+    private final String destination;
+    String getDestination() { return destination; }
 
-                    try
-                    {
-                        instruction = binaryMatcher.group(1);
-                        operator1 = binaryMatcher.group(2);
-                        operator2 = binaryMatcher.group(3);
-                    }
-                    catch (IllegalStateException e4)
-                    {
-                        Matcher binaryMiddleMatcher = Pattern.compile(Interpreter.BINARY_OPERATOR_REG_EX).matcher(line);
-                        binaryMiddleMatcher.find();
-                        try
-                        {
-                            instruction = binaryMiddleMatcher.group(3);
-                            operator1 = binaryMiddleMatcher.group(2);
-                            operator2 = binaryMiddleMatcher.group(4);
-                            destination = binaryMiddleMatcher.group(1);
-                        }
-                        catch (IllegalStateException e5)
-                        {
-                            Matcher copyToMatcher = Pattern.compile(Interpreter.COPY_TO_REG_EX).matcher(line);
-                            copyToMatcher.find();
+    private final long literal;
+    /** @return the value of an assignment, or the (1 based) line number of a goto */
+    long getLiteral() { return literal; }
 
-                            try
-                            {
-                                instruction = copyToMatcher.group(1);
-                                operator1 = copyToMatcher.group(2);
-                                operator2 = copyToMatcher.group(3);
-                            }
-                            catch (IllegalStateException e6)
-                            {
-                                Matcher assignmentMatcher = Pattern.compile(Interpreter.ASSIGNMENT_REG_EX).matcher(line);
-                                assignmentMatcher.find();
-                                try
-                                {
-                                       destination = assignmentMatcher.group(1);
-                                       operator1 = assignmentMatcher.group(3);
-                                       instruction = assignmentMatcher.group(2);
-                                }
-                                catch (IllegalStateException e7) {
+    private final String procedure;
+    /** @return the name of the procedure a proc defines or a call calls, or null */
+    String getProcedure() { return procedure; }
 
-                                    Matcher ifMatcher = Pattern.compile(Interpreter.IF_REG_EX).matcher(line);
-                                    ifMatcher.find();
-                                    try
-                                    {
-                                        instruction = ifMatcher.group(1);
-                                        operator1 = ifMatcher.group(2);
-                                        destination = ifMatcher.group(3);
-                                    }
-                                    catch (IllegalStateException e8) {
-                                        // There is a syntactically valid line which is not matched by the RegEx...
-                                        // Should never happen
-                                        operator1 = "";
-                                        operator2 = "";
-                                        instruction = "";
-                                        destination = "";
-                                    }
-                                }
-                            }
-                        }
+    private final String[] arguments;
+    /** @return the parameters of a proc or the arguments of a call, in order (empty for other instructions) */
+    String[] getArguments() { return arguments.clone(); }
 
-                    }
+    DecodedInstruction(Opcode opcode, int line, String operator1, String operator2, String destination, long literal)
+    {
+        this(opcode, line, operator1, operator2, destination, literal, null, new String[0]);
+    }
 
-                }
-            }
-        }
+    /**
+     * Decodes a proc or a call
+     */
+    DecodedInstruction(Opcode opcode, int line, String procedure, String[] arguments)
+    {
+        this(opcode, line, null, null, null, 0, procedure, arguments);
     }
 
+    private DecodedInstruction(Opcode opcode, int line, String operator1, String operator2, String destination,
+                               long literal, String procedure, String[] arguments)
+    {
+        this.opcode = opcode;
+        this.line = line;
+        this.operator1 = operator1;
+        this.operator2 = operator2;
+        this.destination = destination;
+        this.literal = literal;
+        this.procedure = procedure;
+        this.arguments = arguments;
+    }
 
+    DecodedInstruction(Opcode opcode, int line, String operator1, String operator2, String destination)
+    {
+        this(opcode, line, operator1, operator2, destination, 0);
+    }
 
+    /**
+     * @param newLine The (0 based) index of the line the instruction has moved to
+     * @return The same instruction on the given line
+     */
+    DecodedInstruction atLine(int newLine)
+    {
+        return new DecodedInstruction(opcode, newLine, operator1, operator2, destination, literal, procedure, arguments);
+    }
 }
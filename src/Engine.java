@@ -0,0 +1,12 @@
+/**
+ * The ways the Interpreter can execute a Program
+ */
+enum Engine
+{
+    /** Executes one instruction at a time on the jump-table VM */
+    INTERPRETER,
+    /** Compiles the program to JVM bytecode (see BytecodeCompiler), falling back to the VM if it cannot */
+    BYTECODE,
+    /** Compiles the program to a tree of pre-bound nodes (see NodeCompiler), falling back to the VM if it cannot */
+    NODES
+}
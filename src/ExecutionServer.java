@@ -0,0 +1,503 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs Bare Bones programs submitted over HTTP on localhost, as an alternative to the GUI and the BatchRunner.
+ *
+ * POST /run with the source code as the body, and any of these query parameters:
+ *   engine=interpreter|bytecode|nodes, optimise=true, wide=true,
+ *   max-steps=N, timeout=MS, max-memory=MB (each no more than the server's own limit, which applies if not given),
+ *   trace=MODE[:N] to stream the trace as the program runs (the modes are as for BatchRunner's --trace)
+ * The response is the result as JSON: {"status": "ok", "steps": 8, "millis": 0.512, "variables": {"x": 3}},
+ * where the status is ok, stopped (by a limit) or error, and the last two have a "message". With a trace the
+ * response is text/plain instead: the trace, and then RESULT_PREFIX and the result on the last line.
+ * Requests that cannot run at all (e.g. with a syntax error) get 400 and just the status and message, as does
+ * any other failure of the server with 500.
+ *
+ * At most a given number of programs run at once, on a fixed pool of worker threads, and at most a given number
+ * more wait for a worker. Any more are turned away at once with 503 Service Unavailable, so that the server
+ * still answers quickly when it is overloaded. Programs are parsed once and then kept in a ProgramCache.
+ *
+ * The memory limit is on what a run allocates (its trace included), measured on its worker thread, as a
+ * program's variables are allocated as they widen rather than all at once. It can only stop a run between steps,
+ * as can the time limit, so the products of wide values are also limited in size, so that no one step can take
+ * too long
+ */
+final class ExecutionServer
+{
+    static final String PATH = "/run";
+    static final String RESULT_PREFIX = "#result ";
+    private static final int MAX_SOURCE_BYTES = 1 << 20;
+    private static final long MEMORY_CHECK_MILLIS = 10;
+
+    private static final String USAGE = String.join("\n",
+            "Usage: --serve [options]",
+            "  --port N             the port to listen on, on localhost (default: 8080)",
+            "  --workers N          programs to run at once (default: number of cores)",
+            "  --queue N            requests to hold while every worker is busy (default: 4 per worker)",
+            "  --max-steps N        the most steps a request may run (default: no limit)",
+            "  --timeout MS         the longest a request may run (default: 10000)",
+            "  --max-memory MB      the most a request may allocate (default: 256)",
+            "  --max-value-bits N   the most bits a product of wide values may have (default: 1048576)",
+            "  --cached-programs N  parsed programs to keep (default: 256)");
+
+    private int port = 8080;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int queue = -1;
+    private long maxSteps = Long.MAX_VALUE;
+    private long timeoutMillis = 10_000;
+    private long maxMemoryMegabytes = 256;
+    private int maxValueBits = 1 << 20;
+    private int cachedPrograms = 256;
+
+    private ProgramCache programs;
+    private ExecutorService pool;
+    private Semaphore admission;                    // A permit for each worker, and each place in the queue
+    private ScheduledExecutorService watchdog;      // Checks the memory limit
+    private com.sun.management.ThreadMXBean threads;
+    private final LongAdder rejected = new LongAdder();
+
+    private ExecutionServer() {}
+
+    /**
+     * Runs the server until the JVM is stopped
+     * @param args The command line arguments, after --serve
+     * @return The exit status, only if the server could not start: 1 if it could not listen, 2 if the arguments
+     *         are invalid
+     */
+    static int run(String[] args)
+    {
+        ExecutionServer server = new ExecutionServer();
+        try
+        {
+            server.parseArguments(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        HttpServer http;
+        try
+        {
+            http = server.start();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not listen on port " + server.port + ": " + e.getMessage());
+            return 1;
+        }
+        System.out.printf("Listening on http://%s:%d%s with %d workers and a queue of %d%n",
+                http.getAddress().getHostString(), http.getAddress().getPort(), PATH, server.workers, server.queue);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            http.stop(0);
+            System.out.println("Stopped. Program cache: " + server.programs + ", " + server.rejected.sum()
+                               + " requests turned away");
+        }));
+        try
+        {
+            new CountDownLatch(1).await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+
+    private void parseArguments(String[] args)
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            switch (arg)
+            {
+                case "--port": port = Integer.parseInt(value(args, ++i, arg)); break;
+                case "--workers": workers = Integer.parseInt(value(args, ++i, arg)); break;
+                case "--queue": queue = Integer.parseInt(value(args, ++i, arg)); break;
+                case "--max-steps": maxSteps = Long.parseLong(value(args, ++i, arg)); break;
+                case "--timeout": timeoutMillis = Long.parseLong(value(args, ++i, arg)); break;
+                case "--max-memory": maxMemoryMegabytes = Long.parseLong(value(args, ++i, arg)); break;
+                case "--max-value-bits": maxValueBits = Integer.parseInt(value(args, ++i, arg)); break;
+                case "--cached-programs": cachedPrograms = Integer.parseInt(value(args, ++i, arg)); break;
+                default: throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (workers < 1)
+            throw new IllegalArgumentException("--workers must be at least 1");
+        if (queue < 0)
+            queue = 4 * workers;
+        if (timeoutMillis < 1 || maxMemoryMegabytes < 1 || maxSteps < 1 || cachedPrograms < 1)
+            throw new IllegalArgumentException("Limits must be at least 1");
+        if (maxValueBits < 2 * Long.SIZE)
+            throw new IllegalArgumentException("--max-value-bits must be at least " + 2 * Long.SIZE);
+    }
+
+    private static String value(String[] args, int i, String option)
+    {
+        if (i >= args.length)
+            throw new IllegalArgumentException(option + " needs a value");
+        return args[i];
+    }
+
+    /**
+     * Starts listening, with requests handled on the pool
+     * @return The server, which is already running
+     * @throws IOException If it cannot listen on the port
+     */
+    private HttpServer start() throws IOException
+    {
+        programs = new ProgramCache(cachedPrograms);
+        pool = Executors.newFixedThreadPool(workers);
+        admission = new Semaphore(workers + queue);
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Memory limit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)
+        {
+            threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (!threads.isThreadAllocatedMemorySupported())
+                threads = null;
+            else
+                threads.setThreadAllocatedMemoryEnabled(true);
+        }
+        if (threads == null)
+            System.err.println("This JVM cannot measure what a thread allocates, so --max-memory does not apply");
+
+        // Otherwise each response's body waits for the client to acknowledge its headers, which it may delay by
+        // 40 ms. Only read when the first server is created
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        // Handled on the server's own thread until admitted, so that turning a request away never waits
+        http.createContext(PATH, this::admit);
+        http.start();
+        return http;
+    }
+
+    /** Hands the request to the pool, or turns it away if the pool and its queue are full */
+    private void admit(HttpExchange exchange)
+    {
+        if (admission.tryAcquire())
+        {
+            try
+            {
+                pool.execute(() -> {
+                    try
+                    {
+                        handle(exchange);
+                    }
+                    finally
+                    {
+                        admission.release();
+                    }
+                });
+                return;
+            }
+            catch (RejectedExecutionException e)
+            {
+                admission.release();
+            }
+        }
+        rejected.increment();
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        respond(exchange, 503, errorJson("The server is busy"));
+    }
+
+    /** Runs on a worker thread */
+    private void handle(HttpExchange exchange)
+    {
+        try
+        {
+            if (!exchange.getRequestMethod().equals("POST"))
+            {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                respond(exchange, 405, errorJson("Programs must be sent with POST"));
+                return;
+            }
+            Map<String, String> parameters;
+            try
+            {
+                parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            }
+            catch (IllegalArgumentException e)
+            {
+                respond(exchange, 400, errorJson(e.getMessage()));
+                return;
+            }
+            String source = readSource(exchange.getRequestBody());
+            if (source == null)
+            {
+                respond(exchange, 413, errorJson("Programs may be at most " + MAX_SOURCE_BYTES + " bytes"));
+                return;
+            }
+
+            Interpreter interpreter;
+            long memoryBytes;
+            Writer traceOut = null;
+            try
+            {
+                ProgramCache.Entry entry = programs.get(source);
+                Engine engine = Engine.valueOf(parameters.getOrDefault("engine", "interpreter").toUpperCase(Locale.ROOT));
+                boolean optimise = Boolean.parseBoolean(parameters.get("optimise"));
+                boolean wide = Boolean.parseBoolean(parameters.get("wide"));
+                TraceSink trace = null;
+                if (parameters.containsKey("trace"))
+                {
+                    String[] mode = parameters.get("trace").split(":", 2);
+                    TraceMode traceMode = TraceMode.valueOf(mode[0].toUpperCase(Locale.ROOT));
+                    int traceInterval = mode.length > 1 ? Integer.parseInt(mode[1])
+                            : traceMode == TraceMode.DELTA ? BufferedTrace.DEFAULT_SNAPSHOT_INTERVAL : 1;
+                    // Only written to once the response has started
+                    traceOut = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+                    trace = new BufferedTrace(traceMode, traceInterval, traceOut, entry.program);
+                }
+                interpreter = new Interpreter(entry.program, trace);
+                interpreter.setEngine(engine);
+                interpreter.setOptimiseLoops(optimise);
+                RegisterFile registers = new RegisterFile(entry.program.getVariableNames(), wide);
+                registers.limitBits(maxValueBits);
+                interpreter.startAt(0, registers);
+                // The compiled code is for the unoptimised program
+                if (!optimise)
+                    interpreter.setCompiledCode(entry.getCompiledCode(engine, wide));
+                interpreter.setCountSteps(true);
+                interpreter.setStepLimit(limit(parameters, "max-steps", maxSteps));
+                interpreter.setTimeLimit(limit(parameters, "timeout", timeoutMillis));
+                memoryBytes = limit(parameters, "max-memory", maxMemoryMegabytes) << 20;
+            }
+            catch (InterpreterException | IllegalArgumentException e)
+            {
+                respond(exchange, 400, errorJson(e.getMessage()));
+                return;
+            }
+
+            if (traceOut == null)
+            {
+                respond(exchange, 200, execute(interpreter, memoryBytes));
+                return;
+            }
+            // Sent in chunks as the trace is written, as its length is not known in advance
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            try (Writer out = traceOut)
+            {
+                String result;
+                try
+                {
+                    result = execute(interpreter, memoryBytes);
+                }
+                catch (RuntimeException e)
+                {
+                    // Too late for a 500, as the status has been sent with the trace
+                    result = errorJson(internalError(e));
+                }
+                out.write(RESULT_PREFIX);
+                out.write(result);
+                out.write('\n');
+            }
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            // The client went away, so there is no one to tell
+        }
+        catch (RuntimeException e)
+        {
+            // A bug rather than a bad request, which the client should still hear about rather than the connection
+            // just closing
+            if (exchange.getResponseCode() == -1)
+                respond(exchange, 500, errorJson(internalError(e)));
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /** @return The message for an unexpected exception, which may not have one of its own */
+    private static String internalError(RuntimeException e)
+    {
+        return "Internal error: " + (e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+    }
+
+    /**
+     * Runs a program within the memory limit
+     * @return The result, as JSON
+     */
+    private String execute(Interpreter interpreter, long memoryBytes)
+    {
+        long start = System.nanoTime();
+        ScheduledFuture<?> check = null;
+        if (threads != null)
+        {
+            long thread = Thread.currentThread().getId();
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            check = watchdog.scheduleAtFixedRate(() -> {
+                if (threads.getThreadAllocatedBytes(thread) - allocated > memoryBytes)
+                    interpreter.cancel();
+            }, MEMORY_CHECK_MILLIS, MEMORY_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        String status = "ok";
+        String message = null;
+        try
+        {
+            interpreter.execute();
+        }
+        catch (LimitExceededException e)
+        {
+            status = "stopped";
+            message = e.getMessage();
+        }
+        catch (ExecutionCancelledException e)
+        {
+            // Only cancelled by the memory limit
+            status = "stopped";
+            message = "Memory limit of " + (memoryBytes >> 20) + " MB exceeded";
+        }
+        catch (InterpreterException | ArithmeticException e)
+        {
+            status = "error";
+            message = e.getMessage();
+        }
+        finally
+        {
+            if (check != null)
+                check.cancel(false);
+        }
+
+        StringBuilder json = new StringBuilder("{\"status\": \"").append(status).append('"');
+        if (message != null)
+            json.append(", \"message\": ").append(quote(message));
+        json.append(", \"steps\": ").append(interpreter.getSteps());
+        json.append(String.format(Locale.ROOT, ", \"millis\": %.3f", (System.nanoTime() - start) / 1e6));
+        json.append(", \"variables\": {");
+        RegisterFile registers = interpreter.getRegisters();
+        String separator = "";
+        for (int slot = registers.nextDefined(0); slot >= 0; slot = registers.nextDefined(slot + 1))
+        {
+            json.append(separator).append(quote(registers.getName(slot))).append(": ").append(registers.format(slot));
+            separator = ", ";
+        }
+        return json.append("}}").toString();
+    }
+
+    /** @return The request's limit, or the server's if it did not give one or asked for more */
+    private static long limit(Map<String, String> parameters, String name, long serverLimit)
+    {
+        String value = parameters.get(name);
+        if (value == null)
+            return serverLimit;
+        long limit = Long.parseLong(value);
+        if (limit < 1)
+            throw new IllegalArgumentException(name + " must be at least 1");
+        return Math.min(limit, serverLimit);
+    }
+
+    private static Map<String, String> parseQuery(String query)
+    {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null || query.isEmpty())
+            return parameters;
+        for (String pair : query.split("&"))
+        {
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            String value = equals < 0 ? "true" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            switch (name)
+            {
+                case "engine": case "optimise": case "wide": case "max-steps": case "timeout": case "max-memory":
+                case "trace":
+                    parameters.put(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown parameter " + name);
+            }
+        }
+        return parameters;
+    }
+
+    /** @return The request body, or null if it is longer than MAX_SOURCE_BYTES */
+    private static String readSource(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream source = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) >= 0; )
+        {
+            if (source.size() + read > MAX_SOURCE_BYTES)
+                return null;
+            source.write(buffer, 0, read);
+        }
+        return source.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String errorJson(String message)
+    {
+        return "{\"status\": \"error\", \"message\": " + quote(message) + "}";
+    }
+
+    /** @return The string as a JSON string literal */
+    private static String quote(String string)
+    {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < string.length(); i++)
+        {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < ' ')
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    /** Sends a whole JSON response, ignoring a client that has gone away */
+    private static void respond(HttpExchange exchange, int code, String json)
+    {
+        byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            exchange.sendResponseHeaders(code, body.length);
+            out.write(body);
+        }
+        catch (IOException e)
+        {
+            // Nothing more can be done for it
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+}
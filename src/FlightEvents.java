@@ -0,0 +1,93 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JDK Flight Recorder events the interpreter emits. They cost next to nothing unless a recording has them
+ * enabled, e.g. java -XX:StartFlightRecording:settings=profile ... and then jfr print --categories "Bare Bones"
+ */
+final class FlightEvents
+{
+    private static final String CATEGORY = "Bare Bones";
+
+    private FlightEvents() {}
+
+    @Name("barebones.Parse")
+    @Label("Parse")
+    @Category(CATEGORY)
+    @Description("Source code turned into a Program: parsed in full, or, for code being edited, checked and linked "
+                 + "from the lines decoded as they changed")
+    static final class Parse extends Event
+    {
+        @Label("Lines")
+        int lines;
+
+        @Label("Instructions")
+        int instructions;
+
+        @Label("Syntax Error")
+        String error;
+    }
+
+    @Name("barebones.RunStart")
+    @Label("Run Start")
+    @Category(CATEGORY)
+    @Description("A program started executing")
+    @StackTrace(false)
+    static final class RunStart extends Event
+    {
+        @Label("Instructions")
+        int instructions;
+
+        @Label("Engine")
+        String engine;
+
+        @Label("Optimised")
+        boolean optimised;
+    }
+
+    @Name("barebones.Run")
+    @Label("Run")
+    @Category(CATEGORY)
+    @Description("A program executed, from its start to when it completed or stopped")
+    @StackTrace(false)
+    static final class Run extends Event
+    {
+        @Label("Instructions")
+        int instructions;
+
+        @Label("Engine")
+        String engine;
+
+        @Label("Steps")
+        @Description("Statements completed, as Interpreter.getSteps() counts them")
+        long steps;
+
+        @Label("Outcome")
+        @Description("Completed, or the exception it stopped with")
+        String outcome;
+    }
+
+    @Name("barebones.LoopBurst")
+    @Label("Loop Burst")
+    @Category(CATEGORY)
+    @Description("Many loop iterations: every Interpreter.CHECK_INTERVAL times the VM jumps back to the start of "
+                 + "a loop, and each summarised loop that ran as many iterations at once. Loops in compiled code "
+                 + "are not reported")
+    @StackTrace(false)
+    static final class LoopBurst extends Event
+    {
+        @Label("Line")
+        @Description("The source line (1 based) of the loop's while")
+        int line;
+
+        @Label("Iterations")
+        long iterations;
+
+        @Label("Summarised")
+        boolean summarised;
+    }
+}
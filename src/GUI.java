@@ -1,13 +1,25 @@
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Application;
+import javafx.application.Platform;
 
 import javafx.scene.control.ScrollPane;
-import javafx.scene.input.KeyEvent;
 import javafx.stage.Stage;
 import javafx.stage.FileChooser;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.Scene;
+import javafx.scene.Node;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.ChoiceBox;
+import javafx.scene.control.Spinner;
+import javafx.scene.control.TextField;
+import javafx.scene.control.Tooltip;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import javafx.util.Duration;
 import javafx.scene.layout.VBox;
 import javafx.scene.layout.HBox;
 import javafx.scene.text.Text;
@@ -16,14 +28,18 @@ import org.fxmisc.richtext.model.StyleSpans;
 import org.fxmisc.richtext.model.StyleSpansBuilder;
 import org.fxmisc.richtext.CodeArea;
 import org.fxmisc.richtext.LineNumberFactory;
+import org.fxmisc.richtext.model.TwoDimensional.Bias;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,6 +48,18 @@ public class GUI extends Application {
 
     private static final int WIDTH = 800;
     private static final int HEIGHT = 600;
+    private static final double HEAT_MARKER_WIDTH = 6;
+    private static final Duration PROGRESS_INTERVAL = Duration.millis(250);
+    private static final java.time.Duration DIAGNOSTICS_DELAY = java.time.Duration.ofMillis(300);
+    private static final int MAX_DIAGNOSTICS = 10;
+    private static final long DEBUG_MAX_STEPS = 2_000_000;   // Steps the debugger records, unless Max steps is set
+
+    // Runs programs off the JavaFX thread, one at a time
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "interpreter");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private static final Pattern HIGHLIGHTING_PATTERN = Pattern.compile(
             "(?<KEYWORD>" + Interpreter.KEYWORD_REG_EX + ")"
@@ -41,6 +69,12 @@ public class GUI extends Application {
 
 
 
+    // The compiled code in the editor, kept up to date as it is edited
+    private CompilationModel model = new CompilationModel("");
+    private boolean loadingFile = false;
+    // The program being stepped through, or null. It keeps the program it started with, so ends when the code is edited
+    private TimeTravelDebugger debugger = null;
+
     void show() { launch(); } // launch GUI
 
     @Override
@@ -55,13 +89,19 @@ public class GUI extends Application {
         codeEditor.setMinHeight(HEIGHT);
         codeEditor.setMaxHeight(HEIGHT);
         codeEditor.setParagraphGraphicFactory(LineNumberFactory.get(codeEditor));  // Add line numbers
-        loadFileIntoEditor(new File("./resources/multiply.txt"), codeEditor);
-        codeEditor.setOnKeyTyped(new EventHandler<>() {
-            @Override
-            public void handle(KeyEvent event) {
-                codeEditor.setStyleSpans(0, computeHighlighting(codeEditor.getText()));
-            }
+        IncrementalHighlighter.attach(codeEditor);  // Re-highlight edited lines in the background
+
+        // Keep the code compiled as it is edited, re-decoding only the edited lines
+        codeEditor.plainTextChanges().subscribe(change -> {
+            if (loadingFile)
+                return; // The loader has compiled the file already
+            int from = codeEditor.offsetToPosition(change.getPosition(), Bias.Forward).getMajor();
+            String[] newLines = new String[IncrementalHighlighter.countLines(change.getInserted()) + 1];
+            for (int i = 0; i < newLines.length; i++)
+                newLines[i] = codeEditor.getParagraph(from + i).getText();
+            model.replaceLines(from, IncrementalHighlighter.countLines(change.getRemoved()) + 1, newLines);
         });
+        loadFileIntoEditor(new File("./resources/multiply.txt"), codeEditor);
 
         ScrollPane codeScroll = new ScrollPane();
         codeScroll.setContent(codeEditor);
@@ -84,28 +124,196 @@ public class GUI extends Application {
         //Define Syntax Error Text
         Text txtSyntaxError = new Text();
 
-        // Define Run Button
+        // Define Diagnostics Text: every syntax error, updated once typing pauses
+        Text txtDiagnostics = new Text();
+        txtDiagnostics.setFill(Color.RED);
+        codeEditor.plainTextChanges().successionEnds(DIAGNOSTICS_DELAY)
+                  .subscribe(change -> showDiagnostics(model, txtDiagnostics));
+
+        // Define trace options: which steps are output, and N (every Nth step, or every Nth in full for a delta
+        // trace) or K (last K steps)
+        ChoiceBox<TraceMode> traceMode = new ChoiceBox<>();
+        traceMode.getItems().addAll(TraceMode.values());
+        traceMode.setValue(TraceMode.FULL);
+        Spinner<Integer> traceInterval = new Spinner<>(1, Integer.MAX_VALUE, 100);
+        traceInterval.setEditable(true);
+        traceInterval.setPrefWidth(WIDTH / 8.0);
+        HBox traceOptions = new HBox();
+        traceOptions.setSpacing(10);
+        traceOptions.getChildren().addAll(traceMode, traceInterval);
+
+        // Define Profile Check Box: shows a heat map of where the time went next to the line numbers
+        CheckBox chkProfile = new CheckBox("Profile");
+
+        // Define budget fields: a run is stopped once it exceeds either (left blank for no limit)
+        TextField txtMaxSteps = new TextField();
+        txtMaxSteps.setPromptText("Max steps");
+        txtMaxSteps.setPrefWidth(WIDTH / 8.0);
+        TextField txtTimeLimit = new TextField();
+        txtTimeLimit.setPromptText("Time limit (ms)");
+        txtTimeLimit.setPrefWidth(WIDTH / 8.0);
+        HBox budgetOptions = new HBox();
+        budgetOptions.setSpacing(10);
+        budgetOptions.getChildren().addAll(txtMaxSteps, txtTimeLimit);
+
+        // Define Progress Text: the current line and speed of a running program
+        Text txtProgress = new Text();
+
+        // Define Run and Stop Buttons
         Button btnRun = new Button();
         btnRun.setText("Run");
+        Button btnStop = new Button();
+        btnStop.setText("Stop");
+        btnStop.setDisable(true);
+
+        // Define Debug Buttons: the program is recorded as it is stepped through, so it can be stepped back as well
+        // as forward, and run forwards or backwards until it reaches the line the caret is on
+        Button btnDebug = new Button("Debug");
+        Button btnStepBack = new Button("Step Back");
+        Button btnStepForward = new Button("Step");
+        Button btnBackToLine = new Button("Back to Line");
+        Button btnRunToLine = new Button("Run to Line");
+        List<Button> stepButtons = List.of(btnStepBack, btnStepForward, btnBackToLine, btnRunToLine);
+        stepButtons.forEach(button -> button.setDisable(true));
+
         btnRun.setOnAction(new EventHandler<>() {
             @Override public void handle(ActionEvent event) {
                 txtSyntaxError.setText("");
+                txtOutput.setText("Output:\n");
+                // The output is appended in batches, scrolling to the bottom of the output window after each one
+                TextTraceWriter writer = new TextTraceWriter(txtOutput, () -> outputScroll.setVvalue(1.0));
+                Interpreter interpreter;
                 try
                 {
-                    Interpreter interpreter = new Interpreter(codeEditor.getText(), txtOutput);
-                    interpreter.execute();
+                    // Already compiled as the code was edited
+                    Program program = model.getProgram();
+                    interpreter = new Interpreter(program,
+                            new BufferedTrace(traceMode.getValue(), traceInterval.getValue(), writer, program));
+                    interpreter.setProfiling(chkProfile.isSelected());
+                    interpreter.setCountSteps(true);
+                    interpreter.setStepLimit(parseLimit(txtMaxSteps.getText(), Long.MAX_VALUE));
+                    interpreter.setTimeLimit(parseLimit(txtTimeLimit.getText(), 0));
                 }
                 catch (SyntaxErrorException synE)
                 {
-                    // TODO colour red
-                    txtSyntaxError.setText(synE.getMessage());
+                    showDiagnostics(model, txtDiagnostics);
+                    return;
                 }
-                catch (InterpreterException e)
+                catch (NumberFormatException e)
                 {
-                    System.out.println(e.getMessage());
+                    txtSyntaxError.setText(e.getMessage());
+                    return;
                 }
-                outputScroll.setVvalue(1.0); // Scroll to the bottom of the output window
+
+                // Run on the worker thread, so the IDE stays responsive and the program can be stopped. The debugger
+                // is disabled meanwhile, as its actions would take Stop over
+                btnRun.setDisable(true);
+                btnDebug.setDisable(true);
+                stepButtons.forEach(button -> button.setDisable(true));
+                btnStop.setDisable(false);
+                btnStop.setOnAction(stop -> interpreter.cancel());
+                Timeline progress = showProgress(interpreter, txtProgress);
+                WORKER.execute(() -> {
+                    String error = null;
+                    try
+                    {
+                        interpreter.execute();
+                    }
+                    catch (InterpreterException | RuntimeException e)
+                    {
+                        error = e.getMessage() != null ? e.getMessage() : e.toString();
+                    }
+                    String message = error;
+                    Platform.runLater(() -> {
+                        progress.stop();
+                        txtProgress.setText(interpreter.getSteps() + " steps" + (message != null ? "" : ", done"));
+                        if (message != null)
+                            txtSyntaxError.setText(message);
+                        showProfile(codeEditor, interpreter.getProfiler());
+                        btnRun.setDisable(false);
+                        btnDebug.setDisable(false);
+                        // A debugging session from before the run carries on, unless the code was edited meanwhile
+                        stepButtons.forEach(button -> button.setDisable(debugger == null));
+                        btnStop.setDisable(true);
+                    });
+                });
+            }
+        });
+
+        // Starts a debugging session from the beginning of the program
+        btnDebug.setOnAction(event -> {
+            txtSyntaxError.setText("");
+            try
+            {
+                debugger = new TimeTravelDebugger(model.getProgram(), false, parseLimit(txtMaxSteps.getText(), DEBUG_MAX_STEPS));
+            }
+            catch (SyntaxErrorException synE)
+            {
+                showDiagnostics(model, txtDiagnostics);
+                return;
+            }
+            catch (NumberFormatException e)
+            {
+                txtSyntaxError.setText(e.getMessage());
+                return;
             }
+            stepButtons.forEach(button -> button.setDisable(false));
+            showDebugger(debugger, codeEditor, txtOutput, txtProgress, txtSyntaxError);
+        });
+
+        // Runs a debugger action on the worker thread, as running to a line can take a while, and Stop cancels it.
+        // A session that fails part way through an action (e.g. running out of memory for its log) is ended
+        Consumer<Consumer<TimeTravelDebugger>> debug = action -> {
+            TimeTravelDebugger session = debugger;
+            stepButtons.forEach(button -> button.setDisable(true));
+            btnDebug.setDisable(true);
+            btnRun.setDisable(true);
+            btnStop.setDisable(false);
+            btnStop.setOnAction(stop -> session.cancel());
+            WORKER.execute(() -> {
+                String error = null;
+                try
+                {
+                    action.accept(session);
+                }
+                catch (RuntimeException | OutOfMemoryError e)
+                {
+                    error = e.getMessage() != null ? e.getMessage() : e.toString();
+                }
+                finally
+                {
+                    String message = error;
+                    Platform.runLater(() -> {
+                        btnDebug.setDisable(false);
+                        btnRun.setDisable(false);
+                        btnStop.setDisable(true);
+                        if (debugger != session)
+                            return; // The code was edited meanwhile
+                        if (message != null)
+                        {
+                            debugger = null;
+                            txtSyntaxError.setText("The debugger stopped: " + message);
+                            return;
+                        }
+                        stepButtons.forEach(button -> button.setDisable(false));
+                        showDebugger(session, codeEditor, txtOutput, txtProgress, txtSyntaxError);
+                    });
+                }
+            });
+        };
+        btnStepBack.setOnAction(event -> debug.accept(TimeTravelDebugger::stepBack));
+        btnStepForward.setOnAction(event -> debug.accept(TimeTravelDebugger::stepForward));
+        btnBackToLine.setOnAction(event -> {
+            int line = codeEditor.getCurrentParagraph();
+            debug.accept(session -> session.runToLine(line, false));
+        });
+        btnRunToLine.setOnAction(event -> {
+            int line = codeEditor.getCurrentParagraph();
+            debug.accept(session -> session.runToLine(line, true));
+        });
+        codeEditor.plainTextChanges().subscribe(change -> {
+            debugger = null;
+            stepButtons.forEach(button -> button.setDisable(true));
         });
 
         // Define Load Button
@@ -124,10 +332,17 @@ public class GUI extends Application {
 
 
 
+        HBox runButtons = new HBox();
+        runButtons.setSpacing(10);
+        runButtons.getChildren().addAll(btnRun, btnStop, btnDebug);
+        HBox debugButtons = new HBox();
+        debugButtons.setSpacing(10);
+        debugButtons.getChildren().addAll(btnStepBack, btnStepForward, btnBackToLine, btnRunToLine);
+
         // Define right column layout
         VBox rightColumn = new VBox();
         rightColumn.setSpacing(10);
-        rightColumn.getChildren().addAll(btnRun, btnLoad, outputScroll, txtSyntaxError);  // Add components to r.hand column
+        rightColumn.getChildren().addAll(runButtons, debugButtons, btnLoad, traceOptions, budgetOptions, chkProfile, txtProgress, outputScroll, txtSyntaxError, txtDiagnostics);  // Add components to r.hand column
 
         // Define horizontal layout
         HBox hbox = new HBox();
@@ -141,27 +356,141 @@ public class GUI extends Application {
         primaryStage.show();
     }
 
+    /**
+     * Lists the syntax errors in the code, or clears the list if there are none
+     * @param model The compiled code
+     * @param txtDiagnostics The text to list them in
+     */
+    private static void showDiagnostics(CompilationModel model, Text txtDiagnostics) {
+        List<String> diagnostics = model.getDiagnostics();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < Math.min(diagnostics.size(), MAX_DIAGNOSTICS); i++)
+            text.append(diagnostics.get(i)).append('\n');
+        if (diagnostics.size() > MAX_DIAGNOSTICS)
+            text.append("... and ").append(diagnostics.size() - MAX_DIAGNOSTICS).append(" more\n");
+        txtDiagnostics.setText(text.toString());
+    }
+
+    /**
+     * Shows the line and speed of a running program, updated a few times a second until the returned Timeline is stopped
+     * @param interpreter The running interpreter
+     * @param txtProgress The text to show the progress in
+     * @return The Timeline doing the updates
+     */
+    private static Timeline showProgress(Interpreter interpreter, Text txtProgress) {
+        long start = System.nanoTime();
+        Timeline timeline = new Timeline(new KeyFrame(PROGRESS_INTERVAL, tick -> {
+            long steps = interpreter.getProgressSteps();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            txtProgress.setText(String.format("Line %d, %d steps, %.0f steps/sec",
+                    interpreter.getProgressLine() + 1, steps, seconds > 0 ? steps / seconds : 0));
+        }));
+        timeline.setCycleCount(Animation.INDEFINITE);
+        timeline.play();
+        return timeline;
+    }
+
+    /**
+     * Shows where a debugger has got to: its next line selected in the editor, and its variables and step
+     * @param debugger The debugger
+     * @param codeEditor The editor
+     * @param txtOutput The text to show the variables in
+     * @param txtProgress The text to show the line and step in
+     * @param txtSyntaxError The text to show why the debugger could not step, if it couldn't
+     */
+    private static void showDebugger(TimeTravelDebugger debugger, CodeArea codeEditor, Text txtOutput, Text txtProgress,
+                                     Text txtSyntaxError) {
+        StringBuilder variables = new StringBuilder("Output:\n");
+        BufferedTrace.appendVariables(variables, debugger.getRegisters());
+        txtOutput.setText(variables.toString());
+        txtSyntaxError.setText(debugger.getError() != null ? debugger.getError() : "");
+
+        int line = debugger.getLine();
+        if (line < 0)
+        {
+            txtProgress.setText(String.format("Step %d of %d recorded, done", debugger.getStep(), debugger.getRecordedSteps()));
+            return;
+        }
+        txtProgress.setText(String.format("Line %d, step %d of %d recorded", line + 1, debugger.getStep(),
+                debugger.getRecordedSteps()));
+        if (line < codeEditor.getParagraphs().size())
+        {
+            codeEditor.selectRange(line, 0, line, codeEditor.getParagraphLength(line));
+            codeEditor.requestFollowCaret();
+        }
+    }
+
+    /**
+     * @param text The contents of a limit field
+     * @param none The value meaning no limit
+     * @return The limit, or none if the field is blank
+     * @throws NumberFormatException If the field is not a positive number
+     */
+    private static long parseLimit(String text, long none) {
+        if (text.isBlank())
+            return none;
+        long limit = Long.parseLong(text.trim());
+        if (limit <= 0)
+            throw new NumberFormatException("Limits must be positive: " + text);
+        return limit;
+    }
+
+    /**
+     * Shows a profile as a heat map in the editor's gutter: a marker next to each line's number, redder the
+     * larger the line's share of the run time, with the line's counts in its tooltip
+     * @param codeEditor The editor
+     * @param profiler The profile to show, or null to show just the line numbers
+     */
+    private static void showProfile(CodeArea codeEditor, Profiler profiler) {
+        IntFunction<Node> lineNumbers = LineNumberFactory.get(codeEditor);
+        if (profiler == null)
+        {
+            codeEditor.setParagraphGraphicFactory(lineNumbers);
+            return;
+        }
+
+        long total = profiler.getTotalNanos();
+        long hottest = 0;
+        for (int line = 0; line < profiler.lineCount(); line++)
+            hottest = Math.max(hottest, profiler.getNanos(line));
+        double scale = hottest > 0 ? 1.0 / hottest : 0;
+
+        codeEditor.setParagraphGraphicFactory(line -> {
+            Rectangle marker = new Rectangle(HEAT_MARKER_WIDTH, 14);
+            marker.setFill(Color.TRANSPARENT);
+            if (line < profiler.lineCount() && profiler.getCount(line) > 0)
+            {
+                double heat = profiler.getNanos(line) * scale;
+                marker.setFill(Color.rgb(255, (int) (230 * (1 - heat)), (int) (200 * (1 - heat))));
+                String tip = String.format("%.1f%%, %.3f ms, %d runs", total > 0 ? 100.0 * profiler.getNanos(line) / total : 0,
+                        profiler.getNanos(line) / 1e6, profiler.getCount(line));
+                if (profiler.getIterations(line) > 0)
+                    tip += ", " + profiler.getIterations(line) + " iterations";
+                Tooltip.install(marker, new Tooltip(tip));
+            }
+            HBox gutter = new HBox(lineNumbers.apply(line), marker);
+            gutter.setSpacing(2);
+            return gutter;
+        });
+    }
+
     private void loadFileIntoEditor(File file, CodeArea codeEditor) {
         if (file != null)
         {
-            String code = "";
-            try (BufferedReader reader = new BufferedReader(new FileReader(file)))
+            try
             {
-                String line;
-                while ((line = reader.readLine()) != null) { // For each line in the file
-                    Pattern commentPattern = Pattern.compile(Interpreter.COMMENT_REG_EX);
-                    Matcher commentMatcher = commentPattern.matcher(line);
-                    if (!commentMatcher.matches())  // If line is not a comment
-                    {
-                        code += line.toLowerCase() + "\n";
-                    }
-                    else
-                    {
-                        code += line + "\n";
-                    }
+                // Compiled as it is read, so the editor's change doesn't need to be
+                SourceLoader source = SourceLoader.load(file.toPath());
+                loadingFile = true;
+                try
+                {
+                    codeEditor.replaceText(source.getText());  // Highlighted by the IncrementalHighlighter
+                }
+                finally
+                {
+                    loadingFile = false;
                 }
-                codeEditor.replaceText(code);
-                codeEditor.setStyleSpans(0, computeHighlighting(codeEditor.getText())); // Set highlighting from the fist character of the code
+                model = source.getModel();
             }
             catch (IOException e)
             {
@@ -171,7 +500,7 @@ public class GUI extends Application {
     }
 
 
-    private static StyleSpans<Collection<String>> computeHighlighting(String code) {
+    static StyleSpans<Collection<String>> computeHighlighting(String code) {
         Matcher matcher = HIGHLIGHTING_PATTERN.matcher(code);
         int lastKwEnd = 0;
         StyleSpansBuilder<Collection<String>> spansBuilder = new StyleSpansBuilder<>(); // Used to build a list of style tuples (StyleSpans)
@@ -0,0 +1,143 @@
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javafx.application.Platform;
+
+import org.fxmisc.richtext.CodeArea;
+import org.fxmisc.richtext.model.PlainTextChange;
+import org.fxmisc.richtext.model.StyleSpans;
+import org.fxmisc.richtext.model.TwoDimensional.Bias;
+
+/**
+ * Keeps a code editor's syntax highlighting up to date as it is edited.
+ * Every Bare Bones token (and comment) is within one line, so each paragraph can be highlighted on its own:
+ * edits mark the paragraphs they touch as dirty, and once typing pauses for DEBOUNCE the dirty paragraphs
+ * are highlighted on a background thread and the spans applied back on the JavaFX thread
+ */
+final class IncrementalHighlighter
+{
+    private static final Duration DEBOUNCE = Duration.ofMillis(150);
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "syntax-highlighting");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final CodeArea codeEditor;
+
+    // Only used on the JavaFX thread
+    private int dirtyFrom = -1;     // The first dirty paragraph, or -1 if none are
+    private int dirtyTo = -1;       // The last dirty paragraph (inclusive)
+    private int busyFrom = -1;      // The paragraphs being highlighted in the background, or -1 if none are
+    private int busyTo = -1;
+    private long generation = 0;    // Incremented on every edit, so stale results can be recognised
+
+    private IncrementalHighlighter(CodeArea codeEditor)
+    {
+        this.codeEditor = codeEditor;
+    }
+
+    /**
+     * Starts highlighting an editor incrementally, including text that is put into it from now on
+     * @param codeEditor The editor to highlight
+     */
+    static void attach(CodeArea codeEditor)
+    {
+        IncrementalHighlighter highlighter = new IncrementalHighlighter(codeEditor);
+        codeEditor.plainTextChanges().subscribe(highlighter::markDirty);
+        codeEditor.plainTextChanges().successionEnds(DEBOUNCE).subscribe(change -> highlighter.highlightDirty());
+    }
+
+    /**
+     * Marks the paragraphs an edit touched, and moves the paragraphs already marked to where the edit left them
+     */
+    private void markDirty(PlainTextChange change)
+    {
+        generation++;
+        if (busyFrom >= 0)
+        {
+            // The background result will be stale, so those paragraphs are dirty again (and move with this edit)
+            markDirty(busyFrom, busyTo, 0);
+            busyFrom = busyTo = -1;
+        }
+        int from = codeEditor.offsetToPosition(change.getPosition(), Bias.Forward).getMajor();
+        int to = codeEditor.offsetToPosition(change.getInsertionEnd(), Bias.Forward).getMajor();
+        int linesAdded = countLines(change.getInserted()) - countLines(change.getRemoved());
+        markDirty(from, to, from <= dirtyTo ? linesAdded : 0);
+    }
+
+    /**
+     * @param from The first paragraph to mark
+     * @param to The last paragraph to mark
+     * @param shift How far paragraphs already marked after from have moved
+     */
+    private void markDirty(int from, int to, int shift)
+    {
+        if (dirtyFrom < 0)
+        {
+            dirtyFrom = from;
+            dirtyTo = to;
+        }
+        else
+        {
+            dirtyFrom = Math.min(dirtyFrom, from);
+            dirtyTo = Math.max(dirtyTo + shift, to);
+        }
+    }
+
+    /**
+     * Highlights the dirty paragraphs in the background
+     */
+    private void highlightDirty()
+    {
+        if (dirtyFrom < 0)
+            return;
+        int paragraphs = codeEditor.getParagraphs().size();
+        int from = Math.min(dirtyFrom, paragraphs - 1);
+        int to = Math.min(dirtyTo, paragraphs - 1);
+        dirtyFrom = dirtyTo = -1;
+        busyFrom = from;
+        busyTo = to;
+
+        String[] lines = new String[to - from + 1];
+        for (int i = 0; i < lines.length; i++)
+            lines[i] = codeEditor.getParagraph(from + i).getText();
+        long snapshot = generation;
+
+        EXECUTOR.execute(() -> {
+            List<StyleSpans<Collection<String>>> spans = new ArrayList<>(lines.length);
+            for (String line : lines)
+                spans.add(GUI.computeHighlighting(line));
+            Platform.runLater(() -> apply(from, spans, snapshot));
+        });
+    }
+
+    /**
+     * Applies highlighting computed in the background, unless the editor has changed since
+     */
+    private void apply(int from, List<StyleSpans<Collection<String>>> spans, long snapshot)
+    {
+        if (snapshot != generation)
+            return; // Edited meanwhile, and the edit marked these paragraphs dirty again
+        busyFrom = busyTo = -1;
+        for (int i = 0; i < spans.size(); i++)
+            codeEditor.setStyleSpans(from + i, 0, spans.get(i));
+    }
+
+    /** @return The number of line breaks in the text */
+    static int countLines(String text)
+    {
+        int lines = 0;
+        for (int i = 0; i < text.length(); i++)
+        {
+            if (text.charAt(i) == '\n')
+                lines++;
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * A decoded instruction linked into a Program: variable names are resolved to register slots
+ * and goto line numbers to instruction indexes, so executing it needs no lookups
+ */
+final class Instruction
+{
+    /** Marks an unused operand slot */
+    static final int NONE = -1;
+
+    final Opcode opcode;
+    /** The (0 based) index of the source line this instruction was decoded from */
+    final int line;
+    /** The register slot of the first operand */
+    final int operand1;
+    /** The register slot of the second operand */
+    final int operand2;
+    /** The register slot of the destination */
+    final int destination;
+    /** The value of an assignment */
+    final long literal;
+    /**
+     * The instruction index a goto jumps to, the index after the matching end for a while,
+     * or the index of the matching while for an end
+     */
+    final int target;
+    /** The closed form of a while's loop, if the LoopOptimiser found one, or null */
+    final LoopSummary summary;
+
+    Instruction(Opcode opcode, int line, int operand1, int operand2, int destination, long literal, int target)
+    {
+        this(opcode, line, operand1, operand2, destination, literal, target, null);
+    }
+
+    Instruction(Opcode opcode, int line, int operand1, int operand2, int destination, long literal, int target,
+                LoopSummary summary)
+    {
+        this.opcode = opcode;
+        this.line = line;
+        this.operand1 = operand1;
+        this.operand2 = operand2;
+        this.destination = destination;
+        this.literal = literal;
+        this.target = target;
+        this.summary = summary;
+    }
+}
@@ -1,22 +1,34 @@
-import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
 
-import javafx.scene.text.Text;
-
-// optional TODO: add subroutines
-// TODO: what happens if you use a goto to go into a while loop or from inside a while loop...??
 // TODO: readme.txt
 
+// Control flow is a flat jump table, there is no loop stack:
+//  - while jumps past its matching end once its variable is 0, and end always jumps back to its matching while
+//  - a goto simply moves the program counter, so jumping into a loop body runs the rest of the body and then
+//    re-tests that loop's variable at its end, and jumping out of a loop body abandons the loop
+//  - proc jumps past its procedure's body, call saves the procedure's variables on a CallStack and jumps into the
+//    body, and return (or the procedure's end) restores them and carries on after the call
+
 class Interpreter
 {
-    private ArrayList<String> _sourceCode = new ArrayList<>();
-    private Map<String, Integer> _variables = new HashMap<>();
-    private Integer _linePtr = 0;
-    private Stack<WhileLoopPtr> whileLoopPtrs = new Stack<>();
-
-    private static final String[] RESERVED_IDENTIFIERS = {"clear", "decr", "do", "end", "incr", "while", "swap",
+    private Program _program;
+    private RegisterFile _registers;
+    private int _pc = 0;
+    private CallStack _calls = null;            // Created when a program with procedures is executed
+    private Engine _engine = Engine.INTERPRETER;
+    private boolean _optimiseLoops = false;
+    private List<String> _optimisationReport = new ArrayList<>();
+
+    static final String[] RESERVED_IDENTIFIERS = {"clear", "decr", "do", "end", "incr", "while", "swap",
                                                             "copy", "to", "not", "not\\s+0", "and", "del", "ifp", "ifz", "goto"};
+    // Only keywords where a procedure statement needs them, as no other statement starts with a name followed by
+    // another, so programs written before procedures can still use them as variable names
+    static final String[] PROCEDURE_KEYWORDS = {"proc", "with", "call", "return"};
     static final String VARIABLE_REG_EX = "([a-zA-Z]\\w*)";
     static final String SEMICOLON_REG_EX = "\\s*;\\s*";
     static final String COMMENT_REG_EX = "\\s*#.*";
@@ -30,340 +42,682 @@ class Interpreter
     static final String COPY_TO_REG_EX = "\\s*(copy)\\s+" + VARIABLE_REG_EX + "\\s+to\\s+"
                                                         + VARIABLE_REG_EX + SEMICOLON_REG_EX;
     static final String IF_REG_EX = "\\s*(ifp|ifz)\\s+" + VARIABLE_REG_EX + "\\s+goto\\s+([0-9]+)" + SEMICOLON_REG_EX;
-    static final String KEYWORD_REG_EX = "\\b(" + String.join("|", RESERVED_IDENTIFIERS) + ")\\b";
+    static final String KEYWORD_REG_EX = "\\b(" + String.join("|", RESERVED_IDENTIFIERS) + "|"
+                                                + String.join("|", PROCEDURE_KEYWORDS) + ")\\b";
     static final String WHILE_REG_EX = "\\s*(while)\\s+" + VARIABLE_REG_EX + "\\s+not\\s+0\\s+do" + SEMICOLON_REG_EX;
     static final String END_REG_EX = "\\s*(end)" + SEMICOLON_REG_EX;
-    private static final String BLANK_REG_EX = "\\s*";
+    static final String ARGUMENTS_REG_EX = "(?:\\s+with\\s+([a-zA-Z]\\w*(?:\\s+and\\s+[a-zA-Z]\\w*)*))?";
+    static final String PROC_REG_EX = "\\s*(proc)\\s+" + VARIABLE_REG_EX + ARGUMENTS_REG_EX + "\\s+do" + SEMICOLON_REG_EX;
+    static final String CALL_REG_EX = "\\s*(call)\\s+" + VARIABLE_REG_EX + ARGUMENTS_REG_EX + SEMICOLON_REG_EX;
+    static final String RETURN_REG_EX = "\\s*(return)" + SEMICOLON_REG_EX;
+    static final String BLANK_REG_EX = "\\s*";
+
+
+    private TraceSink _trace;
+    private Profiler _profiler = null;
+    private long _steps = 0;
+    private long _reportedSteps = 0;      // The steps added to the InterpreterMetrics so far
+    private boolean _countSteps = false;
+    private long _stepLimit = Long.MAX_VALUE;
+    private long _deadline = 0;
+    private long _timeLimitNanos = 0;     // 0 = no time limit
+    private int _loopBacks = 0;
+    private boolean _optimised = false;
+
+    // Checkpointing, if _checkpointFile is set
+    private Path _checkpointFile = null;
+    private long _checkpointSteps = 0;       // 0 = not by steps
+    private long _checkpointNanos = 0;       // 0 = not by time
+    private long _nextCheckpointStep;
+    private long _nextCheckpointTime;
+    private byte[] _programHash;
+    private Checkpoint _resumeFrom = null;
+    private CompiledCode _compiled = null;      // Compiled in advance, or null to compile in execute()
+    private ResultCache _resultCache = null;
+
+    // Written by the thread running the program, and read by any other thread
+    private final CompiledCode.Cancellation _cancellation = new CompiledCode.Cancellation();
+    private volatile long _progressSteps = 0;
+    private volatile int _progressLine = 0;
+
+    // How many steps run between checks for cancellation and the time limit, and updates of the progress,
+    // as reading the clock and writing volatile fields is relatively slow. Must be a power of 2
+    private static final int CHECK_INTERVAL = 1024;
+
+    // The most instructions the PartialEvaluator runs before the program is executed
+    private static final long EVALUATION_BUDGET = 1_000_000;
 
+    /**
+     * Parses the source code into a Program ready to be executed
+     * @param code The Bare Bones source code
+     * @param trace Receives the value of the variables after each line, or null for no output
+     * @throws InterpreterException If the source code contains a syntax error
+     */
+    Interpreter(String code, TraceSink trace) throws InterpreterException
+    {
+        this(Parser.parse(code), trace);
+    }
 
-    private Text txtOutput;
+    /**
+     * Prepares an already parsed Program to be executed, with its variables all undefined
+     * @param program The program
+     * @param trace Receives the value of the variables after each line, or null for no output
+     */
+    Interpreter(Program program, TraceSink trace)
+    {
+        _program = program;
+        _registers = new RegisterFile(_program.getVariableNames());
+        _trace = trace;
+    }
 
-   Interpreter(String code, Text txtOutput)
+    /**
+     * Selects how execute() runs the program
+     * @param engine The engine to use, the jump-table VM by default
+     */
+    void setEngine(Engine engine)
     {
-        String[] lines = code.split("\\r?\\n");
-        for (String line : lines)
-            _sourceCode.add(line.toLowerCase());
+        _engine = engine;
+    }
 
-        this.txtOutput = txtOutput;
-        this.txtOutput.setText("Output:\n");
+    /**
+     * Selects how variables overflow, which must be done before the program is executed
+     * @param wideIntegers True to promote values that overflow a long to arbitrary precision,
+     *                     false (the default) to let them wrap
+     */
+    void setWideIntegers(boolean wideIntegers)
+    {
+        _registers = new RegisterFile(_program.getVariableNames(), wideIntegers);
     }
 
     /**
-     * Executes the source code line by line
-     * @throws InterpreterException If there is no source code, or in the result of a syntax error
+     * Starts execute() from a given instruction and variables, rather than from the start with none set.
+     * Replaces the variables set up by setWideIntegers, and forgets any calls in progress
+     * @param pc The index of the instruction to start from, outside any procedure
+     * @param registers The variables to start from, which the program then changes
      */
-    void execute() throws InterpreterException
+    void startAt(int pc, RegisterFile registers)
     {
-        if (_sourceCode.size() <= 0)
-            throw new InterpreterException("No source code to execute");
+        _pc = pc;
+        _registers = registers;
+        _calls = null;
+    }
 
-        while(_linePtr < _sourceCode.size())
-        {
-            String line =_sourceCode.get(_linePtr);
-            try { executeLine(line); }
-            catch (EndOfLoopException e) { return; }
-            if (!isCommentOrBlank(line))
-                outputVariables();
-            _linePtr++;
-        }
+    /**
+     * Shares code already compiled from this program for the engine, so that running it again does not compile it
+     * again. Only for an Interpreter that does not optimise the program, which would change it
+     * @param compiled The compiled program, for the widening mode of the registers it will run with
+     */
+    void setCompiledCode(CompiledCode compiled)
+    {
+        _compiled = compiled;
+    }
 
+    /**
+     * Looks up the result of execute() in a cache before running the program, and adds it there once the program
+     * completes. Only runs without a trace, profiling or checkpoints use the cache, and a result found there leaves
+     * the program unoptimised, with no optimisation report
+     * @param resultCache The cache, which may be shared with other Interpreters, or null (the default) for none
+     */
+    void setResultCache(ResultCache resultCache)
+    {
+        _resultCache = resultCache;
     }
 
     /**
-     * Executes one line of code
-     * @param line the line of code to execute
-     * @throws InterpreterException If there is a syntax error
+     * Makes getSteps() count every step, even those run by compiled code when there is no trace or limit
+     * (which is otherwise left to run without reporting each statement)
+     * @param countSteps True to count every step
      */
-    private void executeLine(String line) throws InterpreterException
+    void setCountSteps(boolean countSteps)
     {
-        if (isCommentOrBlank(line))
-            return;
+        _countSteps = countSteps;
+    }
 
-        if (!isSyntacticallyCorrect(line))
-            throw new SyntaxErrorException("Syntax Error in line " + (_linePtr + 1) + ": " + line);
+    /**
+     * Stops execution with a LimitExceededException if the program tries to run more than the given number of steps
+     * @param stepLimit The maximum number of steps, or Long.MAX_VALUE (the default) for no limit
+     */
+    void setStepLimit(long stepLimit)
+    {
+        _stepLimit = stepLimit;
+    }
 
-        DecodedInstruction instruction = new DecodedInstruction(line);
+    /**
+     * Stops execution with a LimitExceededException once it has run for the given time
+     * @param timeLimitMillis The maximum run time in milliseconds, or 0 (the default) for no limit
+     */
+    void setTimeLimit(long timeLimitMillis)
+    {
+        _timeLimitNanos = timeLimitMillis * 1_000_000;
+    }
 
-        if (isReservedIdentifier(instruction.getOperator1()))
-            throw new SyntaxErrorException("Syntax Error in line " + (_linePtr + 1) + ": " + instruction.getOperator1() + " is a reserved keyword");
+    /**
+     * Saves the state of the program to a file periodically while it runs, and once more when it completes or
+     * is stopped by a limit or cancel() (but not on an error, which leaves the last checkpoint), so that it can be
+     * continued with resume() after a crash or restart
+     * @param file The file to save to, replaced each time, or null to turn checkpointing off
+     * @param everySteps Save every this many steps, or 0 not to save by steps
+     * @param everyMillis Save every this many milliseconds (checked every CHECK_INTERVAL steps), or 0 not by time
+     */
+    void setCheckpointing(Path file, long everySteps, long everyMillis)
+    {
+        _checkpointFile = file;
+        _checkpointSteps = everySteps;
+        _checkpointNanos = everyMillis * 1_000_000;
+    }
 
-        switch (instruction.getInstruction())
-        {
-            case "clear": clear(instruction.getOperator1()); break;
-            case "incr": increment(instruction.getOperator1()); break;
-            case "decr": decrement(instruction.getOperator1()); break;
-            case "del": delete(instruction.getOperator1()); break;
-            case "swap": swap(instruction.getOperator1(), instruction.getOperator2()); break;
-            case "copy": copyTo(instruction.getOperator1(), instruction.getOperator2()); break;
-            case "+": add(instruction.getOperator1(), instruction.getOperator2(), instruction.getDestination()); break;
-            case "-": subtract(instruction.getOperator1(), instruction.getOperator2(), instruction.getDestination()); break;
-            case "*": multiply(instruction.getOperator1(), instruction.getOperator2(), instruction.getDestination()); break;
-            case "/": divide(instruction.getOperator1(), instruction.getOperator2(), instruction.getDestination()); break;
-            case "=": assign(instruction.getOperator1(), instruction.getDestination()); break;
-            case "ifp": ifPositive(instruction.getOperator1(), instruction.getDestination()); break;
-            case "ifz": ifZero(instruction.getOperator1(), instruction.getDestination()); break;
-            case "while":
-                whileLoopPtrs.push(new WhileLoopPtr(_linePtr));
-                while (_variables.get(instruction.getOperator1()) > 0)
-                {
-                    _linePtr++;
-                    execute();
-                }
-                _linePtr = whileLoopPtrs.pop().endLine;
-                break;
-            case "end":
-                try
-                {
-                    whileLoopPtrs.peek().endLine = _linePtr;
-                }
-                catch (EmptyStackException e)
-                {
-                    throw new SyntaxErrorException("No matching while for line " + (_linePtr + 1) + ": " + line);
-                }
-                _linePtr = whileLoopPtrs.peek().startLine;
-                throw new EndOfLoopException();
-            default: throw new InterpreterException("Invalid command in line " + (_linePtr + 1) + ": " + line);
-        }
+    /**
+     * Continues from a checkpoint saved while running this program: execute() will carry on from where it was saved,
+     * once it has checked the checkpoint is for the same program (after optimisation, as it refers to instruction
+     * indexes)
+     * @param file The checkpoint file
+     * @throws IOException If the file cannot be read
+     */
+    void resume(Path file) throws IOException
+    {
+        _resumeFrom = Checkpoint.load(file);
     }
 
     /**
-     * Sets a specified variable to 0
-     * @param variable the variable to set
+     * Asks execute() to stop, which it does within CHECK_INTERVAL steps by throwing an ExecutionCancelledException.
+     * Can be called from any thread
      */
-    private void clear(String variable)
+    void cancel()
     {
-        _variables.put(variable, 0);
+        _cancellation.requested = true;
     }
 
     /**
-     * Increments the specified variable
-     * @param variable The variable to increment
+     * Can be called from any thread while the program runs. It is updated every CHECK_INTERVAL steps
+     * @return The number of steps completed, as of the last update
      */
-    private void increment(String variable)
+    long getProgressSteps()
     {
-        try {_variables.put(variable, _variables.get(variable) + 1); }
-        catch (NullPointerException e) {_variables.put(variable, 1); }
+        return _progressSteps;
     }
 
     /**
-     * Decrements the specified variable
-     * @param variable The variable to decrement
+     * Can be called from any thread while the program runs. It is updated every CHECK_INTERVAL steps
+     * @return The source line (0 based) of the last statement completed, as of the last update
      */
-    private void decrement(String variable)
+    int getProgressLine()
     {
-        try
-        {
-            int value = _variables.get(variable);
-            if (value > 0)
-                _variables.put(variable, value - 1);
-            else
-                _variables.put(variable, 0);
-        }
-        catch (NullPointerException e)
-        {
-            _variables.put(variable, 0);
-        }
+        return _progressLine;
     }
 
     /**
-     * Deletes a variable from the interpreter - means it's value is deleted, and it will not be output
-     * @param var1 The variable to delete
+     * @return The number of statements completed so far (a summarised loop counts as one).
+     *         Steps run by compiled code are only counted if there is a trace, a limit, or setCountSteps is on
      */
-    private void delete(String var1)
+    long getSteps()
     {
-        _variables.remove(var1);
+        return _steps;
     }
 
     /**
-     * Swaps the values of the 2 specified variables
-     * @param var1 A variable to swap
-     * @param var2 A variable to swap
+     * @return The variables, which hold the final state once the program has been executed
      */
-    private void swap(String var1, String var2)
+    RegisterFile getRegisters()
     {
-        checkVariableInit(var1);
-        checkVariableInit(var2);
-        Integer tmp = _variables.get(var1);
-        _variables.put(var1, _variables.get(var2));
-        _variables.put(var2, tmp);
+        return _registers;
     }
 
     /**
-     * Copies the value from one variable to another
-     * @param var1 the variable to copy from
-     * @param var2 The variable to copy to
+     * Turns profiling on or off. Profiling always runs the program on the VM, one instruction at a time
+     * @param profiling True to record per-line counts and times when the program is executed
      */
-    private void copyTo(String var1, String var2)
+    void setProfiling(boolean profiling)
     {
-        checkVariableInit(var1);
-        _variables.put(var2, _variables.get(var1));
+        _profiler = profiling ? new Profiler(_program.lineCount()) : null;
     }
 
     /**
-     * Moves execution to the specified line if the specified variable is positive
-     * @param var The variable to check is it is positive
-     * @param lineNo The number of the line to go to if the variable is positive
+     * @return The per-line counts and times recorded so far, or null if profiling is off
      */
-    private void ifPositive(String var, String lineNo)
+    Profiler getProfiler()
     {
-        checkVariableInit(var);
-        _linePtr = _variables.get(var) > 0 ? Integer.parseInt(lineNo) - 2 : _linePtr;
+        return _profiler;
     }
 
     /**
-     * Moves execution to the specified line if the specified variable is zero
-     * @param var The variable to check is it is zero
-     * @param lineNo The number of the line to go to if the variable is zero
+     * Turns the LoopOptimiser on or off, which runs counting loops as arithmetic instead of step by step.
+     * Only the final output of a summarised loop appears in the trace. Unless every step is traced, as much of
+     * the program as the PartialEvaluator can run is run in advance, and stores that are never read are removed
+     * @param optimiseLoops True to optimise loops when the program is executed
      */
-    private void ifZero(String var, String lineNo)
+    void setOptimiseLoops(boolean optimiseLoops)
     {
-        checkVariableInit(var);
-        _linePtr = _variables.get(var).equals(0) ? Integer.parseInt(lineNo) - 2 : _linePtr;
+        _optimiseLoops = optimiseLoops;
     }
 
     /**
-     * Assign a given value to a variable
-     * @param value The value to assign
-     * @param dest The variable to be assigned to
+     * @return A line describing each loop the LoopOptimiser rewrote, what was evaluated in advance, each dead
+     *         store removed, and each jump that the ControlFlowGraph found makes the program unstructured
      */
-    private void assign(String value, String dest)
+    List<String> getOptimisationReport()
     {
-        _variables.put(dest, Integer.parseInt(value));
+        return _optimisationReport;
+    }
+
+    /**
+     * Executes the program instruction by instruction
+     * @throws InterpreterException If there is no source code, or it has procedures and is checkpointed or resumed
+     * @throws LimitExceededException If the step or time limit is reached, leaving the variables as they were then
+     * @throws ExecutionCancelledException If cancel() is called, leaving the variables as they were then
+     */
+    void execute() throws InterpreterException
+    {
+        InterpreterMetrics metrics = InterpreterMetrics.get();
+        FlightEvents.RunStart start = new FlightEvents.RunStart();
+        if (start.shouldCommit())
+        {
+            start.instructions = _program.size();
+            start.engine = _engine.name();
+            start.optimised = _optimiseLoops;
+            start.commit();
+        }
+        FlightEvents.Run run = new FlightEvents.Run();
+        run.begin();
+        long startSteps = _steps;
+        _reportedSteps = _steps;
+        String outcome = "Completed";
+        metrics.runStarted();
+        try
+        {
+            run();
+        }
+        catch (InterpreterException e)
+        {
+            metrics.interpreterException();
+            outcome = e.getClass().getSimpleName();
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            outcome = e.getClass().getSimpleName();
+            throw e;
+        }
+        finally
+        {
+            metrics.addInstructions(_steps - _reportedSteps);
+            _reportedSteps = _steps;
+            metrics.runFinished();
+            if (run.shouldCommit())
+            {
+                run.instructions = _program.size();
+                run.engine = _engine.name();
+                run.steps = _steps - startSteps;
+                run.outcome = outcome;
+                run.commit();
+            }
+        }
     }
 
     /**
-     * Adds 2 variables together and stores the result in destination
-     * @param var1 A variable to add
-     * @param var2 A variable to add
-     * @param dest The variable to store the result in
+     * Executes the program, for execute()
      */
-    private void add(String var1, String var2, String dest)
+    private void run() throws InterpreterException
     {
-        checkVariableInit(var1);
-        checkVariableInit(var2);
-        _variables.put(dest, _variables.get(var1) + _variables.get(var2));
+        if (_program.size() <= 0)
+            throw new InterpreterException("No source code to execute");
+        // A checkpoint only holds the variables, not the calls in progress
+        if (_program.hasProcedures() && (_checkpointFile != null || _resumeFrom != null))
+            throw new InterpreterException("Programs with procedures cannot be checkpointed or resumed");
+
+        long startSteps = _steps;
+        byte[] cacheKey = null;
+        if (_resultCache != null && _trace == null && _profiler == null && _checkpointFile == null
+                && _resumeFrom == null && (_calls == null || _calls.depth() == 0))
+        {
+            cacheKey = ResultCache.key(_program, _pc, _registers, _optimiseLoops);
+            ResultCache.Entry cached = _resultCache.get(cacheKey, _program.getVariableNames(), _registers.isWidening(),
+                    _countSteps || _stepLimit != Long.MAX_VALUE, _stepLimit - _steps);
+            if (cached != null)
+            {
+                _registers = cached.registers;
+                _steps += Math.max(cached.steps, 0);
+                _reportedSteps = _steps;  // None of them were run
+                _progressSteps = _steps;
+                _pc = _program.size();
+                return;
+            }
+        }
+
+        // Includes any time spent optimising
+        _deadline = System.nanoTime() + _timeLimitNanos;
+        if (_optimiseLoops && !_optimised)
+        {
+            _optimised = true;
+            _optimisationReport.clear();
+            _optimisationReport.addAll(ControlFlowGraph.build(_program).getWarnings());
+            _program = LoopOptimiser.optimise(_program, _optimisationReport);
+            // Evaluating or removing statements would change what a trace of every step shows, and neither
+            // follows variables through calls
+            if ((_trace == null || !_trace.tracesSteps()) && !_program.hasProcedures())
+            {
+                // The evaluation runs summarised loops as arithmetic too. It is part of the run, so it takes no
+                // more instructions than the steps left, and stops at the time limit or on cancel(). A checkpoint
+                // is only for the same program, so that always has the same budget however many steps are left
+                long budget = _checkpointFile == null && _resumeFrom == null
+                              ? Math.min(EVALUATION_BUDGET, _stepLimit - _steps) : EVALUATION_BUDGET;
+                _program = PartialEvaluator.evaluate(_program, _registers.isWidening(), budget,
+                                                     () -> _cancellation.requested || timeUp(), _optimisationReport);
+                _program = ControlFlowGraph.build(_program).eliminateDeadStores(_optimisationReport);
+                if (_cancellation.requested)
+                    throw new ExecutionCancelledException("Stopped after " + _steps + " steps");
+                if (timeUp())
+                    throw new LimitExceededException(timeLimitMessage());
+            }
+        }
+        if (_resumeFrom != null)
+        {
+            Checkpoint checkpoint = _resumeFrom;
+            _resumeFrom = null;
+            if (!checkpoint.matches(_program))
+                throw new InterpreterException("The checkpoint is for a different program, or different optimisations");
+            _registers = checkpoint.toRegisters(_program.getVariableNames());
+            _pc = checkpoint.getPc();
+            _steps = checkpoint.getSteps();
+            _reportedSteps = _steps;      // Already reported when they were run before
+        }
+
+        if (_program.hasProcedures() && _calls == null)
+            _calls = new CallStack(_program);
+
+        // Compiled code cannot be profiled line by line (and a program with procedures does not compile)
+        CompiledCode code = null;
+        if (_engine == Engine.BYTECODE && _profiler == null)
+            code = _compiled != null ? _compiled : BytecodeCompiler.compile(_program, _registers.isWidening());
+        else if (_engine == Engine.NODES && _profiler == null)
+            code = _compiled != null ? _compiled : NodeCompiler.compile(_program);
+        boolean reportSteps = (_trace != null && _trace.tracesSteps()) || _countSteps
+                || _stepLimit != Long.MAX_VALUE || _timeLimitNanos != 0 || _checkpointFile != null;
+        // Compiled code only checks the time limit when it completes a statement, so could not stop a loop without any
+        if (code != null && _timeLimitNanos != 0 && hasLoopWithoutStatements(_program))
+            code = null;
+        IntConsumer compiledTrace = reportSteps ? pc -> completed(pc) : null;
+        _nextCheckpointStep = _checkpointSteps > 0 ? _steps + _checkpointSteps : Long.MAX_VALUE;
+        _nextCheckpointTime = System.nanoTime() + _checkpointNanos;
+        try
+        {
+            while (_pc < _program.size())
+            {
+                // Bytecode only holds longs, so wide values are left to the interpreter
+                if (code != null && (code.handlesWide() || !_registers.hasWide()))
+                {
+                    // Runs until the program completes or reaches an instruction the compiled code hands back
+                    _pc = code.run(_registers, compiledTrace, _cancellation, _pc);
+                    if (_pc >= _program.size())
+                        break;
+                    // It hands back when cancelled, even if no statement completed for a safe point to be reached
+                    if (_cancellation.requested)
+                        throw new Stop(reportSteps ? "Stopped after " + _steps + " steps" : "Stopped", true, _pc);
+                }
+                if (_profiler == null)
+                    _pc = step(_program.get(_pc));
+                else
+                    _pc = profiledStep(_program.get(_pc));
+            }
+            if (_checkpointFile != null)
+                saveCheckpoint(_pc);
+            if (cacheKey != null)
+                _resultCache.put(cacheKey, _registers, code == null || reportSteps ? _steps - startSteps : -1);
+        }
+        catch (Stop e)
+        {
+            if (_checkpointFile != null)
+                saveCheckpoint(e.nextPc);
+            if (e.cancelled)
+                throw new ExecutionCancelledException(e.getMessage());
+            throw new LimitExceededException(e.getMessage());
+        }
+        finally
+        {
+            _progressSteps = _steps;
+            // Also on an error, so the trace shows how far the program got
+            if (_trace != null)
+                _trace.finish(_registers);
+        }
     }
 
     /**
-     * Subtracts 1 variable from another and stores the result in destination
-     * @param var1 The variable to subtract from
-     * @param var2 The variable to subtract
-     * @param dest The variable to store the result in
+     * Executes one instruction, and outputs the variables if it completes a statement
+     * @param instruction the instruction to execute
+     * @return The index of the next instruction to execute
      */
-    private void subtract(String var1, String var2, String dest)
+    private int step(Instruction instruction)
     {
-        checkVariableInit(var1);
-        checkVariableInit(var2);
-        _variables.put(dest, _variables.get(var1) - _variables.get(var2));
+        int next = _pc + 1;
+        switch (instruction.opcode)
+        {
+            case CLEAR: _registers.clear(instruction.operand1); break;
+            case INCR: _registers.increment(instruction.operand1); break;
+            case DECR: _registers.decrement(instruction.operand1); break;
+            case DEL: _registers.delete(instruction.operand1); break;
+            case SWAP: _registers.swap(instruction.operand1, instruction.operand2); break;
+            case COPY: _registers.copyTo(instruction.operand1, instruction.operand2); break;
+            case ADD: _registers.add(instruction.operand1, instruction.operand2, instruction.destination); break;
+            case SUBTRACT: _registers.subtract(instruction.operand1, instruction.operand2, instruction.destination); break;
+            case MULTIPLY: _registers.multiply(instruction.operand1, instruction.operand2, instruction.destination); break;
+            case DIVIDE: _registers.divide(instruction.operand1, instruction.operand2, instruction.destination); break;
+            case ASSIGN: _registers.set(instruction.destination, instruction.literal); break;
+            case IFP:
+                _registers.checkVariableInit(instruction.operand1);
+                if (_registers.get(instruction.operand1) > 0)
+                    next = instruction.target;
+                break;
+            case IFZ:
+                _registers.checkVariableInit(instruction.operand1);
+                if (_registers.get(instruction.operand1) == 0)
+                    next = instruction.target;
+                break;
+            case WHILE:
+                long iterations = _registers.get(instruction.operand1);
+                if (_registers.get(instruction.operand1) > 0
+                        && (instruction.summary == null || !instruction.summary.apply(_registers)))
+                {
+                    if (_profiler != null)
+                        _profiler.recordIterations(instruction.line, 1);
+                    return next; // Enter the loop body
+                }
+                if (_profiler != null && iterations > 0)
+                    _profiler.recordIterations(instruction.line, iterations); // The summary ran the whole loop
+                if (iterations >= CHECK_INTERVAL)
+                    loopBurst(instruction.line, iterations, true);
+                next = instruction.target; // The loop is complete, so output as for any other statement
+                break;
+            case END:
+                // A loop might not complete any statement, so check for cancellation here too
+                if ((++_loopBacks & (CHECK_INTERVAL - 1)) == 0)
+                {
+                    loopBurst(_program.get(instruction.target).line, CHECK_INTERVAL, false);
+                    safePoint(_pc);
+                }
+                return instruction.target;
+            case PROC: return instruction.target; // Only runs when called
+            case CALL:
+                next = _calls.call(_pc, _registers);
+                if (next < 0)
+                    throw new Stop("Call depth limit of " + CallStack.MAX_DEPTH + " exceeded", false, _pc);
+                return next; // The call completes when it returns
+            case RETURN:
+                next = _calls.ret(_registers);
+                completed(next - 1);
+                return next;
+        }
+        completed(_pc);
+        return next;
     }
 
     /**
-     * Multiplies 2 variables together and stores the result in destination
-     * @param var1 A variable to multiply
-     * @param var2 A variable to multiply
-     * @param dest The variable to store the result in
+     * Executes one instruction, recording how long it took against its line
+     * @param instruction the instruction to execute
+     * @return The index of the next instruction to execute
      */
-    private void multiply(String var1, String var2, String dest)
+    private int profiledStep(Instruction instruction)
     {
-        checkVariableInit(var1);
-        checkVariableInit(var2);
-        _variables.put(dest, _variables.get(var1) * _variables.get(var2));
+        long start = System.nanoTime();
+        try
+        {
+            return step(instruction);
+        }
+        finally
+        {
+            _profiler.record(instruction.line, System.nanoTime() - start);
+        }
     }
 
+    /**
+     * Counts a completed statement, passes the variables to the trace if there is one, and checks the limits
+     * @param pc The index of the instruction that completed
+     */
+    private void completed(int pc)
+    {
+        _steps++;
+        if (_trace != null)
+            _trace.step(pc, _registers);
+
+        // Stops before the statement that would go over the limit, so that at most the limit are run
+        if (_steps >= _stepLimit && !finishesAt(nextPc(pc)))
+            throw new Stop("Step limit of " + _stepLimit + " exceeded", false, nextPc(pc));
+        if ((_steps & (CHECK_INTERVAL - 1)) == 0)
+            safePoint(pc);
+        if (_checkpointFile != null && (_steps >= _nextCheckpointStep || (_checkpointNanos != 0
+                && (_steps & (CHECK_INTERVAL - 1)) == 0 && System.nanoTime() - _nextCheckpointTime >= 0)))
+            saveCheckpoint(nextPc(pc));
+    }
 
     /**
-     * Performs integer division between 2 variables and stores the result in destination
-     * @param var1 The denominator variable
-     * @param var2 The numerator variable
-     * @param dest The variable to store the result in
+     * Works out where execution goes after an instruction completes a statement (or reaches a safe point),
+     * which only depends on the instruction and the variables after it
+     * @param pc The index of the instruction that completed
+     * @return The index of the next instruction
      */
-    private void divide(String var1, String var2, String dest)
+    private int nextPc(int pc)
     {
-        checkVariableInit(var1);
-        checkVariableInit(var2);
-        _variables.put(dest, _variables.get(var1) / _variables.get(var2));
+        Instruction instruction = _program.get(pc);
+        switch (instruction.opcode)
+        {
+            case IFP: return _registers.get(instruction.operand1) > 0 ? instruction.target : pc + 1;
+            case IFZ: return _registers.get(instruction.operand1) == 0 ? instruction.target : pc + 1;
+            case WHILE: return instruction.target; // Only completes when the loop exits
+            case END: return instruction.target;   // Only reaches a safe point as it loops back
+            default: return pc + 1;
+        }
     }
 
     /**
-     * Checks whether a given variable is initialised, and if not sets its value to 0
-     * @param var the variable to initialise (if not already initialised)
+     * @param pc The index of the next instruction to execute
+     * @return True if the program ends there without running another statement (skipping any procedures that
+     *         are defined after the last statement)
      */
-    private void checkVariableInit(String var)
+    private boolean finishesAt(int pc)
     {
-        _variables.putIfAbsent(var, 0);
+        while (pc < _program.size() && _program.get(pc).opcode == Opcode.PROC)
+            pc = _program.get(pc).target;
+        return pc >= _program.size();
     }
 
     /**
-     * Prints each variable and its value into a string
-     * If txtOutput exists then the string is appended to the end of txtOutput
-     * Else the string is printed to the standard output
+     * Saves a checkpoint, and schedules the next one
+     * @param pc The index of the next instruction to execute
      */
-    private void outputVariables()
+    private void saveCheckpoint(int pc)
     {
-        _variables.forEach((variable, value) ->
+        if (_programHash == null)
+            _programHash = Checkpoint.hash(_program);
+        try
+        {
+            Checkpoint.save(_checkpointFile, _programHash, _registers, pc, _steps);
+        }
+        catch (IOException e)
         {
-            String output = variable + ":" + value + ", ";
-            if (txtOutput != null)
-                txtOutput.setText(txtOutput.getText() + output);
-            else
-                System.out.print(output);
-        });
-        if (txtOutput != null)
-            txtOutput.setText(txtOutput.getText() + "\n");
-        else
-            System.out.println();
+            throw new UncheckedIOException("Cannot save checkpoint " + _checkpointFile, e);
+        }
+        if (_checkpointSteps > 0)
+            _nextCheckpointStep = _steps + _checkpointSteps;
+        _nextCheckpointTime = System.nanoTime() + _checkpointNanos;
     }
 
     /**
-     * Checks if the given line is a comment or blank line, or not
-     * @param line The line to check
-     * @return True if the line is a comment or a blank like
+     * Publishes the progress, and checks for cancellation and the time limit
+     * @param pc The index of the instruction being executed
      */
-    private boolean isCommentOrBlank(String line)
+    private void safePoint(int pc)
     {
-        Pattern commentPattern = Pattern.compile(COMMENT_REG_EX);
-        Matcher commentMatcher = commentPattern.matcher(line);
+        _progressSteps = _steps;
+        InterpreterMetrics.get().addInstructions(_steps - _reportedSteps);
+        _reportedSteps = _steps;
+        _progressLine = _program.get(pc).line;
+        if (_cancellation.requested)
+            throw new Stop("Stopped after " + _steps + " steps", true, nextPc(pc));
+        if (timeUp())
+            throw new Stop(timeLimitMessage(), false, nextPc(pc));
+    }
 
-        Pattern blankPattern = Pattern.compile(BLANK_REG_EX);
-        Matcher blankMatcher = blankPattern.matcher(line);
+    /** @return True if there is a time limit, and it has been reached */
+    private boolean timeUp()
+    {
+        return _timeLimitNanos != 0 && System.nanoTime() - _deadline > 0;
+    }
 
-        return commentMatcher.matches() || blankMatcher.matches();
+    private String timeLimitMessage()
+    {
+        return "Time limit of " + _timeLimitNanos / 1_000_000 + " ms reached";
     }
 
     /**
-     * Checks if the given line is syntactically correct
-     * @param line The line to check
-     * @return True if the line matches the syntax specifiers (RegEx Strings)
+     * Emits a FlightEvents.LoopBurst, if a recording has them enabled
+     * @param line The source line (0 based) of the loop's while
      */
-    private boolean isSyntacticallyCorrect(String line)
+    private static void loopBurst(int line, long iterations, boolean summarised)
     {
-        Matcher unaryMatcher = Pattern.compile(UNARY_OPERATOR_REG_EX).matcher(line);
-        Matcher binaryAfterMatcher = Pattern.compile(SWAP_REG_EX).matcher(line);
-        Matcher whileMatcher = Pattern.compile(WHILE_REG_EX).matcher(line);
-        Matcher endMatcher = Pattern.compile(END_REG_EX).matcher(line);
-        Matcher binaryMiddleMatcher = Pattern.compile(BINARY_OPERATOR_REG_EX).matcher(line);
-        Matcher copyToMatcher = Pattern.compile(COPY_TO_REG_EX).matcher(line);
-        Matcher assignmentMatcher = Pattern.compile(ASSIGNMENT_REG_EX).matcher(line);
-        Matcher ifMatcher = Pattern.compile(IF_REG_EX).matcher(line);
-
-        return unaryMatcher.matches() || binaryAfterMatcher.matches() || whileMatcher.matches()
-                || endMatcher.matches() || binaryMiddleMatcher.matches() || copyToMatcher.matches()
-                || assignmentMatcher.matches() || ifMatcher.matches();
+        FlightEvents.LoopBurst event = new FlightEvents.LoopBurst();
+        if (event.shouldCommit())
+        {
+            event.line = line + 1;
+            event.iterations = iterations;
+            event.summarised = summarised;
+            event.commit();
+        }
     }
 
     /**
-     * Checks if a String is a reserved identifier
-     * @param id The string to check
-     * @return True if it is a reserved identifier
+     * @return True if the program has a loop whose body has nothing but (possibly) other loops in it
      */
-    private boolean isReservedIdentifier(String id)
+    private static boolean hasLoopWithoutStatements(Program program)
     {
-        for (String i : RESERVED_IDENTIFIERS)
+        for (int pc = 0; pc < program.size(); pc++)
         {
-            if (i.equals(id))
+            Instruction instruction = program.get(pc);
+            if (instruction.opcode != Opcode.WHILE)
+                continue;
+            boolean empty = true;
+            for (int i = pc + 1; i < instruction.target - 1 && empty; i++)
+                empty = program.get(i).opcode == Opcode.WHILE || program.get(i).opcode == Opcode.END;
+            if (empty)
                 return true;
         }
         return false;
     }
 
+    /**
+     * Unwinds out of compiled code (through the trace callback, which cannot throw a checked exception)
+     * when a limit is reached or execution is cancelled. execute() turns it into a checked exception
+     */
+    private static final class Stop extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        final boolean cancelled;
+        final int nextPc;   // Where to carry on from, had it not stopped
+
+        Stop(String message, boolean cancelled, int nextPc)
+        {
+            super(message, null, false, false);
+            this.cancelled = cancelled;
+            this.nextPc = nextPc;
+        }
+    }
+
 }
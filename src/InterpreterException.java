@@ -8,18 +8,30 @@ class InterpreterException extends Exception
     InterpreterException(String errorMessage, Throwable e) { super(errorMessage, e); }
 }
 
-class EndOfLoopException extends InterpreterException
+class SyntaxErrorException extends InterpreterException
 {
-    EndOfLoopException() { super(); }
+    SyntaxErrorException() { super(); }
 
-    EndOfLoopException(String errorMessage) { super(errorMessage); }
+    SyntaxErrorException(String errorMessage) { super(errorMessage); }
 
 }
 
-class SyntaxErrorException extends InterpreterException
+/**
+ * Thrown when a program is stopped because it ran for more steps or longer than allowed
+ */
+class LimitExceededException extends InterpreterException
 {
-    SyntaxErrorException() { super(); }
+    private static final long serialVersionUID = 1L;
 
-    SyntaxErrorException(String errorMessage) { super(errorMessage); }
+    LimitExceededException(String errorMessage) { super(errorMessage); }
+}
 
-}
\ No newline at end of file
+/**
+ * Thrown when a program is stopped by Interpreter.cancel()
+ */
+class ExecutionCancelledException extends InterpreterException
+{
+    private static final long serialVersionUID = 1L;
+
+    ExecutionCancelledException(String errorMessage) { super(errorMessage); }
+}
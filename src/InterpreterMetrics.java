@@ -0,0 +1,132 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Counts what every Interpreter in the JVM does, for JMX. The counts are LongAdders, which spread concurrent
+ * updates over separate cells, so any number of interpreters on different threads can update them without
+ * contending. Interpreters add their steps every Interpreter.CHECK_INTERVAL steps and when they stop, rather than
+ * on every step
+ */
+final class InterpreterMetrics implements InterpreterMetricsMBean
+{
+    static final String OBJECT_NAME = "barebones:type=Interpreter";
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final InterpreterMetrics INSTANCE = new InterpreterMetrics();
+    private static boolean registered = false;
+
+    private final LongAdder instructions = new LongAdder();
+    private final LongAdder activeRuns = new LongAdder();
+    private final LongAdder runsFinished = new LongAdder();
+    private final LongAdder parses = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder syntaxErrors = new LongAdder();
+    private final LongAdder interpreterExceptions = new LongAdder();
+
+    // The rate, worked out when it is read, from the count when it was last worked out
+    private long sampleNanos = System.nanoTime();
+    private long sampleInstructions = 0;
+    private double instructionsPerSecond = 0;
+
+    private InterpreterMetrics() {}
+
+    /** @return The metrics for the whole JVM */
+    static InterpreterMetrics get() { return INSTANCE; }
+
+    /**
+     * Makes the metrics visible over JMX, in the platform MBean server. Does nothing if they already are
+     */
+    static synchronized void register()
+    {
+        if (registered)
+            return;
+        try
+        {
+            // Wrapped, as JMX would otherwise only accept a public class
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(INSTANCE, InterpreterMetricsMBean.class), new ObjectName(OBJECT_NAME));
+        }
+        catch (InstanceAlreadyExistsException e)
+        {
+            // Registered by another class loader's copy, which is just as good
+        }
+        catch (JMException e)
+        {
+            throw new IllegalStateException("Could not register the interpreter metrics", e);
+        }
+        registered = true;
+    }
+
+    void runStarted()
+    {
+        activeRuns.increment();
+    }
+
+    void runFinished()
+    {
+        activeRuns.decrement();
+        runsFinished.increment();
+    }
+
+    /** @param count The number of statements completed since they were last added */
+    void addInstructions(long count)
+    {
+        instructions.add(count);
+    }
+
+    /** @param nanos The time a parse took */
+    void parsed(long nanos)
+    {
+        parses.increment();
+        parseNanos.add(nanos);
+    }
+
+    void syntaxError()
+    {
+        syntaxErrors.increment();
+    }
+
+    void interpreterException()
+    {
+        interpreterExceptions.increment();
+    }
+
+    @Override
+    public long getInstructionsExecuted() { return instructions.sum(); }
+
+    @Override
+    public synchronized double getInstructionsPerSecond()
+    {
+        long now = System.nanoTime();
+        if (now - sampleNanos >= RATE_WINDOW_NANOS)
+        {
+            long total = instructions.sum();
+            instructionsPerSecond = (total - sampleInstructions) * 1e9 / (now - sampleNanos);
+            sampleNanos = now;
+            sampleInstructions = total;
+        }
+        return instructionsPerSecond;
+    }
+
+    @Override
+    public long getActiveRuns() { return activeRuns.sum(); }
+
+    @Override
+    public long getRunsFinished() { return runsFinished.sum(); }
+
+    @Override
+    public long getParses() { return parses.sum(); }
+
+    @Override
+    public double getParseMillis() { return parseNanos.sum() / 1e6; }
+
+    @Override
+    public long getSyntaxErrors() { return syntaxErrors.sum(); }
+
+    @Override
+    public long getInterpreterExceptions() { return interpreterExceptions.sum(); }
+}
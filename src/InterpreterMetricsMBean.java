@@ -0,0 +1,30 @@
+/**
+ * The interpreter's metrics, as they appear over JMX (under InterpreterMetrics.OBJECT_NAME).
+ * JMX only accepts a public interface
+ */
+public interface InterpreterMetricsMBean
+{
+    /** @return The statements completed by every run, as Interpreter.getSteps() counts them */
+    long getInstructionsExecuted();
+
+    /** @return The rate of getInstructionsExecuted(), over at least the last second */
+    double getInstructionsPerSecond();
+
+    /** @return The number of programs executing now */
+    long getActiveRuns();
+
+    /** @return The number of programs that have finished executing, whether or not they completed */
+    long getRunsFinished();
+
+    /** @return The number of times source code has been turned into a Program */
+    long getParses();
+
+    /** @return The total time spent turning source code into Programs, in milliseconds */
+    double getParseMillis();
+
+    /** @return The number of SyntaxErrorExceptions thrown while parsing */
+    long getSyntaxErrors();
+
+    /** @return The number of InterpreterExceptions (including limits and cancels) thrown by executing programs */
+    long getInterpreterExceptions();
+}
@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures an ExecutionServer: sends it the same program over and over from several clients at once, each sending
+ * its next request as soon as the last is answered, then prints the throughput and the spread of the latencies.
+ * Each client keeps its connection alive between requests, as HttpURLConnection does by default.
+ *
+ * Usage: --load [options] program-file
+ */
+final class LoadGenerator
+{
+    private static final String USAGE = String.join("\n",
+            "Usage: --load [options] program-file",
+            "  --url URL            the server (default: http://127.0.0.1:8080" + ExecutionServer.PATH + ")",
+            "  --query QUERY        parameters for each request, e.g. engine=bytecode&max-steps=1000",
+            "  --clients N          requests to have in flight at once (default: 8)",
+            "  --requests N         requests to measure (default: 1000)",
+            "  --warmup N           requests to send first, and not measure (default: 100)");
+
+    private String url = "http://127.0.0.1:8080" + ExecutionServer.PATH;
+    private String query = null;
+    private int clients = 8;
+    private int requests = 1000;
+    private int warmup = 100;
+    private String program = null;
+
+    private URL target;
+    private byte[] source;
+    private final LongAdder completed = new LongAdder();    // Programs that ran to the end
+    private final LongAdder stopped = new LongAdder();      // By a limit
+    private final LongAdder failed = new LongAdder();       // With an error, or a response other than 200 or 503
+    private final LongAdder rejected = new LongAdder();     // With 503, as the server was busy
+
+    private LoadGenerator() {}
+
+    /**
+     * Runs the load test given on the command line
+     * @param args The command line arguments, after --load
+     * @return The exit status: 0 if every request was answered, 1 if any could not be sent, 2 if the arguments
+     *         are invalid
+     */
+    static int run(String[] args)
+    {
+        LoadGenerator generator = new LoadGenerator();
+        try
+        {
+            generator.parseArguments(args);
+            generator.target = new URL(generator.query == null ? generator.url : generator.url + "?" + generator.query);
+            generator.source = Files.readAllBytes(Paths.get(generator.program));
+        }
+        catch (IllegalArgumentException | IOException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        try
+        {
+            return generator.measure();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+    }
+
+    private void parseArguments(String[] args)
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            switch (arg)
+            {
+                case "--url": url = value(args, ++i, arg); break;
+                case "--query": query = value(args, ++i, arg); break;
+                case "--clients": clients = Integer.parseInt(value(args, ++i, arg)); break;
+                case "--requests": requests = Integer.parseInt(value(args, ++i, arg)); break;
+                case "--warmup": warmup = Integer.parseInt(value(args, ++i, arg)); break;
+                default:
+                    if (arg.startsWith("--") || program != null)
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                    program = arg;
+            }
+        }
+        if (program == null)
+            throw new IllegalArgumentException("No program given");
+        if (clients < 1 || requests < 1 || warmup < 0)
+            throw new IllegalArgumentException("--clients and --requests must be at least 1");
+    }
+
+    private static String value(String[] args, int i, String option)
+    {
+        if (i >= args.length)
+            throw new IllegalArgumentException(option + " needs a value");
+        return args[i];
+    }
+
+    /**
+     * Sends the warm up requests, then the measured ones, and prints the results
+     * @return The exit status
+     */
+    private int measure() throws InterruptedException
+    {
+        send(warmup, null);
+        completed.reset();
+        stopped.reset();
+        failed.reset();
+        rejected.reset();
+
+        long[] latencies = new long[requests];
+        long start = System.nanoTime();
+        int errors = send(requests, latencies);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        System.out.printf("%d requests from %d clients in %.2f s: %.1f requests/s%n",
+                requests, clients, seconds, requests / seconds);
+        System.out.printf("Latency: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n", percentile(latencies, 50),
+                percentile(latencies, 90), percentile(latencies, 99), latencies[latencies.length - 1] / 1e6);
+        System.out.printf("%d completed, %d stopped by a limit, %d failed, %d turned away (503), %d not answered%n",
+                completed.sum(), stopped.sum(), failed.sum(), rejected.sum(), errors);
+        return errors == 0 ? 0 : 1;
+    }
+
+    /**
+     * Sends a number of requests, spread over the clients
+     * @param latencies Where to record the time each took, in nanoseconds, or null not to
+     * @return The number of requests that could not be sent, or were not answered
+     */
+    private int send(int count, long[] latencies) throws InterruptedException
+    {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[Math.min(clients, Math.max(count, 1))];
+        for (int t = 0; t < threads.length; t++)
+        {
+            threads[t] = new Thread(() -> {
+                for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement())
+                {
+                    long start = System.nanoTime();
+                    try
+                    {
+                        sendOne();
+                    }
+                    catch (IOException e)
+                    {
+                        errors.incrementAndGet();
+                    }
+                    if (latencies != null)
+                        latencies[i] = System.nanoTime() - start;
+                }
+            }, "Load client " + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        return errors.get();
+    }
+
+    /** Sends the program, and counts the response */
+    private void sendOne() throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(source.length);
+        try (OutputStream out = connection.getOutputStream())
+        {
+            out.write(source);
+        }
+        int code = connection.getResponseCode();
+        String body;
+        // Read to the end, so that the connection can be used again
+        try (InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream())
+        {
+            body = in == null ? "" : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        if (code == 503)
+            rejected.increment();
+        else if (code != 200)
+            failed.increment();
+        else if (body.contains("\"status\": \"ok\""))
+            completed.increment();
+        else if (body.contains("\"status\": \"stopped\""))
+            stopped.increment();
+        else
+            failed.increment();
+    }
+
+    /** @return The given percentile of the sorted latencies, in milliseconds */
+    private static double percentile(long[] sorted, int percent)
+    {
+        int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+}
@@ -0,0 +1,248 @@
+import java.util.*;
+
+/**
+ * Finds counting loops - such as add-and-clear (while x not 0 do; incr y; decr x; end;), copy via a temporary,
+ * and multiplication by nested loops - and attaches a LoopSummary to their while, so that the whole loop runs
+ * as O(1) arithmetic instead of step by step.
+ *
+ * A loop can be summarised if its body only uses clear, incr, assign, copy, swap, +, linear inner loops,
+ * and exactly one decr of the loop's variable, and no goto jumps into it.
+ * The summary is found by symbolically executing the body (as affine expressions over the variables at the
+ * start of an iteration), and checking that every iteration after the first changes the variables by the same
+ * amount. The original loop is kept, and still runs step by step whenever the summary does not apply
+ */
+final class LoopOptimiser
+{
+    private final Program program;
+    private final String[] names;
+    private final LoopSummary[] summaries;
+    private final boolean[] jumpedInto;
+
+    private LoopOptimiser(Program program)
+    {
+        this.program = program;
+        this.names = program.getVariableNames();
+        this.summaries = new LoopSummary[program.size()];
+
+        // Mark every instruction a goto lands on (other than a while, which is the normal way into its loop)
+        jumpedInto = new boolean[program.size() + 1];
+        for (int pc = 0; pc < program.size(); pc++)
+        {
+            Instruction instruction = program.get(pc);
+            if (instruction.opcode == Opcode.IFP || instruction.opcode == Opcode.IFZ)
+                jumpedInto[instruction.target] = true;
+        }
+    }
+
+    /**
+     * Summarises every loop in a program that can be
+     * @param program The program to optimise
+     * @param report Has a line added describing each loop that is rewritten
+     * @return The program with loop summaries attached
+     */
+    static Program optimise(Program program, List<String> report)
+    {
+        LoopOptimiser optimiser = new LoopOptimiser(program);
+
+        // Inner loops end before outer ones, so are summarised first
+        for (int pc = 0; pc < program.size(); pc++)
+        {
+            Instruction end = program.get(pc);
+            if (end.opcode != Opcode.END)
+                continue;
+
+            LoopSummary summary = optimiser.summarise(end.target, pc);
+            if (summary != null)
+            {
+                optimiser.summaries[end.target] = summary;
+                report.add("Line " + (program.get(end.target).line + 1) + ": " + summary.toString(optimiser.names));
+            }
+        }
+        return program.withSummaries(optimiser.summaries);
+    }
+
+    /**
+     * @param start The index of the loop's while
+     * @param end The index of the loop's end
+     * @return The loop's summary, or null if it cannot be summarised
+     */
+    private LoopSummary summarise(int start, int end)
+    {
+        for (int pc = start + 1; pc <= end; pc++)
+        {
+            if (jumpedInto[pc])
+                return null;
+        }
+
+        int counter = program.get(start).operand1;
+        AffineExpression[] state = new AffineExpression[names.length]; // null = unchanged
+        Set<Integer> touched = new TreeSet<>();
+        Set<Integer> defined = new HashSet<>();    // Defined unconditionally so far in the iteration
+        Set<Integer> required = new TreeSet<>();
+        int decrements = 0;
+
+        try
+        {
+            for (int pc = start + 1; pc < end; pc++)
+            {
+                Instruction instruction = program.get(pc);
+                if (instruction.opcode == Opcode.WHILE)
+                {
+                    // An inner loop adds n * delta to each target, and clears its counter (n)
+                    LoopSummary inner = summaries[pc];
+                    if (inner == null || !inner.isLinear())
+                        return null;
+
+                    int innerCounter = inner.getCounter();
+                    int[] innerTargets = inner.getTargets();
+                    AffineExpression n = valueOf(innerCounter, state);
+                    List<Integer> innerTouched = new ArrayList<>();
+                    innerTouched.add(innerCounter);
+                    for (int i = 0; i < innerTargets.length; i++)
+                    {
+                        state[innerTargets[i]] = valueOf(innerTargets[i], state).plus(n.times(inner.getLinearDelta(i)));
+                        innerTouched.add(innerTargets[i]);
+                    }
+                    state[innerCounter] = AffineExpression.constant(0);
+
+                    // It only defines its targets if it runs, so they must already be defined
+                    for (int slot : innerTouched)
+                    {
+                        if (slot == counter)
+                            return null;
+                        if (!defined.contains(slot))
+                            required.add(slot);
+                        touched.add(slot);
+                    }
+                    pc = instruction.target - 1;
+                    continue;
+                }
+
+                if (instruction.opcode == Opcode.DECR && instruction.operand1 == counter)
+                {
+                    // The counter is at least 1 here (it is only changed by this decr), so this cannot clamp at 0
+                    decrements++;
+                    state[counter] = valueOf(counter, state).minus(AffineExpression.constant(1));
+                    continue;
+                }
+
+                if (writes(instruction, counter) || !execute(instruction, state))
+                    return null;
+                for (int slot : new int[] {instruction.operand1, instruction.operand2, instruction.destination})
+                {
+                    if (slot != Instruction.NONE)
+                    {
+                        defined.add(slot);
+                        touched.add(slot);
+                    }
+                }
+            }
+            if (decrements != 1)
+                return null;
+            touched.remove(counter);
+
+            // Every iteration after the first must change the variables by the same amount
+            AffineExpression[] second = compose(state, state);
+            AffineExpression[] third = compose(state, second);
+            int[] targets = new int[touched.size()];
+            AffineExpression[] first = new AffineExpression[targets.length];
+            AffineExpression[] delta = new AffineExpression[targets.length];
+            Set<Integer> referenced = new TreeSet<>(touched);
+            referenced.add(counter);
+            int i = 0;
+            for (int slot : touched)
+            {
+                targets[i] = slot;
+                first[i] = valueOf(slot, state);
+                delta[i] = valueOf(slot, second).minus(first[i]);
+                if (!valueOf(slot, third).minus(valueOf(slot, second)).equals(delta[i]))
+                    return null;
+                for (int s : first[i].getSlots())
+                    referenced.add(s);
+                for (int s : delta[i].getSlots())
+                    referenced.add(s);
+                i++;
+            }
+            return new LoopSummary(counter, targets, first, delta, toArray(required), toArray(referenced));
+        }
+        catch (ArithmeticException e)
+        {
+            return null; // A coefficient overflowed
+        }
+    }
+
+    /**
+     * Symbolically executes a straight line instruction
+     * @param instruction The instruction to execute
+     * @param state The expression for each slot's value so far in the iteration, or null if it is unchanged
+     * @return False if the instruction cannot be summarised
+     */
+    private static boolean execute(Instruction instruction, AffineExpression[] state)
+    {
+        int a = instruction.operand1;
+        int b = instruction.operand2;
+        int dest = instruction.destination;
+        switch (instruction.opcode)
+        {
+            case CLEAR: state[a] = AffineExpression.constant(0); return true;
+            case INCR: state[a] = valueOf(a, state).plus(AffineExpression.constant(1)); return true;
+            case ASSIGN: state[dest] = AffineExpression.constant(instruction.literal); return true;
+            case COPY: state[b] = valueOf(a, state); return true;
+            case ADD: state[dest] = valueOf(a, state).plus(valueOf(b, state)); return true;
+            case SWAP:
+                AffineExpression tmp = valueOf(a, state);
+                state[a] = valueOf(b, state);
+                state[b] = tmp;
+                return true;
+            default:
+                // decr clamps at 0, subtract can go negative, and *, /, del and goto are not affine
+                return false;
+        }
+    }
+
+    /**
+     * @return True if the instruction writes to the given slot
+     */
+    private static boolean writes(Instruction instruction, int slot)
+    {
+        switch (instruction.opcode)
+        {
+            case COPY: return instruction.operand2 == slot;
+            case SWAP: return instruction.operand1 == slot || instruction.operand2 == slot;
+            case ASSIGN:
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE: return instruction.destination == slot;
+            default: return instruction.operand1 == slot;
+        }
+    }
+
+    /**
+     * @return The expression for the slot's value in the given state
+     */
+    private static AffineExpression valueOf(int slot, AffineExpression[] state)
+    {
+        return state[slot] != null ? state[slot] : AffineExpression.variable(slot);
+    }
+
+    /**
+     * @return The state after applying the iteration map to the given state
+     */
+    private static AffineExpression[] compose(AffineExpression[] iteration, AffineExpression[] state)
+    {
+        AffineExpression[] result = new AffineExpression[state.length];
+        for (int slot = 0; slot < state.length; slot++)
+            result[slot] = valueOf(slot, iteration).substitute(state);
+        return result;
+    }
+
+    private static int[] toArray(Set<Integer> slots)
+    {
+        int[] array = new int[slots.size()];
+        int i = 0;
+        for (int slot : slots)
+            array[i++] = slot;
+        return array;
+    }
+}
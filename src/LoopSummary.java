@@ -0,0 +1,145 @@
+import java.math.BigInteger;
+
+/**
+ * The closed form of a counting loop, found by the LoopOptimiser.
+ * If one iteration of the loop maps the variables to first(x), and every later iteration adds the same delta(x),
+ * then running the loop n times (n = the counter's value) leaves each target at first(x) + (n - 1) * delta(x),
+ * and the counter at 0
+ */
+final class LoopSummary
+{
+    private final int counter;
+    private final int[] targets;
+    private final AffineExpression[] first;
+    private final AffineExpression[] delta;
+    private final int[] required;
+    private final int[] referenced;
+
+    /**
+     * @param counter The slot of the loop's variable, which is decremented once per iteration
+     * @param targets The slots the loop body defines (other than the counter)
+     * @param first The value of each target after one iteration
+     * @param delta How much each target changes by in every later iteration
+     * @param required Slots that must already be defined for the closed form to apply
+     * @param referenced Every slot the closed form reads, which must not be negative for it to apply
+     */
+    LoopSummary(int counter, int[] targets, AffineExpression[] first, AffineExpression[] delta,
+                int[] required, int[] referenced)
+    {
+        this.counter = counter;
+        this.targets = targets;
+        this.first = first;
+        this.delta = delta;
+        this.required = required;
+        this.referenced = referenced;
+    }
+
+    int getCounter() { return counter; }
+
+    int[] getTargets() { return targets.clone(); }
+
+    /**
+     * A loop is linear if each iteration adds a constant to each target, so running it n times adds
+     * n * delta even when n is 0, which lets it be used inside an outer loop's closed form
+     * @return True if the loop is linear
+     */
+    boolean isLinear()
+    {
+        for (int i = 0; i < targets.length; i++)
+        {
+            if (!delta[i].isConstant() || !first[i].equals(AffineExpression.variable(targets[i]).plus(delta[i])))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param index The index of the target in getTargets()
+     * @return How much the target changes by per iteration, if the loop is linear
+     */
+    long getLinearDelta(int index) { return delta[index].getConstant(); }
+
+    /**
+     * Runs the whole loop in one step, if its closed form applies to the current variables
+     * @param registers The variables
+     * @return True if the loop was run, false if it must be run step by step
+     */
+    boolean apply(RegisterFile registers)
+    {
+        long n = registers.get(counter);
+        if (n <= 0)
+            return false;
+        for (int slot : required)
+        {
+            if (!registers.isDefined(slot))
+                return false;
+        }
+        boolean anyWide = false;
+        for (int slot : referenced)
+        {
+            if (registers.get(slot) < 0)
+                return false;
+            anyWide |= registers.isWide(slot);
+        }
+
+        if (!anyWide)
+        {
+            long[] results = new long[targets.length];
+            try
+            {
+                for (int i = 0; i < targets.length; i++)
+                    results[i] = Math.addExact(first[i].evaluate(registers), Math.multiplyExact(n - 1, delta[i].evaluate(registers)));
+
+                for (int i = 0; i < targets.length; i++)
+                    registers.set(targets[i], results[i]);
+                registers.set(counter, 0);
+                return true;
+            }
+            catch (ArithmeticException e)
+            {
+                // Overflow: values wrapping part way through the loop cannot be summarised, so it must run step by step
+                if (!registers.isWidening())
+                    return false;
+            }
+        }
+
+        BigInteger iterations = registers.getBig(counter).subtract(BigInteger.ONE);
+        BigInteger[] results = new BigInteger[targets.length];
+        for (int i = 0; i < targets.length; i++)
+            results[i] = first[i].evaluateBig(registers).add(iterations.multiply(delta[i].evaluateBig(registers)));
+        for (int i = 0; i < targets.length; i++)
+            registers.setBig(targets[i], results[i]);
+        registers.set(counter, 0);
+        return true;
+    }
+
+    /**
+     * @param names The variable names, indexed by slot
+     * @return The closed form, e.g. "z = z + x * (y), w = 0, x = 0"
+     */
+    String toString(String[] names)
+    {
+        StringBuilder builder = new StringBuilder();
+        String n = names[counter];
+        for (int i = 0; i < targets.length; i++)
+        {
+            String target = names[targets[i]];
+            AffineExpression start = AffineExpression.variable(targets[i]);
+            if (first[i].equals(start) && delta[i].equals(AffineExpression.constant(0)))
+                continue; // Unchanged
+
+            if (first[i].equals(start.plus(delta[i])))
+                builder.append(target).append(" = ").append(target).append(" + ").append(n);
+            else
+            {
+                builder.append(target).append(" = ").append(first[i].toString(names));
+                if (!delta[i].equals(AffineExpression.constant(0)))
+                    builder.append(" + (").append(n).append(" - 1)");
+            }
+            if (!delta[i].equals(AffineExpression.constant(0)) && !delta[i].equals(AffineExpression.constant(1)))
+                builder.append(" * (").append(delta[i].toString(names)).append(")");
+            builder.append(", ");
+        }
+        return builder.append(n).append(" = 0").toString();
+    }
+}
@@ -2,6 +2,15 @@ public class Main {
 
     public static void main(String[] args)
     {
+        // Visible to JConsole and other JMX clients, as InterpreterMetrics.OBJECT_NAME
+        InterpreterMetrics.register();
+
+        if (args.length > 0)
+        {
+            // Run the given programs headless instead of opening the IDE
+            System.exit(BatchRunner.run(args));
+        }
+
         GUI gui = new GUI();
         gui.show();
     }
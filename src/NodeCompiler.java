@@ -0,0 +1,335 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Compiles a Program into a tree of nodes, each made once with its slots already bound, which run by calling each
+ * other rather than going back through the VM's dispatch loop. A while becomes a Loop node that runs its body
+ * Block in a Java loop, and the statements of a body are Statement nodes holding a lambda over their slots.
+ *
+ * Gotos do not fit a tree, so they are resolved as the tree runs: a Branch returns the index of the instruction it
+ * jumps to, and each Block carries on from there if the instruction is directly inside it, or otherwise returns
+ * it to the Block around it, abandoning the loop it was the body of (as the VM does). A jump that no Block up to
+ * the top of the tree can take (into a loop from outside it) starts running the tree again from that instruction,
+ * the same way as run() does when the interpreter hands back to it.
+ *
+ * A Loop checks whether the run has been cancelled before each iteration, as does a Branch before jumping back, and
+ * hands back the instruction it would have run next if so.
+ *
+ * The nodes work on the RegisterFile directly, so unlike bytecode they keep running when values widen
+ */
+final class NodeCompiler
+{
+    /** What a node returns to carry on with the next one */
+    private static final int NEXT = -1;
+
+    private NodeCompiler() {}
+
+    /**
+     * Compiles a program
+     * @param program The program to compile
+     * @return The compiled program, or null if it has procedures (whose calls are left to the interpreter's
+     *         CallStack)
+     */
+    static CompiledCode compile(Program program)
+    {
+        if (program.hasProcedures())
+            return null;
+        return new Tree(program);
+    }
+
+    /** @return What a node returns to hand the instruction at pc back to the interpreter */
+    private static int handBack(int pc)
+    {
+        return -2 - pc;
+    }
+
+    /**
+     * A straight-line statement, with its slots bound
+     */
+    @FunctionalInterface
+    private interface Operation
+    {
+        void apply(RegisterFile registers);
+    }
+
+    /**
+     * The compiled program: the tree of nodes, and where each instruction is in it
+     */
+    private static final class Tree implements CompiledCode
+    {
+        private final int size;
+        private final Block[] blockOf;      // The Block each instruction is directly inside, or null for the end
+        private final int[] indexOf;        // Its position in that Block (a loop's end is after the body)
+
+        Tree(Program program)
+        {
+            size = program.size();
+            blockOf = new Block[size + 1];
+            indexOf = new int[size + 1];
+            new Block(program, 0, size, null);   // Fills in blockOf and indexOf as it goes
+        }
+
+        @Override
+        public int run(RegisterFile registers, IntConsumer trace, Cancellation cancellation, int pc)
+        {
+            while (pc < size)
+            {
+                // Runs from pc to the end of its Block, then finishes each loop it is in, and the Blocks around them
+                Block block = blockOf[pc];
+                int next = block.runFrom(indexOf[pc], registers, trace, cancellation);
+                while (next == NEXT && block.loop != null)
+                {
+                    Loop loop = block.loop;
+                    next = loop.execute(registers, trace, cancellation);
+                    block = blockOf[loop.pc];
+                    if (next == NEXT)
+                        next = block.runFrom(indexOf[loop.pc] + 1, registers, trace, cancellation);
+                }
+                if (next == NEXT)
+                    return size;
+                if (next < NEXT)
+                    return -2 - next;
+                pc = next;
+            }
+            return size;
+        }
+
+        @Override
+        public boolean handlesWide() { return true; }
+
+        /**
+         * A node of the tree
+         */
+        private abstract static class Node
+        {
+            /**
+             * @return NEXT, the index of an instruction to jump to, or handBack()
+             */
+            abstract int execute(RegisterFile registers, IntConsumer trace, Cancellation cancellation);
+        }
+
+        /**
+         * A sequence of nodes: the whole program, or the body of a loop
+         */
+        private final class Block extends Node
+        {
+            private final Node[] children;
+            private final Loop loop;        // The loop it is the body of, or null for the top
+            private final boolean jumps;    // False if no child can jump or hand back, so none need checking
+
+            /**
+             * Compiles the instructions from start to end - 1, which are a whole number of statements and loops
+             */
+            Block(Program program, int start, int end, Loop loop)
+            {
+                this.loop = loop;
+                List<Node> nodes = new ArrayList<>();
+                boolean jumps = false;
+                for (int pc = start; pc < end; pc++)
+                {
+                    blockOf[pc] = this;
+                    indexOf[pc] = nodes.size();
+                    Instruction instruction = program.get(pc);
+                    if (instruction.opcode == Opcode.WHILE)
+                    {
+                        Loop inner = new Loop(pc, instruction);
+                        inner.body = new Block(program, pc + 1, instruction.target - 1, inner);
+                        nodes.add(inner);
+                        // The end belongs to the body, after its last statement
+                        blockOf[instruction.target - 1] = inner.body;
+                        indexOf[instruction.target - 1] = inner.body.children.length;
+                        jumps = true;   // It hands back if cancelled
+                        pc = instruction.target - 1;
+                        continue;
+                    }
+                    Node node = node(pc, instruction);
+                    jumps |= !(node instanceof Statement);
+                    nodes.add(node);
+                }
+                children = nodes.toArray(new Node[0]);
+                this.jumps = jumps;
+            }
+
+            @Override
+            int execute(RegisterFile registers, IntConsumer trace, Cancellation cancellation)
+            {
+                return runFrom(0, registers, trace, cancellation);
+            }
+
+            /**
+             * Runs the children from the given position
+             * @return NEXT once the last child has run, or what a child returned that this cannot carry on from
+             */
+            int runFrom(int i, RegisterFile registers, IntConsumer trace, Cancellation cancellation)
+            {
+                if (!jumps)
+                {
+                    for (; i < children.length; i++)
+                        children[i].execute(registers, trace, cancellation);
+                    return NEXT;
+                }
+                while (i < children.length)
+                {
+                    int next = children[i].execute(registers, trace, cancellation);
+                    if (next == NEXT)
+                        i++;
+                    else if (next >= 0 && next < size && blockOf[next] == this)
+                        i = indexOf[next];
+                    else
+                        return next;
+                }
+                return NEXT;
+            }
+        }
+
+        /**
+         * A while loop, which runs its body until its variable is 0, or its summary runs it all at once
+         */
+        private static final class Loop extends Node
+        {
+            private final int pc;
+            private final int counter;
+            private final LoopSummary summary;
+            private Block body;
+
+            Loop(int pc, Instruction instruction)
+            {
+                this.pc = pc;
+                this.counter = instruction.operand1;
+                this.summary = instruction.summary;
+            }
+
+            @Override
+            int execute(RegisterFile registers, IntConsumer trace, Cancellation cancellation)
+            {
+                while (registers.get(counter) > 0 && (summary == null || !summary.apply(registers)))
+                {
+                    if (cancellation.requested)
+                        return handBack(pc);
+                    int next = body.runFrom(0, registers, trace, cancellation);
+                    if (next != NEXT)
+                        return next;
+                }
+                // The loop is complete, so output as for any other statement
+                if (trace != null)
+                    trace.accept(pc);
+                return NEXT;
+            }
+        }
+
+        /**
+         * A straight-line statement, which cannot fail
+         */
+        private static final class Statement extends Node
+        {
+            private final int pc;
+            private final Operation operation;
+
+            Statement(int pc, Operation operation)
+            {
+                this.pc = pc;
+                this.operation = operation;
+            }
+
+            @Override
+            int execute(RegisterFile registers, IntConsumer trace, Cancellation cancellation)
+            {
+                operation.apply(registers);
+                if (trace != null)
+                    trace.accept(pc);
+                return NEXT;
+            }
+        }
+
+        /**
+         * An ifp or ifz
+         */
+        private static final class Branch extends Node
+        {
+            private final int pc;
+            private final int slot;
+            private final int target;
+            private final boolean ifPositive;
+
+            Branch(int pc, Instruction instruction)
+            {
+                this.pc = pc;
+                this.slot = instruction.operand1;
+                this.target = instruction.target;
+                this.ifPositive = instruction.opcode == Opcode.IFP;
+            }
+
+            @Override
+            int execute(RegisterFile registers, IntConsumer trace, Cancellation cancellation)
+            {
+                registers.checkVariableInit(slot);
+                long value = registers.get(slot);
+                boolean jump = ifPositive ? value > 0 : value == 0;
+                if (trace != null)
+                    trace.accept(pc);
+                if (!jump)
+                    return NEXT;
+                return target <= pc && cancellation.requested ? handBack(target) : target;
+            }
+        }
+
+        /**
+         * A division, which hands back to the interpreter to fail if it would divide by 0
+         */
+        private static final class Divide extends Node
+        {
+            private final int pc;
+            private final int slot1;
+            private final int slot2;
+            private final int destination;
+
+            Divide(int pc, Instruction instruction)
+            {
+                this.pc = pc;
+                this.slot1 = instruction.operand1;
+                this.slot2 = instruction.operand2;
+                this.destination = instruction.destination;
+            }
+
+            @Override
+            int execute(RegisterFile registers, IntConsumer trace, Cancellation cancellation)
+            {
+                // A wide value is never 0
+                if (registers.get(slot2) == 0)
+                    return handBack(pc);
+                registers.divide(slot1, slot2, destination);
+                if (trace != null)
+                    trace.accept(pc);
+                return NEXT;
+            }
+        }
+
+        /** Compiles an instruction other than a while */
+        private static Node node(int pc, Instruction instruction)
+        {
+            int a = instruction.operand1;
+            int b = instruction.operand2;
+            int dest = instruction.destination;
+            switch (instruction.opcode)
+            {
+                case CLEAR: return new Statement(pc, registers -> registers.clear(a));
+                case INCR: return new Statement(pc, registers -> registers.increment(a));
+                case DECR: return new Statement(pc, registers -> registers.decrement(a));
+                case DEL: return new Statement(pc, registers -> registers.delete(a));
+                case SWAP: return new Statement(pc, registers -> registers.swap(a, b));
+                case COPY: return new Statement(pc, registers -> registers.copyTo(a, b));
+                case ADD: return new Statement(pc, registers -> registers.add(a, b, dest));
+                case SUBTRACT: return new Statement(pc, registers -> registers.subtract(a, b, dest));
+                case MULTIPLY: return new Statement(pc, registers -> registers.multiply(a, b, dest));
+                case ASSIGN:
+                    long literal = instruction.literal;
+                    return new Statement(pc, registers -> registers.set(dest, literal));
+                case DIVIDE: return new Divide(pc, instruction);
+                case IFP:
+                case IFZ: return new Branch(pc, instruction);
+                default: throw new IllegalArgumentException("Cannot compile " + instruction.opcode);
+            }
+        }
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * The operations a decoded Bare Bones instruction can perform
+ */
+enum Opcode
+{
+    CLEAR, INCR, DECR, DEL, SWAP, COPY, ADD, SUBTRACT, MULTIPLY, DIVIDE, ASSIGN, IFP, IFZ, WHILE, END, PROC, CALL, RETURN
+}
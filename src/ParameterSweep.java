@@ -0,0 +1,357 @@
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs one program many times over, each time from different starting values of some of its variables, in
+ * parallel on a ForkJoinPool. The program is parsed, optimised and compiled once, and each run only gets its own
+ * variables, so runs are isolated from each other and cost little more than executing the program.
+ *
+ * Programs set up their own inputs (clear n; incr n; incr n; or n = 2;), so a binding replaces the value the
+ * program initialises its variable to: it is applied after the last run of a clear or assignment of the variable,
+ * and any incrs and decrs of it straight after, in the straight-line code at the start of the program (before its
+ * first loop or goto, skipping over any procedures defined on the way). A variable the program does not initialise
+ * there is bound before the program starts
+ */
+final class ParameterSweep
+{
+    /**
+     * The outcome of one run
+     */
+    static final class Result
+    {
+        /** The position of the run's bindings in the stream they came from */
+        final long index;
+        final Map<String, Long> bindings;
+        /** The variables when the run finished, or stopped, or null if its bindings are not valid */
+        final RegisterFile registers;
+        /** The number of steps run after the straight-line code at the start */
+        final long steps;
+        /** Why the run failed, or null if it completed */
+        final String error;
+
+        private Result(long index, Map<String, Long> bindings, RegisterFile registers, long steps, String error)
+        {
+            this.index = index;
+            this.bindings = bindings;
+            this.registers = registers;
+            this.steps = steps;
+            this.error = error;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder result = new StringBuilder();
+            bindings.forEach((name, value) -> result.append(name).append('=').append(value).append(' '));
+            result.append(error == null ? "ok" : "error: " + error).append(", ").append(steps).append(" steps, ");
+            if (registers != null)
+                BufferedTrace.appendVariables(result, registers);
+            return result.toString().trim();
+        }
+    }
+
+    private final Program program;
+    private final Engine engine;
+    private final boolean widening;
+    private final CompiledCode compiled;        // Null unless running on a compiling engine (and it compiled)
+    private final String[] names;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final int[] setup;                  // The straight-line code at the start, in the order it runs
+    private final int setupEnd;                 // Where the program carries on after it
+    private final int[] bindAfter;              // The position in setup after which to bind each variable, or -1
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private long stepLimit = Long.MAX_VALUE;
+    private long timeLimitMillis = 0;
+    private ResultCache resultCache = null;
+
+    /**
+     * Prepares a program to be run many times
+     * @param program The program
+     * @param engine The engine to run it on
+     * @param widening True to promote values that overflow a long, rather than wrapping them
+     * @param optimiseLoops True to summarise counting loops (the PartialEvaluator is not used,
+     *                      as it would fold in the values that the bindings replace)
+     */
+    ParameterSweep(Program program, Engine engine, boolean widening, boolean optimiseLoops)
+    {
+        this.program = optimiseLoops ? LoopOptimiser.optimise(program, new ArrayList<>()) : program;
+        this.engine = engine;
+        this.widening = widening;
+        if (engine == Engine.BYTECODE)
+            this.compiled = BytecodeCompiler.compile(this.program, widening);
+        else if (engine == Engine.NODES)
+            this.compiled = NodeCompiler.compile(this.program);
+        else
+            this.compiled = null;
+        names = program.getVariableNames();
+        for (int slot = 0; slot < names.length; slot++)
+            slots.put(names[slot], slot);
+
+        // The first basic block, except for the jump it may end with, carrying on past a procedure into the block
+        // after it if nothing else jumps there
+        ControlFlowGraph graph = ControlFlowGraph.build(this.program);
+        List<Integer> straight = new ArrayList<>();
+        int block = 0;
+        while (true)
+        {
+            int start = graph.blockStart(block);
+            int end = graph.blockEnd(block);
+            while (end > start && isJump(this.program.get(end - 1).opcode))
+                end--;
+            for (int pc = start; pc < end; pc++)
+                straight.add(pc);
+            Instruction last = this.program.get(graph.blockEnd(block) - 1);
+            if (last.opcode != Opcode.PROC || end != graph.blockEnd(block) - 1 || last.target >= this.program.size()
+                    || graph.predecessors(graph.blockOf(last.target)).length != 1)
+            {
+                setupEnd = end;
+                break;
+            }
+            block = graph.blockOf(last.target);
+        }
+        setup = straight.stream().mapToInt(Integer::intValue).toArray();
+
+        bindAfter = new int[names.length];
+        Arrays.fill(bindAfter, -1);
+        for (int i = 0; i < setup.length; i++)
+        {
+            int slot = initialises(this.program.get(setup[i]));
+            if (slot == Instruction.NONE)
+                continue;
+            while (i + 1 < setup.length && adjusts(this.program.get(setup[i + 1]), slot))
+                i++;
+            bindAfter[slot] = i;
+        }
+    }
+
+    /** @return The variable an instruction sets to a constant, or NONE */
+    private static int initialises(Instruction instruction)
+    {
+        switch (instruction.opcode)
+        {
+            case CLEAR: return instruction.operand1;
+            case ASSIGN: return instruction.destination;
+            default: return Instruction.NONE;
+        }
+    }
+
+    /** @return True if an instruction carries on initialising a variable */
+    private static boolean adjusts(Instruction instruction, int slot)
+    {
+        switch (instruction.opcode)
+        {
+            case INCR:
+            case DECR: return instruction.operand1 == slot;
+            default: return initialises(instruction) == slot;
+        }
+    }
+
+    /** @param pool The pool to run on, the common pool by default */
+    void setPool(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /** @param stepLimit The most steps each run may take, or Long.MAX_VALUE for no limit */
+    void setStepLimit(long stepLimit)
+    {
+        this.stepLimit = stepLimit;
+    }
+
+    /** @param timeLimitMillis The longest each run may take in milliseconds, or 0 for no limit */
+    void setTimeLimit(long timeLimitMillis)
+    {
+        this.timeLimitMillis = timeLimitMillis;
+    }
+
+    /** @param resultCache The cache to look each run up in first, and add it to, or null for none */
+    void setResultCache(ResultCache resultCache)
+    {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Runs the program once for each set of bindings. The bindings are read as runs are started, with enough
+     * running or finished ahead of the results that have been read to keep every thread in the pool busy
+     * @param bindings The starting value of each variable to set (by name), for each run
+     * @param ordered True for the results in the same order as their bindings, false for them as they finish
+     * @return The result of each run
+     */
+    Stream<Result> run(Stream<Map<String, Long>> bindings, boolean ordered)
+    {
+        Iterator<Map<String, Long>> source = bindings.iterator();
+        int window = 4 * pool.getParallelism();
+        Iterator<Result> results = ordered ? new OrderedResults(source, window) : new UnorderedResults(source, window);
+        int characteristics = ordered ? Spliterator.ORDERED | Spliterator.NONNULL : Spliterator.NONNULL;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, characteristics), false)
+                            .onClose(bindings::close);
+    }
+
+    /**
+     * Runs the program once, on a thread in the pool
+     */
+    private Result runOne(long index, Map<String, Long> bindings)
+    {
+        int[] boundSlots = new int[bindings.size()];
+        long[] boundValues = new long[bindings.size()];
+        int b = 0;
+        for (Map.Entry<String, Long> binding : bindings.entrySet())
+        {
+            Integer slot = slots.get(binding.getKey().toLowerCase(Locale.ROOT));
+            if (slot == null)
+                return new Result(index, bindings, null, 0, "The program has no variable " + binding.getKey());
+            boundSlots[b] = slot;
+            boundValues[b++] = binding.getValue();
+        }
+
+        RegisterFile registers = new RegisterFile(names, widening);
+        for (int i = -1; i < setup.length; i++)
+        {
+            try
+            {
+                if (i >= 0)
+                    PartialEvaluator.step(program.get(setup[i]), setup[i], registers);
+            }
+            catch (ArithmeticException e)
+            {
+                return new Result(index, bindings, registers, 0, e.getMessage());
+            }
+            for (int j = 0; j < boundSlots.length; j++)
+            {
+                if (bindAfter[boundSlots[j]] == i)
+                    registers.set(boundSlots[j], boundValues[j]);
+            }
+        }
+
+        Interpreter interpreter = new Interpreter(program, null);
+        interpreter.setEngine(engine);
+        interpreter.setCompiledCode(compiled);
+        interpreter.startAt(setupEnd, registers);
+        interpreter.setCountSteps(true);
+        interpreter.setStepLimit(stepLimit);
+        interpreter.setTimeLimit(timeLimitMillis);
+        interpreter.setResultCache(resultCache);
+        String error = null;
+        try
+        {
+            if (setupEnd < program.size())
+                interpreter.execute();
+        }
+        catch (InterpreterException | ArithmeticException e)
+        {
+            error = e.getMessage();
+        }
+        catch (RuntimeException e)
+        {
+            error = e.toString();
+        }
+        return new Result(index, bindings, interpreter.getRegisters(), interpreter.getSteps(), error);
+    }
+
+    private static boolean isJump(Opcode opcode)
+    {
+        return opcode == Opcode.IFP || opcode == Opcode.IFZ || opcode == Opcode.WHILE || opcode == Opcode.END
+                || opcode == Opcode.PROC || opcode == Opcode.CALL || opcode == Opcode.RETURN;
+    }
+
+    /**
+     * Hands out results in the order of their bindings, keeping up to window runs going ahead of them
+     */
+    private final class OrderedResults implements Iterator<Result>
+    {
+        private final Iterator<Map<String, Long>> source;
+        private final int window;
+        private final Deque<ForkJoinTask<Result>> pending = new ArrayDeque<>();
+        private long submitted = 0;
+
+        OrderedResults(Iterator<Map<String, Long>> source, int window)
+        {
+            this.source = source;
+            this.window = window;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            fill();
+            return !pending.isEmpty();
+        }
+
+        @Override
+        public Result next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return pending.poll().join();
+        }
+
+        private void fill()
+        {
+            while (pending.size() < window && source.hasNext())
+            {
+                long index = submitted++;
+                Map<String, Long> bindings = source.next();
+                pending.add(pool.submit(() -> runOne(index, bindings)));
+            }
+        }
+    }
+
+    /**
+     * Hands out results as runs finish, keeping up to window runs going
+     */
+    private final class UnorderedResults implements Iterator<Result>
+    {
+        private final Iterator<Map<String, Long>> source;
+        private final int window;
+        private final LinkedBlockingQueue<Result> finished = new LinkedBlockingQueue<>();
+        private int running = 0;
+        private long submitted = 0;
+
+        UnorderedResults(Iterator<Map<String, Long>> source, int window)
+        {
+            this.source = source;
+            this.window = window;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            fill();
+            return running > 0;
+        }
+
+        @Override
+        public Result next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            try
+            {
+                Result result = finished.take();
+                running--;
+                return result;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a result", e);
+            }
+        }
+
+        private void fill()
+        {
+            while (running < window && source.hasNext())
+            {
+                long index = submitted++;
+                Map<String, Long> bindings = source.next();
+                running++;
+                pool.execute(() -> finished.add(runOne(index, bindings)));
+            }
+        }
+    }
+}
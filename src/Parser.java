@@ -0,0 +1,333 @@
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decodes Bare Bones source code into a Program in a single pass, so that no regular expressions
+ * are evaluated while the program is running
+ */
+final class Parser
+{
+    private static final Pattern COMMENT_PATTERN = Pattern.compile(Interpreter.COMMENT_REG_EX);
+    private static final Pattern BLANK_PATTERN = Pattern.compile(Interpreter.BLANK_REG_EX);
+    private static final Pattern UNARY_PATTERN = Pattern.compile(Interpreter.UNARY_OPERATOR_REG_EX);
+    private static final Pattern WHILE_PATTERN = Pattern.compile(Interpreter.WHILE_REG_EX);
+    private static final Pattern END_PATTERN = Pattern.compile(Interpreter.END_REG_EX);
+    private static final Pattern SWAP_PATTERN = Pattern.compile(Interpreter.SWAP_REG_EX);
+    private static final Pattern BINARY_PATTERN = Pattern.compile(Interpreter.BINARY_OPERATOR_REG_EX);
+    private static final Pattern COPY_TO_PATTERN = Pattern.compile(Interpreter.COPY_TO_REG_EX);
+    private static final Pattern ASSIGNMENT_PATTERN = Pattern.compile(Interpreter.ASSIGNMENT_REG_EX);
+    private static final Pattern IF_PATTERN = Pattern.compile(Interpreter.IF_REG_EX);
+    private static final Pattern PROC_PATTERN = Pattern.compile(Interpreter.PROC_REG_EX);
+    private static final Pattern CALL_PATTERN = Pattern.compile(Interpreter.CALL_REG_EX);
+    private static final Pattern RETURN_PATTERN = Pattern.compile(Interpreter.RETURN_REG_EX);
+    private static final Pattern AND_PATTERN = Pattern.compile("\\s+and\\s+");
+
+    private static final Set<String> RESERVED_IDENTIFIERS = new HashSet<>(Arrays.asList(Interpreter.RESERVED_IDENTIFIERS));
+
+    private Parser() {}
+
+    /**
+     * Decodes every line of the source code and checks that while and proc statements are matched by ends,
+     * and that procedures are defined and called correctly
+     * @param code The source code to parse
+     * @return The decoded program
+     * @throws InterpreterException If any line is not a valid Bare Bones statement
+     */
+    static Program parse(String code) throws InterpreterException
+    {
+        String[] lines = code.split("\\r?\\n");
+        FlightEvents.Parse event = new FlightEvents.Parse();
+        event.begin();
+        long start = System.nanoTime();
+        try
+        {
+            Program program = parseLines(lines);
+            event.instructions = program.size();
+            return program;
+        }
+        catch (InterpreterException e)
+        {
+            InterpreterMetrics.get().syntaxError();
+            event.error = e.getMessage();
+            throw e;
+        }
+        finally
+        {
+            InterpreterMetrics.get().parsed(System.nanoTime() - start);
+            event.lines = lines.length;
+            event.commit();
+        }
+    }
+
+    private static Program parseLines(String[] lines) throws InterpreterException
+    {
+        List<DecodedInstruction> instructions = new ArrayList<>(lines.length);
+        Deque<DecodedInstruction> openLoops = new ArrayDeque<>();
+
+        for (int lineNo = 0; lineNo < lines.length; lineNo++)
+        {
+            String line = lines[lineNo].toLowerCase();
+            DecodedInstruction instruction = decode(line, lineNo);
+            if (instruction == null)
+                continue;
+
+            if (instruction.getOpcode() == Opcode.WHILE || instruction.getOpcode() == Opcode.PROC)
+                openLoops.push(instruction);
+            else if (instruction.getOpcode() == Opcode.END && openLoops.poll() == null)
+                throw new SyntaxErrorException("No matching while for line " + (lineNo + 1) + ": " + line);
+
+            instructions.add(instruction);
+        }
+
+        if (!openLoops.isEmpty())
+        {
+            int lineNo = openLoops.peek().getLine();
+            throw new SyntaxErrorException("No matching end for line " + (lineNo + 1) + ": " + lines[lineNo].toLowerCase());
+        }
+
+        SortedMap<Integer, String> errors = checkProcedures(instructions);
+        if (!errors.isEmpty())
+            throw new SyntaxErrorException(errors.get(errors.firstKey()));
+
+        return new Program(instructions.toArray(new DecodedInstruction[0]), lines.length);
+    }
+
+    /**
+     * Decodes one (lower case) line of code
+     * @param line The line to decode
+     * @param lineNo The (0 based) index of the line in the source code
+     * @return The decoded instruction, or null if the line is a comment or blank
+     * @throws InterpreterException If the line is not a valid Bare Bones statement
+     */
+    static DecodedInstruction decode(String line, int lineNo) throws InterpreterException
+    {
+        if (isCommentOrBlank(line))
+            return null;
+
+        DecodedInstruction instruction = match(line, lineNo);
+        if (instruction == null)
+            throw new SyntaxErrorException("Syntax Error in line " + (lineNo + 1) + ": " + line);
+
+        List<String> ids = new ArrayList<>(Arrays.asList(instruction.getOperator1(), instruction.getOperator2(),
+                                                         instruction.getDestination(), instruction.getProcedure()));
+        ids.addAll(Arrays.asList(instruction.getArguments()));
+        for (String id : ids)
+        {
+            if (id != null && RESERVED_IDENTIFIERS.contains(id))
+                throw new SyntaxErrorException("Syntax Error in line " + (lineNo + 1) + ": " + id + " is a reserved keyword");
+        }
+        return instruction;
+    }
+
+    /**
+     * Checks the procedures of a program: that each is defined once, outside any loop or other procedure, that
+     * every call is to a procedure with as many parameters as it has arguments, that return is only used inside
+     * a procedure, and that no goto jumps into or out of one. Unmatched whiles, procs and ends are skipped over,
+     * as they are reported separately
+     * @param decoded The decoded instructions, in source order
+     * @return The error on each line that has one, by (0 based) line
+     */
+    static SortedMap<Integer, String> checkProcedures(List<DecodedInstruction> decoded)
+    {
+        SortedMap<Integer, String> errors = new TreeMap<>();
+        Map<String, DecodedInstruction> procedures = new HashMap<>();
+        int[] procedureOf = new int[decoded.size() + 1];    // The line of the proc each instruction is in, or -1
+        Deque<DecodedInstruction> open = new ArrayDeque<>();
+        int current = -1;
+        for (int i = 0; i < decoded.size(); i++)
+        {
+            DecodedInstruction instruction = decoded.get(i);
+            int lineNo = instruction.getLine();
+            String prefix = "Syntax Error in line " + (lineNo + 1) + ": ";
+            procedureOf[i] = current;
+            switch (instruction.getOpcode())
+            {
+                case PROC:
+                    String name = instruction.getProcedure();
+                    if (!open.isEmpty())
+                        errors.putIfAbsent(lineNo, prefix + "procedures cannot be defined inside a loop or procedure");
+                    else if (procedures.containsKey(name))
+                        errors.putIfAbsent(lineNo, prefix + name + " is already defined in line "
+                                                   + (procedures.get(name).getLine() + 1));
+                    else
+                        procedures.put(name, instruction);
+                    String[] parameters = instruction.getArguments();
+                    if (new HashSet<>(Arrays.asList(parameters)).size() < parameters.length)
+                        errors.putIfAbsent(lineNo, prefix + name + " has two parameters with the same name");
+                    open.push(instruction);
+                    if (open.size() == 1)
+                        current = lineNo;
+                    break;
+                case WHILE: open.push(instruction); break;
+                case END:
+                    DecodedInstruction opener = open.poll();
+                    if (opener != null && opener.getOpcode() == Opcode.PROC && open.isEmpty())
+                        current = -1;   // The end itself is the procedure's return, so is part of it
+                    break;
+                case RETURN:
+                    if (current == -1)
+                        errors.putIfAbsent(lineNo, prefix + "return is outside a procedure");
+                    break;
+                default:
+            }
+        }
+        procedureOf[decoded.size()] = -1;
+
+        int[] lines = decoded.stream().mapToInt(DecodedInstruction::getLine).toArray();
+        for (int i = 0; i < decoded.size(); i++)
+        {
+            DecodedInstruction instruction = decoded.get(i);
+            int lineNo = instruction.getLine();
+            String prefix = "Syntax Error in line " + (lineNo + 1) + ": ";
+            switch (instruction.getOpcode())
+            {
+                case CALL:
+                    DecodedInstruction procedure = procedures.get(instruction.getProcedure());
+                    int count = instruction.getArguments().length;
+                    if (procedure == null)
+                        errors.putIfAbsent(lineNo, prefix + "there is no procedure " + instruction.getProcedure());
+                    else if (procedure.getArguments().length != count)
+                        errors.putIfAbsent(lineNo, prefix + instruction.getProcedure() + " takes "
+                                                   + procedure.getArguments().length + " arguments, not " + count);
+                    break;
+                case IFP:
+                case IFZ:
+                    // The first instruction on or after the line, as Program.indexOfLine finds it
+                    // (there is at most one instruction on each line)
+                    int search = Arrays.binarySearch(lines, (int) Math.min(Math.max(instruction.getLiteral() - 1, 0),
+                                                                           Integer.MAX_VALUE));
+                    int target = search >= 0 ? search : -search - 1;
+                    if (procedureOf[target] != procedureOf[i])
+                        errors.putIfAbsent(lineNo, prefix + "goto " + instruction.getLiteral()
+                                                   + " jumps into or out of a procedure");
+                    break;
+                default:
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * @param line The line to check
+     * @return True if the line is a comment
+     */
+    static boolean isComment(String line)
+    {
+        int first = firstNonSpace(line);
+        return first < line.length() && line.charAt(first) == '#' && COMMENT_PATTERN.matcher(line).matches();
+    }
+
+    /**
+     * Checks if the given line is a comment or blank line, or not
+     * @param line The line to check
+     * @return True if the line is a comment or a blank like
+     */
+    static boolean isCommentOrBlank(String line)
+    {
+        // Most lines are statements, which can be ruled out without the patterns
+        int first = firstNonSpace(line);
+        if (first < line.length() && line.charAt(first) != '#')
+            return false;
+        return COMMENT_PATTERN.matcher(line).matches() || BLANK_PATTERN.matcher(line).matches();
+    }
+
+    /**
+     * @return The index of the first character in the line that \s does not match, or its length if there is none
+     */
+    private static int firstNonSpace(String line)
+    {
+        int i = 0;
+        while (i < line.length() && " \t\n\u000B\f\r".indexOf(line.charAt(i)) >= 0)
+            i++;
+        return i;
+    }
+
+    /**
+     * Matches a line against each statement pattern in turn
+     * @return The decoded instruction, or null if no pattern matches
+     * @throws InterpreterException If the line matches a pattern but has an invalid operator or literal
+     */
+    private static DecodedInstruction match(String line, int lineNo) throws InterpreterException
+    {
+        Matcher m;
+        if ((m = UNARY_PATTERN.matcher(line)).matches())
+            return new DecodedInstruction(unaryOpcode(m.group(1)), lineNo, m.group(2), null, null);
+
+        if ((m = WHILE_PATTERN.matcher(line)).matches())
+            return new DecodedInstruction(Opcode.WHILE, lineNo, m.group(2), null, null);
+
+        if (END_PATTERN.matcher(line).matches())
+            return new DecodedInstruction(Opcode.END, lineNo, null, null, null);
+
+        if ((m = SWAP_PATTERN.matcher(line)).matches())
+            return new DecodedInstruction(Opcode.SWAP, lineNo, m.group(2), m.group(3), null);
+
+        if ((m = BINARY_PATTERN.matcher(line)).matches())
+            return new DecodedInstruction(binaryOpcode(m.group(3), line, lineNo), lineNo, m.group(2), m.group(4), m.group(1));
+
+        if ((m = COPY_TO_PATTERN.matcher(line)).matches())
+            return new DecodedInstruction(Opcode.COPY, lineNo, m.group(2), m.group(3), null);
+
+        if ((m = ASSIGNMENT_PATTERN.matcher(line)).matches())
+            return new DecodedInstruction(Opcode.ASSIGN, lineNo, null, null, m.group(1), parseLiteral(m.group(3), lineNo));
+
+        if ((m = IF_PATTERN.matcher(line)).matches())
+        {
+            Opcode opcode = m.group(1).equals("ifp") ? Opcode.IFP : Opcode.IFZ;
+            return new DecodedInstruction(opcode, lineNo, m.group(2), null, null, parseLiteral(m.group(3), lineNo));
+        }
+
+        if ((m = PROC_PATTERN.matcher(line)).matches())
+            return new DecodedInstruction(Opcode.PROC, lineNo, m.group(2), arguments(m.group(3)));
+
+        if ((m = CALL_PATTERN.matcher(line)).matches())
+            return new DecodedInstruction(Opcode.CALL, lineNo, m.group(2), arguments(m.group(3)));
+
+        if (RETURN_PATTERN.matcher(line).matches())
+            return new DecodedInstruction(Opcode.RETURN, lineNo, null, null, null);
+
+        return null;
+    }
+
+    /**
+     * @param arguments The variables after with, separated by and, or null if there is no with
+     * @return The variables
+     */
+    private static String[] arguments(String arguments)
+    {
+        return arguments == null ? new String[0] : AND_PATTERN.split(arguments);
+    }
+
+    private static Opcode unaryOpcode(String instruction)
+    {
+        switch (instruction)
+        {
+            case "clear": return Opcode.CLEAR;
+            case "incr": return Opcode.INCR;
+            case "decr": return Opcode.DECR;
+            default: return Opcode.DEL;
+        }
+    }
+
+    private static Opcode binaryOpcode(String operator, String line, int lineNo) throws InterpreterException
+    {
+        switch (operator)
+        {
+            case "+": return Opcode.ADD;
+            case "-": return Opcode.SUBTRACT;
+            case "*": return Opcode.MULTIPLY;
+            case "/": return Opcode.DIVIDE;
+            default: throw new InterpreterException("Invalid command in line " + (lineNo + 1) + ": " + line);
+        }
+    }
+
+    private static long parseLiteral(String literal, int lineNo) throws SyntaxErrorException
+    {
+        try { return Long.parseLong(literal); }
+        catch (NumberFormatException e)
+        {
+            throw new SyntaxErrorException("Syntax Error in line " + (lineNo + 1) + ": " + literal + " is too large");
+        }
+    }
+}
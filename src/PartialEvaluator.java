@@ -0,0 +1,377 @@
+import java.util.*;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs as much of a program as it can before it is executed, and leaves a residual program to finish the job.
+ *
+ * A Bare Bones program has no inputs, so its start - typically clears, incrs and assignments setting up its
+ * "inputs", then loops over them - can simply be run. This runs the program for up to a budget of instructions,
+ * and then replaces everything before the last point it passed that the rest of the program never jumps back
+ * before (outside of any loop) with assignments of the variables' values at that point. If the whole program
+ * runs within the budget, only the assignments of its output are left.
+ *
+ * Constants are then propagated through the residual program: a copy, or arithmetic, whose operands are known
+ * at that point is replaced by an assignment of its result. Anything that would fail (division by zero) or
+ * overflow a long in widening mode is left to run
+ */
+final class PartialEvaluator
+{
+    // The state of a variable during constant propagation
+    private static final byte UNREACHED = 0;    // No path has reached this point yet
+    private static final byte UNSET = 1;        // Not defined (so 0)
+    private static final byte CONSTANT = 2;     // Defined, with a known value
+    private static final byte VARYING = 3;      // Not known
+
+    // How many instructions run between checks of whether to stop evaluating. Must be a power of 2
+    private static final int CHECK_INTERVAL = 1024;
+
+    private final Program program;
+    private final boolean widening;
+
+    private PartialEvaluator(Program program, boolean widening)
+    {
+        this.program = program;
+        this.widening = widening;
+    }
+
+    /**
+     * @param program The program to evaluate
+     * @param widening True if the program will run in widening mode
+     * @param budget The largest number of instructions to run
+     * @param interrupted Returns true if the evaluation should stop early (leaving the rest to run as usual),
+     *                    which is checked every so often
+     * @param report Has a line added describing what was evaluated, and each instruction that is folded
+     * @return The residual program
+     */
+    static Program evaluate(Program program, boolean widening, long budget, BooleanSupplier interrupted,
+                            List<String> report)
+    {
+        PartialEvaluator evaluator = new PartialEvaluator(program, widening);
+        Program residual = evaluator.evaluatePrefix(budget, interrupted, report);
+        return new PartialEvaluator(residual, widening).propagateConstants(report);
+    }
+
+    /**
+     * Runs the program until it completes, the budget runs out, it is interrupted, or it reaches something that
+     * cannot be written as an assignment (a failure, or a value too large for a long)
+     * @return The program with the part that ran replaced by assignments
+     */
+    private Program evaluatePrefix(long budget, BooleanSupplier interrupted, List<String> report)
+    {
+        int size = program.size();
+
+        // The rest of the program can be cut from pc if it is outside every loop and nothing after jumps before it
+        boolean[] canCut = new boolean[size + 1];
+        int earliestTarget = size;
+        for (int pc = size; pc >= 0; pc--)
+        {
+            if (pc < size && (program.get(pc).opcode == Opcode.IFP || program.get(pc).opcode == Opcode.IFZ))
+                earliestTarget = Math.min(earliestTarget, program.get(pc).target);
+            canCut[pc] = earliestTarget >= pc;
+        }
+        int depth = 0;
+        for (int pc = 0; pc < size; pc++)
+        {
+            Opcode opcode = program.get(pc).opcode;
+            if (depth > 0)
+                canCut[pc] = false;     // Including an end, which is in its loop
+            if (opcode == Opcode.WHILE)
+                depth++;
+            else if (opcode == Opcode.END)
+                depth--;
+        }
+
+        RegisterFile registers = new RegisterFile(program.getVariableNames(), widening);
+        int cut = 0;
+        long[] cutValues = new long[registers.size()];
+        BitSet cutDefined = new BitSet();
+        long cutSteps = 0;
+
+        int pc = 0;
+        long steps = 0;
+        while (true)
+        {
+            if (canCut[pc] && pc > cut)
+            {
+                cut = pc;
+                cutSteps = steps;
+                for (int slot = 0; slot < cutValues.length; slot++)
+                    cutValues[slot] = registers.get(slot);
+                cutDefined.clear();
+                for (int slot = registers.nextDefined(0); slot >= 0; slot = registers.nextDefined(slot + 1))
+                    cutDefined.set(slot);
+            }
+            if (pc >= size || steps >= budget)
+                break;
+            if ((steps & (CHECK_INTERVAL - 1)) == CHECK_INTERVAL - 1 && interrupted.getAsBoolean())
+                break;
+            try
+            {
+                pc = step(program.get(pc), pc, registers);
+            }
+            catch (ArithmeticException e)
+            {
+                break;  // Left to fail when the program runs
+            }
+            steps++;
+            if (registers.hasWide())
+                break;
+        }
+        if (cut == 0)
+            return program;
+
+        Instruction[] prefix = new Instruction[cutDefined.cardinality()];
+        int line = program.get(Math.min(cut, size) - 1).line;
+        int i = 0;
+        for (int slot = cutDefined.nextSetBit(0); slot >= 0; slot = cutDefined.nextSetBit(slot + 1))
+            prefix[i++] = new Instruction(Opcode.ASSIGN, line, Instruction.NONE, Instruction.NONE, slot,
+                                          cutValues[slot], Instruction.NONE);
+        report.add(cut == size
+                   ? "Evaluated the whole program (" + cutSteps + " instructions) before running it"
+                   : "Evaluated up to line " + (program.get(cut).line + 1) + " (" + cutSteps
+                     + " instructions) before running the program");
+        return program.withPrefix(prefix, cut);
+    }
+
+    /**
+     * Runs one instruction, as the Interpreter does (including running a summarised loop all at once),
+     * apart from calls and returns
+     * @return The index of the next instruction
+     */
+    static int step(Instruction instruction, int pc, RegisterFile registers)
+    {
+        switch (instruction.opcode)
+        {
+            case CLEAR: registers.clear(instruction.operand1); break;
+            case INCR: registers.increment(instruction.operand1); break;
+            case DECR: registers.decrement(instruction.operand1); break;
+            case DEL: registers.delete(instruction.operand1); break;
+            case SWAP: registers.swap(instruction.operand1, instruction.operand2); break;
+            case COPY: registers.copyTo(instruction.operand1, instruction.operand2); break;
+            case ADD: registers.add(instruction.operand1, instruction.operand2, instruction.destination); break;
+            case SUBTRACT: registers.subtract(instruction.operand1, instruction.operand2, instruction.destination); break;
+            case MULTIPLY: registers.multiply(instruction.operand1, instruction.operand2, instruction.destination); break;
+            case DIVIDE: registers.divide(instruction.operand1, instruction.operand2, instruction.destination); break;
+            case ASSIGN: registers.set(instruction.destination, instruction.literal); break;
+            case IFP:
+                registers.checkVariableInit(instruction.operand1);
+                return registers.get(instruction.operand1) > 0 ? instruction.target : pc + 1;
+            case IFZ:
+                registers.checkVariableInit(instruction.operand1);
+                return registers.get(instruction.operand1) == 0 ? instruction.target : pc + 1;
+            case WHILE:
+                if (registers.get(instruction.operand1) > 0
+                        && (instruction.summary == null || !instruction.summary.apply(registers)))
+                    return pc + 1;
+                return instruction.target;
+            case END:
+            case PROC: return instruction.target;
+            case CALL:
+            case RETURN: throw new IllegalArgumentException("Calls and returns need a CallStack to run");
+        }
+        return pc + 1;
+    }
+
+    /**
+     * Finds the variables that have the same value on every path to each instruction, and folds the copies and
+     * arithmetic whose operands are all known
+     * @return The program with the folded instructions replaced by assignments
+     */
+    private Program propagateConstants(List<String> report)
+    {
+        ControlFlowGraph graph = ControlFlowGraph.build(program);
+        int slots = program.variableCount();
+        byte[][] kinds = new byte[graph.blockCount() + 1][slots];
+        long[][] values = new long[graph.blockCount() + 1][slots];
+        Arrays.fill(kinds[0], UNSET);
+
+        // Forward, until the state at the start of every block stops changing
+        Deque<Integer> worklist = new ArrayDeque<>();
+        boolean[] queued = new boolean[graph.blockCount() + 1];
+        worklist.add(0);
+        queued[0] = true;
+        while (!worklist.isEmpty())
+        {
+            int block = worklist.poll();
+            queued[block] = false;
+            byte[] kind = kinds[block].clone();
+            long[] value = values[block].clone();
+            for (int pc = graph.blockStart(block); pc < graph.blockEnd(block); pc++)
+                transfer(program.get(pc), kind, value);
+            for (int successor : graph.successors(block))
+            {
+                if (join(kinds[successor], values[successor], kind, value) && !queued[successor])
+                {
+                    worklist.add(successor);
+                    queued[successor] = true;
+                }
+            }
+        }
+
+        String[] names = program.getVariableNames();
+        Instruction[] folded = new Instruction[program.size()];
+        boolean any = false;
+        for (int block = 0; block < graph.blockCount(); block++)
+        {
+            if (!graph.isReachable(block))
+                continue;
+            byte[] kind = kinds[block].clone();
+            long[] value = values[block].clone();
+            for (int pc = graph.blockStart(block); pc < graph.blockEnd(block); pc++)
+            {
+                Instruction instruction = program.get(pc);
+                Long result = fold(instruction, kind, value);
+                if (result != null)
+                {
+                    folded[pc] = new Instruction(Opcode.ASSIGN, instruction.line, Instruction.NONE, Instruction.NONE,
+                                                 destinationOf(instruction), result, Instruction.NONE);
+                    report.add("Line " + (instruction.line + 1) + ": folded into "
+                               + names[destinationOf(instruction)] + " = " + result);
+                    any = true;
+                }
+                transfer(instruction, kind, value);
+            }
+        }
+        return any ? program.withInstructions(folded) : program;
+    }
+
+    /**
+     * Merges the state from one path into the state at the start of a block
+     * @return True if the state at the start of the block changed
+     */
+    private static boolean join(byte[] kinds, long[] values, byte[] kind, long[] value)
+    {
+        boolean changed = false;
+        for (int slot = 0; slot < kinds.length; slot++)
+        {
+            byte merged;
+            if (kinds[slot] == UNREACHED)
+                merged = kind[slot];
+            else if (kind[slot] == UNREACHED || (kinds[slot] == kind[slot] && values[slot] == value[slot]))
+                continue;
+            else
+                merged = VARYING;
+            if (merged != kinds[slot])
+            {
+                kinds[slot] = merged;
+                values[slot] = value[slot];
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Moves the state from before an instruction to after it
+     */
+    private void transfer(Instruction instruction, byte[] kind, long[] value)
+    {
+        int a = instruction.operand1;
+        int b = instruction.operand2;
+        switch (instruction.opcode)
+        {
+            case CLEAR: setConstant(kind, value, a, 0); break;
+            case ASSIGN: setConstant(kind, value, instruction.destination, instruction.literal); break;
+            case DEL: kind[a] = UNSET; value[a] = 0; break;
+            case INCR:
+                if (kind[a] == VARYING || (widening && value[a] == Long.MAX_VALUE))
+                    kind[a] = VARYING;
+                else
+                    setConstant(kind, value, a, value[a] + 1);
+                break;
+            case DECR:
+                if (kind[a] != VARYING)
+                    setConstant(kind, value, a, Math.max(value[a] - 1, 0));
+                break;
+            case SWAP:
+                byte kindA = kind[a];
+                long valueA = value[a];
+                setDefined(kind, value, a, kind[b], value[b]);
+                setDefined(kind, value, b, kindA, valueA);
+                break;
+            case COPY:
+                markDefined(kind, a);
+                setDefined(kind, value, b, kind[a], value[a]);
+                break;
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+                Long result = fold(instruction, kind, value);
+                markDefined(kind, a);
+                markDefined(kind, b);
+                if (result != null)
+                    setConstant(kind, value, instruction.destination, result);
+                else
+                    kind[instruction.destination] = VARYING;
+                break;
+            case IFP:
+            case IFZ: markDefined(kind, a); break;
+            default:
+        }
+    }
+
+    /**
+     * @return The value a copy or arithmetic instruction assigns, if its operands are known and defined (as it
+     *         would otherwise define them too), and the result is the same as at run time, or null
+     */
+    private Long fold(Instruction instruction, byte[] kind, long[] value)
+    {
+        int a = instruction.operand1;
+        int b = instruction.operand2;
+        switch (instruction.opcode)
+        {
+            case COPY: return kind[a] == CONSTANT ? value[a] : null;
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+                if (kind[a] != CONSTANT || kind[b] != CONSTANT)
+                    return null;
+                long x = value[a];
+                long y = value[b];
+                try
+                {
+                    switch (instruction.opcode)
+                    {
+                        case ADD: return widening ? Math.addExact(x, y) : x + y;
+                        case SUBTRACT: return widening ? Math.subtractExact(x, y) : x - y;
+                        case MULTIPLY: return widening ? Math.multiplyExact(x, y) : x * y;
+                        default:
+                            if (y == 0 || (widening && x == Long.MIN_VALUE && y == -1))
+                                return null;
+                            return x / y;
+                    }
+                }
+                catch (ArithmeticException e)
+                {
+                    return null;    // Promoted to a BigInteger at run time
+                }
+            default: return null;
+        }
+    }
+
+    private static int destinationOf(Instruction instruction)
+    {
+        return instruction.opcode == Opcode.COPY ? instruction.operand2 : instruction.destination;
+    }
+
+    private static void setConstant(byte[] kind, long[] value, int slot, long constant)
+    {
+        kind[slot] = CONSTANT;
+        value[slot] = constant;
+    }
+
+    /** Sets a variable as RegisterFile.set does, which defines it even if the value came from an unset variable */
+    private static void setDefined(byte[] kind, long[] value, int slot, byte fromKind, long fromValue)
+    {
+        kind[slot] = fromKind == VARYING ? VARYING : CONSTANT;
+        value[slot] = fromValue;
+    }
+
+    private static void markDefined(byte[] kind, int slot)
+    {
+        if (kind[slot] == UNSET)
+            kind[slot] = CONSTANT;  // With the value 0
+    }
+}
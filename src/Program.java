@@ -0,0 +1,304 @@
+import java.util.*;
+
+/**
+ * An immutable, fully decoded Bare Bones program.
+ * Comments and blank lines are dropped, so instructions are addressed by their index (the program counter)
+ * rather than by their source line, and variables are addressed by the register slot they were assigned
+ * (in order of first appearance) rather than by their name.
+ *
+ * Each procedure's parameters and locals get slots of their own, named procedure.variable, and its end becomes
+ * a return. A proc jumps past the procedure's body, and a call jumps to its first instruction, with the call's
+ * arguments in a CallSite (which its literal indexes), so each body is only linked once however often it is called
+ */
+final class Program
+{
+    /**
+     * A procedure: its parameters, and every slot it uses (which a call saves and a return restores)
+     */
+    static final class Procedure
+    {
+        final String name;
+        /** The slots of its parameters, in order */
+        final int[] parameters;
+        /** The slots of its parameters and locals */
+        final int[] slots;
+
+        private Procedure(String name, int[] parameters, int[] slots)
+        {
+            this.name = name;
+            this.parameters = parameters;
+            this.slots = slots;
+        }
+    }
+
+    /**
+     * What a call passes to a procedure
+     */
+    static final class CallSite
+    {
+        final Procedure procedure;
+        /** The slots of its arguments, in the caller, in the same order as the procedure's parameters */
+        final int[] arguments;
+
+        private CallSite(Procedure procedure, int[] arguments)
+        {
+            this.procedure = procedure;
+            this.arguments = arguments;
+        }
+    }
+
+    private final Instruction[] instructions;
+    private final String[] variables;
+    private final int[] lineIndex;
+    private final CallSite[] callSites;
+    private final boolean hasProcedures;
+
+    /**
+     * Links decoded instructions into a program
+     * @param decoded The decoded instructions, in source order
+     * @param lineCount The number of lines in the source code the instructions were decoded from
+     */
+    Program(DecodedInstruction[] decoded, int lineCount)
+    {
+        // lineIndex[l] = the index of the first instruction on or after source line l
+        lineIndex = new int[lineCount + 1];
+        int pc = decoded.length;
+        for (int line = lineCount; line >= 0; line--)
+        {
+            while (pc > 0 && decoded[pc - 1].getLine() >= line)
+                pc--;
+            lineIndex[line] = pc;
+        }
+
+        // Pair up each while and proc with its end (the Parser has already checked they match, and the procedures),
+        // and find the procedure each instruction is in
+        int[] targets = new int[decoded.length];
+        Opcode[] opcodes = new Opcode[decoded.length];
+        String[] scopes = new String[decoded.length];   // The procedure name, and a dot, or ""
+        Map<String, Integer> procs = new HashMap<>();   // The index of each procedure's proc
+        Deque<Integer> openLoops = new ArrayDeque<>();
+        String scope = "";
+        for (int i = 0; i < decoded.length; i++)
+        {
+            opcodes[i] = decoded[i].getOpcode();
+            scopes[i] = scope;
+            switch (decoded[i].getOpcode())
+            {
+                case IFP:
+                case IFZ: targets[i] = indexOfLine(decoded[i].getLiteral()); break;
+                case WHILE: openLoops.push(i); break;
+                case PROC:
+                    openLoops.push(i);
+                    procs.put(decoded[i].getProcedure(), i);
+                    scope = decoded[i].getProcedure() + ".";
+                    break;
+                case END:
+                    int start = openLoops.pop();
+                    targets[start] = i + 1;
+                    targets[i] = start;
+                    if (decoded[start].getOpcode() == Opcode.PROC)
+                    {
+                        opcodes[i] = Opcode.RETURN;
+                        targets[i] = Instruction.NONE;
+                        scope = "";
+                    }
+                    break;
+                default: targets[i] = Instruction.NONE;
+            }
+        }
+
+        // A procedure's parameters come first among its slots, and are defined at its proc
+        Map<String, Integer> slots = new LinkedHashMap<>();
+        Map<String, int[]> parameters = new HashMap<>();
+        instructions = new Instruction[decoded.length];
+        List<int[]> callArguments = new ArrayList<>();
+        List<String> callees = new ArrayList<>();
+        for (int i = 0; i < decoded.length; i++)
+        {
+            DecodedInstruction d = decoded[i];
+            String[] arguments = d.getArguments();
+            int[] argumentSlots = new int[arguments.length];
+            String argumentScope = d.getOpcode() == Opcode.PROC ? d.getProcedure() + "." : scopes[i];
+            for (int a = 0; a < arguments.length; a++)
+                argumentSlots[a] = slotOf(argumentScope + arguments[a], slots);
+
+            long literal = d.getLiteral();
+            if (d.getOpcode() == Opcode.PROC)
+                parameters.put(d.getProcedure(), argumentSlots);
+            else if (d.getOpcode() == Opcode.CALL)
+            {
+                targets[i] = procs.get(d.getProcedure()) + 1;
+                literal = callArguments.size();
+                callArguments.add(argumentSlots);
+                callees.add(d.getProcedure());
+            }
+            instructions[i] = new Instruction(opcodes[i], d.getLine(),
+                                              slotOf(d.getOperator1(), scopes[i], slots),
+                                              slotOf(d.getOperator2(), scopes[i], slots),
+                                              slotOf(d.getDestination(), scopes[i], slots),
+                                              literal,
+                                              targets[i]);
+        }
+        variables = slots.keySet().toArray(new String[0]);
+
+        Map<String, Procedure> procedures = new HashMap<>();
+        for (String name : procs.keySet())
+        {
+            String prefix = name + ".";
+            int[] own = slots.entrySet().stream().filter(slot -> slot.getKey().startsWith(prefix))
+                             .mapToInt(Map.Entry::getValue).toArray();
+            procedures.put(name, new Procedure(name, parameters.get(name), own));
+        }
+        callSites = new CallSite[callArguments.size()];
+        for (int c = 0; c < callSites.length; c++)
+            callSites[c] = new CallSite(procedures.get(callees.get(c)), callArguments.get(c));
+        hasProcedures = !procs.isEmpty();
+    }
+
+    private Program(Instruction[] instructions, String[] variables, int[] lineIndex, CallSite[] callSites,
+                    boolean hasProcedures)
+    {
+        this.instructions = instructions;
+        this.variables = variables;
+        this.lineIndex = lineIndex;
+        this.callSites = callSites;
+        this.hasProcedures = hasProcedures;
+    }
+
+    /**
+     * @param summaries The loop summary to attach to each instruction, or null to leave it unchanged
+     * @return A copy of this program with the loop summaries attached
+     */
+    Program withSummaries(LoopSummary[] summaries)
+    {
+        Instruction[] summarised = instructions.clone();
+        for (int pc = 0; pc < summarised.length; pc++)
+        {
+            Instruction i = summarised[pc];
+            if (summaries[pc] != null)
+                summarised[pc] = new Instruction(i.opcode, i.line, i.operand1, i.operand2, i.destination, i.literal,
+                                                 i.target, summaries[pc]);
+        }
+        return new Program(summarised, variables, lineIndex, callSites, hasProcedures);
+    }
+
+    /**
+     * @param removed Which instructions to remove (none of which may be a while or an end)
+     * @return A copy of this program without the given instructions, with jumps to them moved to the next instruction
+     */
+    Program without(boolean[] removed)
+    {
+        // newIndex[pc] = the index of the first instruction kept on or after pc
+        int[] newIndex = new int[instructions.length + 1];
+        int kept = 0;
+        for (int pc = 0; pc < instructions.length; pc++)
+        {
+            newIndex[pc] = kept;
+            if (!removed[pc])
+                kept++;
+        }
+        newIndex[instructions.length] = kept;
+
+        Instruction[] remaining = new Instruction[kept];
+        for (int pc = 0; pc < instructions.length; pc++)
+        {
+            Instruction i = instructions[pc];
+            if (!removed[pc])
+                remaining[newIndex[pc]] = new Instruction(i.opcode, i.line, i.operand1, i.operand2, i.destination,
+                                                          i.literal, i.target == Instruction.NONE
+                                                                     ? Instruction.NONE : newIndex[i.target],
+                                                          i.summary);
+        }
+        int[] remainingLineIndex = new int[lineIndex.length];
+        for (int line = 0; line < lineIndex.length; line++)
+            remainingLineIndex[line] = newIndex[lineIndex[line]];
+        return new Program(remaining, variables, remainingLineIndex, callSites, hasProcedures);
+    }
+
+    /**
+     * @param replaced The instruction to put at each index, or null to keep the instruction there
+     *                 (jumps must not be replaced)
+     * @return A copy of this program with the given instructions replaced
+     */
+    Program withInstructions(Instruction[] replaced)
+    {
+        Instruction[] instructions = this.instructions.clone();
+        for (int pc = 0; pc < instructions.length; pc++)
+        {
+            if (replaced[pc] != null)
+                instructions[pc] = replaced[pc];
+        }
+        return new Program(instructions, variables, lineIndex, callSites, hasProcedures);
+    }
+
+    /**
+     * @param prefix The instructions to start with, which must not jump
+     * @param from The index of the first instruction to keep, which no instruction from there on jumps before
+     * @return A copy of this program with the instructions before from replaced by the prefix
+     */
+    Program withPrefix(Instruction[] prefix, int from)
+    {
+        int shift = prefix.length - from;
+        Instruction[] replaced = Arrays.copyOf(prefix, instructions.length + shift);
+        for (int pc = from; pc < instructions.length; pc++)
+        {
+            Instruction i = instructions[pc];
+            replaced[pc + shift] = new Instruction(i.opcode, i.line, i.operand1, i.operand2, i.destination, i.literal,
+                                                   i.target == Instruction.NONE ? Instruction.NONE : i.target + shift,
+                                                   i.summary);
+        }
+        // Lines before from now lead to the start of the prefix
+        int[] replacedLineIndex = new int[lineIndex.length];
+        for (int line = 0; line < lineIndex.length; line++)
+            replacedLineIndex[line] = lineIndex[line] < from ? 0 : lineIndex[line] + shift;
+        return new Program(replaced, variables, replacedLineIndex, callSites, hasProcedures);
+    }
+
+    /** @return The number of instructions in the program */
+    int size() { return instructions.length; }
+
+    /** @return The instruction at the given program counter */
+    Instruction get(int pc) { return instructions[pc]; }
+
+    /** @return The number of lines in the source code the program was decoded from */
+    int lineCount() { return lineIndex.length - 1; }
+
+    /** @return The number of register slots the program uses */
+    int variableCount() { return variables.length; }
+
+    /** @return The variable names, indexed by register slot */
+    String[] getVariableNames() { return variables.clone(); }
+
+    /** @return True if the program defines any procedures */
+    boolean hasProcedures() { return hasProcedures; }
+
+    /**
+     * @param index The literal of a call
+     * @return What the call passes to its procedure
+     */
+    CallSite getCallSite(int index) { return callSites[index]; }
+
+    /**
+     * Resolves a (1 based) line number, as used by goto, to an instruction index
+     * @param lineNo The line number to jump to
+     * @return The index of the first instruction on or after that line, or size() if there is none
+     */
+    int indexOfLine(long lineNo)
+    {
+        // lineIndex ends with the index just past the last instruction (also valid while the constructor runs)
+        long line = Math.max(lineNo - 1, 0);
+        return lineIndex[(int) Math.min(line, lineIndex.length - 1)];
+    }
+
+    private static int slotOf(String variable, Map<String, Integer> slots)
+    {
+        if (variable == null)
+            return Instruction.NONE;
+        return slots.computeIfAbsent(variable, v -> slots.size());
+    }
+
+    private static int slotOf(String variable, String scope, Map<String, Integer> slots)
+    {
+        return slotOf(variable == null ? null : scope + variable, slots);
+    }
+}
@@ -0,0 +1,126 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the Programs parsed from source code, keyed by a SHA-256 hash of the source, along with the code
+ * compiled from each for every engine and widening mode it has run with, so that source submitted again is neither
+ * parsed nor compiled again. Can be shared by any number of threads. Programs are never changed once parsed (the
+ * optimisers make new ones), so one can run on several Interpreters at once.
+ *
+ * Evicts the least recently used program once it holds a given number
+ */
+final class ProgramCache
+{
+    /**
+     * A parsed program, and the code compiled from it so far
+     */
+    static final class Entry
+    {
+        /** The program, unoptimised */
+        final Program program;
+        private final CompiledCode[] compiled = new CompiledCode[Engine.values().length * 2];
+        private final boolean[] isCompiled = new boolean[compiled.length];
+
+        private Entry(Program program)
+        {
+            this.program = program;
+        }
+
+        /**
+         * Compiles the program for an engine the first time it is asked for
+         * @param engine The engine it will run on
+         * @param widening True if it will run with registers that widen
+         * @return The compiled code for Interpreter.setCompiledCode, or null if the engine does not compile or the
+         *         program did not compile
+         */
+        synchronized CompiledCode getCompiledCode(Engine engine, boolean widening)
+        {
+            int index = engine.ordinal() * 2 + (widening ? 1 : 0);
+            if (!isCompiled[index])
+            {
+                switch (engine)
+                {
+                    case BYTECODE: compiled[index] = BytecodeCompiler.compile(program, widening); break;
+                    case NODES: compiled[index] = NodeCompiler.compile(program); break;
+                    default: compiled[index] = null;
+                }
+                isCompiled[index] = true;
+            }
+            return compiled[index];
+        }
+    }
+
+    private final int maxPrograms;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);  // In LRU order
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxPrograms The most programs to hold
+     */
+    ProgramCache(int maxPrograms)
+    {
+        this.maxPrograms = maxPrograms;
+    }
+
+    /**
+     * Looks up the program parsed from some source code, parsing it if it is not there
+     * @param source The source code
+     * @return The program
+     * @throws InterpreterException If the source code has a syntax error (which is not remembered)
+     */
+    Entry get(String source) throws InterpreterException
+    {
+        String key = hash(source);
+        synchronized (this)
+        {
+            Entry entry = entries.get(key);
+            if (entry != null)
+            {
+                hits.incrementAndGet();
+                return entry;
+            }
+        }
+        // Parsed outside the lock, so that a long program does not hold up others. Two threads may both parse the
+        // same source, in which case the first one's is kept
+        misses.incrementAndGet();
+        Entry parsed = new Entry(Parser.parse(source));
+        synchronized (this)
+        {
+            Entry entry = entries.putIfAbsent(key, parsed);
+            if (entries.size() > maxPrograms)
+            {
+                Map.Entry<String, Entry> eldest = entries.entrySet().iterator().next();
+                entries.remove(eldest.getKey());
+            }
+            return entry != null ? entry : parsed;
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%d programs, %d hits, %d misses", entries.size(), hits.get(), misses.get());
+    }
+
+    private static String hash(String source)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest(source.getBytes(StandardCharsets.UTF_8)))
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,353 @@
+import java.math.BigInteger;
+import java.util.BitSet;
+
+/**
+ * The variables of a running program, stored by slot in a primitive array.
+ * A variable only exists (and is output) once it has been defined, and stops existing when it is deleted.
+ *
+ * By default values are longs which wrap on overflow. In widening mode arithmetic is overflow checked instead,
+ * and a variable whose value no longer fits in a long is promoted to a BigInteger (and demoted again once it fits)
+ */
+final class RegisterFile
+{
+    private final String[] names;
+    private final long[] values;
+    private final BitSet defined;
+    private final boolean widening;
+    private int maxBits = Integer.MAX_VALUE;
+
+    // Created on the first overflow. Where wide[slot] is set it holds the slot's value,
+    // and values[slot] holds Long.MAX_VALUE or Long.MIN_VALUE so the sign can still be tested
+    private BigInteger[] wide;
+    private int wideCount;
+
+    /**
+     * @param names The name of the variable in each slot
+     */
+    RegisterFile(String[] names)
+    {
+        this(names, false);
+    }
+
+    /**
+     * @param names The name of the variable in each slot
+     * @param widening True to promote values that overflow a long to BigIntegers, rather than wrapping them
+     */
+    RegisterFile(String[] names, boolean widening)
+    {
+        this.names = names;
+        this.values = new long[names.length];
+        this.defined = new BitSet(names.length);
+        this.widening = widening;
+    }
+
+    /**
+     * @return A copy of the variables, which changes independently of these
+     */
+    RegisterFile copy()
+    {
+        RegisterFile copy = new RegisterFile(names, widening);
+        copy.maxBits = maxBits;
+        System.arraycopy(values, 0, copy.values, 0, values.length);
+        copy.defined.or(defined);
+        if (wide != null)
+        {
+            copy.wide = wide.clone();
+            copy.wideCount = wideCount;
+        }
+        return copy;
+    }
+
+    /**
+     * Limits how large a product of wide values may get, so that a single multiply (which cannot be stopped part
+     * way, and can double the size of a value) takes a bounded time and memory. A multiply whose result would be
+     * larger throws an ArithmeticException. Other operations grow a value by at most a bit, so are left to limits
+     * on the number of steps
+     * @param maxBits The most bits a product may have, which must be at least 2 * Long.SIZE (the most a product
+     *                of two longs can have)
+     */
+    void limitBits(int maxBits)
+    {
+        this.maxBits = maxBits;
+    }
+
+    /** @return The number of slots */
+    int size() { return values.length; }
+
+    /** @return The name of the variable in the given slot */
+    String getName(int slot) { return names[slot]; }
+
+    /** @return True if values that overflow a long are promoted to BigIntegers */
+    boolean isWidening() { return widening; }
+
+    /**
+     * @return The value of the variable in the given slot, or 0 if it is not defined.
+     *         For a wide value this is Long.MAX_VALUE or Long.MIN_VALUE, so only its sign is meaningful
+     */
+    long get(int slot) { return values[slot]; }
+
+    /** @return True if the variable in the given slot holds a value too large for a long */
+    boolean isWide(int slot) { return wide != null && wide[slot] != null; }
+
+    /** @return True if any variable holds a value too large for a long */
+    boolean hasWide() { return wideCount > 0; }
+
+    /** @return The exact value of the variable in the given slot */
+    BigInteger getBig(int slot) { return isWide(slot) ? wide[slot] : BigInteger.valueOf(values[slot]); }
+
+    /** @return The exact value of the variable in the given slot as a string */
+    String format(int slot) { return isWide(slot) ? wide[slot].toString() : Long.toString(values[slot]); }
+
+    /** @return True if the variable in the given slot has been defined, and not deleted since */
+    boolean isDefined(int slot) { return defined.get(slot); }
+
+    /**
+     * @return The first defined slot at or after the given slot, or -1 if there is none
+     */
+    int nextDefined(int slot) { return defined.nextSetBit(slot); }
+
+    /**
+     * Defines a variable with the given value
+     * @param slot The variable to set
+     * @param value The value to set it to
+     */
+    void set(int slot, long value)
+    {
+        values[slot] = value;
+        defined.set(slot);
+        if (wide != null)
+            narrow(slot);
+    }
+
+    /**
+     * Defines a variable with the given value, storing it as a long if it fits
+     * @param slot The variable to set
+     * @param value The value to set it to
+     */
+    void setBig(int slot, BigInteger value)
+    {
+        if (value.bitLength() < Long.SIZE)
+        {
+            set(slot, value.longValue());
+            return;
+        }
+
+        if (wide == null)
+            wide = new BigInteger[values.length];
+        if (wide[slot] == null)
+            wideCount++;
+        wide[slot] = value;
+        values[slot] = value.signum() > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+        defined.set(slot);
+    }
+
+    /**
+     * Overwrites a variable's value and whether it is defined, e.g. when restoring it from compiled code
+     * @param slot The variable to set
+     * @param value The value to set it to (0 if it is not defined)
+     * @param isDefined Whether the variable is defined
+     */
+    void put(int slot, long value, boolean isDefined)
+    {
+        values[slot] = value;
+        defined.set(slot, isDefined);
+        if (wide != null)
+            narrow(slot);
+    }
+
+    /**
+     * Sets a specified variable to 0
+     * @param slot the variable to set
+     */
+    void clear(int slot)
+    {
+        set(slot, 0);
+    }
+
+    /**
+     * Increments the specified variable (an undefined variable is treated as 0)
+     * @param slot The variable to increment
+     */
+    void increment(int slot)
+    {
+        long value = values[slot];
+        if (isWide(slot) || (widening && value == Long.MAX_VALUE))
+            setBig(slot, getBig(slot).add(BigInteger.ONE));
+        else
+            set(slot, value + 1);
+    }
+
+    /**
+     * Decrements the specified variable, to no lower than 0 (an undefined variable is treated as 0)
+     * @param slot The variable to decrement
+     */
+    void decrement(int slot)
+    {
+        long value = values[slot];
+        if (isWide(slot))
+            setBig(slot, value > 0 ? wide[slot].subtract(BigInteger.ONE) : BigInteger.ZERO);
+        else
+            set(slot, value > 0 ? value - 1 : 0);
+    }
+
+    /**
+     * Deletes a variable - means it's value is deleted, and it will not be output
+     * @param slot The variable to delete
+     */
+    void delete(int slot)
+    {
+        values[slot] = 0;
+        defined.clear(slot);
+        if (wide != null)
+            narrow(slot);
+    }
+
+    /**
+     * Swaps the values of the 2 specified variables
+     * @param slot1 A variable to swap
+     * @param slot2 A variable to swap
+     */
+    void swap(int slot1, int slot2)
+    {
+        if (isWide(slot1) || isWide(slot2))
+        {
+            BigInteger tmp = getBig(slot1);
+            setBig(slot1, getBig(slot2));
+            setBig(slot2, tmp);
+            return;
+        }
+        long tmp = values[slot1];
+        set(slot1, values[slot2]);
+        set(slot2, tmp);
+    }
+
+    /**
+     * Copies the value from one variable to another
+     * @param from the variable to copy from
+     * @param to The variable to copy to
+     */
+    void copyTo(int from, int to)
+    {
+        checkVariableInit(from);
+        if (isWide(from))
+            setBig(to, wide[from]);
+        else
+            set(to, values[from]);
+    }
+
+    /**
+     * Adds 2 variables together and stores the result in destination
+     * @param slot1 A variable to add
+     * @param slot2 A variable to add
+     * @param dest The variable to store the result in
+     */
+    void add(int slot1, int slot2, int dest)
+    {
+        checkVariableInit(slot1);
+        checkVariableInit(slot2);
+        if (!widening)
+            set(dest, values[slot1] + values[slot2]);
+        else if (isWide(slot1) || isWide(slot2))
+            setBig(dest, getBig(slot1).add(getBig(slot2)));
+        else
+        {
+            try { set(dest, Math.addExact(values[slot1], values[slot2])); }
+            catch (ArithmeticException e) { setBig(dest, getBig(slot1).add(getBig(slot2))); }
+        }
+    }
+
+    /**
+     * Subtracts 1 variable from another and stores the result in destination
+     * @param slot1 The variable to subtract from
+     * @param slot2 The variable to subtract
+     * @param dest The variable to store the result in
+     */
+    void subtract(int slot1, int slot2, int dest)
+    {
+        checkVariableInit(slot1);
+        checkVariableInit(slot2);
+        if (!widening)
+            set(dest, values[slot1] - values[slot2]);
+        else if (isWide(slot1) || isWide(slot2))
+            setBig(dest, getBig(slot1).subtract(getBig(slot2)));
+        else
+        {
+            try { set(dest, Math.subtractExact(values[slot1], values[slot2])); }
+            catch (ArithmeticException e) { setBig(dest, getBig(slot1).subtract(getBig(slot2))); }
+        }
+    }
+
+    /**
+     * Multiplies 2 variables together and stores the result in destination
+     * @param slot1 A variable to multiply
+     * @param slot2 A variable to multiply
+     * @param dest The variable to store the result in
+     */
+    void multiply(int slot1, int slot2, int dest)
+    {
+        checkVariableInit(slot1);
+        checkVariableInit(slot2);
+        if (!widening)
+            set(dest, values[slot1] * values[slot2]);
+        else if (isWide(slot1) || isWide(slot2))
+        {
+            // Checked first, as the product could take much longer to work out than to reject
+            if ((long) getBig(slot1).bitLength() + getBig(slot2).bitLength() > maxBits)
+                throw tooLarge(dest);
+            setBig(dest, getBig(slot1).multiply(getBig(slot2)));
+        }
+        else
+        {
+            try { set(dest, Math.multiplyExact(values[slot1], values[slot2])); }
+            catch (ArithmeticException e) { setBig(dest, getBig(slot1).multiply(getBig(slot2))); }
+        }
+    }
+
+    /**
+     * Performs integer division between 2 variables and stores the result in destination
+     * @param slot1 The numerator variable
+     * @param slot2 The denominator variable
+     * @param dest The variable to store the result in
+     * @throws ArithmeticException If the denominator is 0
+     */
+    void divide(int slot1, int slot2, int dest)
+    {
+        checkVariableInit(slot1);
+        checkVariableInit(slot2);
+        long numerator = values[slot1];
+        long denominator = values[slot2];
+        if (isWide(slot1) || isWide(slot2) || (widening && numerator == Long.MIN_VALUE && denominator == -1))
+        {
+            if (getBig(slot2).signum() == 0)
+                throw new ArithmeticException("/ by zero");
+            setBig(dest, getBig(slot1).divide(getBig(slot2)));
+        }
+        else
+            set(dest, numerator / denominator);
+    }
+
+    /**
+     * Checks whether a given variable is initialised, and if not sets its value to 0
+     * @param slot the variable to initialise (if not already initialised)
+     */
+    void checkVariableInit(int slot)
+    {
+        defined.set(slot);
+    }
+
+    private ArithmeticException tooLarge(int slot)
+    {
+        return new ArithmeticException("The product stored in " + names[slot] + " could have more than " + maxBits
+                                       + " bits");
+    }
+
+    /** Drops a slot's wide value, if it has one */
+    private void narrow(int slot)
+    {
+        if (wide[slot] != null)
+        {
+            wide[slot] = null;
+            wideCount--;
+        }
+    }
+}
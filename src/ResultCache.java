@@ -0,0 +1,308 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the final variables of programs that completed, so that running the same program from the same
+ * variables again can skip executing it. Can be shared by any number of threads.
+ *
+ * Entries are keyed by a SHA-256 hash of the parsed program (which is already lower cased, with comments and
+ * blank lines dropped, and whose line numbers are left out so that only the statements matter), the instruction
+ * it starts from and its starting variables, and the options that change the result or step count.
+ * They are held encoded in memory, evicting the least recently used once they take up more than a given size,
+ * and optionally written through to a directory, one file per entry, so that they survive evictions and restarts.
+ *
+ * The file format is, big endian:
+ *   int magic "BBRC", short version, 32 byte key, then the entry: long steps (-1 if they were not counted),
+ *   and the variables as in a Checkpoint
+ */
+final class ResultCache
+{
+    private static final int MAGIC = 0x42425243;    // "BBRC"
+    private static final short VERSION = 1;
+    private static final int KEY_LENGTH = 32;
+    private static final int ENTRY_OVERHEAD = 64;   // Roughly what the map spends on each entry, in bytes
+
+    /**
+     * A remembered result
+     */
+    static final class Entry
+    {
+        /** The final variables */
+        final RegisterFile registers;
+        /** The number of steps run, or -1 if they were not counted */
+        final long steps;
+
+        private Entry(RegisterFile registers, long steps)
+        {
+            this.registers = registers;
+            this.steps = steps;
+        }
+    }
+
+    private final long maxBytes;
+    private final Path directory;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);  // In LRU order
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong diskErrors = new AtomicLong();
+
+    /**
+     * @param maxBytes The most memory the entries may take up, roughly
+     * @param directory The directory to keep every entry in as well, which must exist, or null to only keep
+     *                  them in memory
+     */
+    ResultCache(long maxBytes, Path directory)
+    {
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+    }
+
+    /**
+     * @param program The program, as it is before it is optimised
+     * @param pc The index of the instruction it starts from
+     * @param registers The variables it starts from, including whether they widen
+     * @param optimised True if it is optimised before it runs, which changes its step count
+     * @return The key of the result of running the program
+     */
+    static byte[] key(Program program, int pc, RegisterFile registers, boolean optimised)
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buffer))
+        {
+            out.writeInt(program.size());
+            for (int i = 0; i < program.size(); i++)
+            {
+                Instruction instruction = program.get(i);
+                out.writeByte(instruction.opcode.ordinal());
+                out.writeInt(instruction.operand1);
+                out.writeInt(instruction.operand2);
+                out.writeInt(instruction.destination);
+                out.writeLong(instruction.literal);
+                out.writeInt(instruction.target);
+                out.writeBoolean(instruction.summary != null);  // A summarised loop counts as one step
+                if (instruction.opcode == Opcode.CALL)
+                {
+                    Program.CallSite site = program.getCallSite((int) instruction.literal);
+                    for (int[] slots : new int[][] {site.arguments, site.procedure.parameters})
+                    {
+                        out.writeInt(slots.length);
+                        for (int slot : slots)
+                            out.writeInt(slot);
+                    }
+                }
+            }
+            for (String name : program.getVariableNames())
+                out.write((name + '\0').getBytes(StandardCharsets.UTF_8));
+            out.writeInt(pc);
+            out.writeBoolean(registers.isWidening());
+            out.writeBoolean(optimised);
+            Checkpoint.writeVariables(out, registers);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Writing to memory failed", e);
+        }
+        return digest.digest(buffer.toByteArray());
+    }
+
+    /**
+     * Looks up a result, in memory and then on disk, counting a hit or a miss
+     * @param key The key, from key()
+     * @param names The program's variable names
+     * @param widening True if the program's variables widen
+     * @param needSteps True if the result is only any use if its steps were counted
+     * @param stepLimit The most steps the program may run, beyond which it would not have completed
+     * @return The result, or null if there is none that can be used
+     */
+    Entry get(byte[] key, String[] names, boolean widening, boolean needSteps, long stepLimit)
+    {
+        String hex = toHex(key);
+        byte[] encoded;
+        synchronized (this)
+        {
+            encoded = entries.get(hex);
+        }
+        boolean fromDisk = false;
+        if (encoded == null && directory != null)
+        {
+            encoded = readFile(hex, key);
+            fromDisk = encoded != null;
+        }
+
+        Entry entry = encoded != null ? decode(encoded, names, widening) : null;
+        if (entry == null || (needSteps && entry.steps < 0) || entry.steps > stepLimit)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (fromDisk)
+        {
+            diskHits.incrementAndGet();
+            remember(hex, encoded);
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Remembers the result of a program that completed
+     * @param key The key, from key()
+     * @param registers The final variables
+     * @param steps The number of steps run, or -1 if they were not counted
+     */
+    void put(byte[] key, RegisterFile registers, long steps)
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buffer))
+        {
+            out.writeLong(steps);
+            Checkpoint.writeVariables(out, registers);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Writing to memory failed", e);
+        }
+        byte[] encoded = buffer.toByteArray();
+        String hex = toHex(key);
+        remember(hex, encoded);
+        if (directory != null)
+            writeFile(hex, key, encoded);
+    }
+
+    /** @return The number of lookups that found a usable result, in memory or on disk */
+    long getHits() { return hits.get(); }
+
+    /** @return The number of hits that were found on disk rather than in memory */
+    long getDiskHits() { return diskHits.get(); }
+
+    /** @return The number of lookups that did not find a usable result */
+    long getMisses() { return misses.get(); }
+
+    /** @return The number of entries that could not be read from or written to disk (and were skipped) */
+    long getDiskErrors() { return diskErrors.get(); }
+
+    /** @return The number of entries in memory */
+    synchronized int size() { return entries.size(); }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d hits (%d from disk), %d misses, %d entries in memory", getHits(), getDiskHits(),
+                getMisses(), size()) + (getDiskErrors() > 0 ? ", " + getDiskErrors() + " disk errors" : "");
+    }
+
+    /** Adds an entry in memory, evicting the least recently used until they fit */
+    private synchronized void remember(String hex, byte[] encoded)
+    {
+        byte[] previous = entries.put(hex, encoded);
+        if (previous != null)
+            bytes -= weight(previous);
+        bytes += weight(encoded);
+        for (Iterator<Map.Entry<String, byte[]>> i = entries.entrySet().iterator(); bytes > maxBytes && i.hasNext(); )
+        {
+            bytes -= weight(i.next().getValue());
+            i.remove();
+        }
+    }
+
+    private static long weight(byte[] encoded)
+    {
+        return encoded.length + 2 * KEY_LENGTH + ENTRY_OVERHEAD;
+    }
+
+    /** @return The entry, or null if it is not valid for the program */
+    private Entry decode(byte[] encoded, String[] names, boolean widening)
+    {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded)))
+        {
+            long steps = in.readLong();
+            return new Entry(Checkpoint.readVariables(in, names, widening), steps);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /** @return The entry in the file for the key, or null if there is none or it cannot be read */
+    private byte[] readFile(String hex, byte[] key)
+    {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(directory.resolve(hex + ".result"))))
+        {
+            byte[] fileKey = new byte[KEY_LENGTH];
+            if (in.readInt() != MAGIC || in.readShort() != VERSION)
+                throw new IOException("Not a result");
+            in.readFully(fileKey);
+            if (!MessageDigest.isEqual(fileKey, key))
+                throw new IOException("For a different key");
+            return in.readAllBytes();
+        }
+        catch (NoSuchFileException e)
+        {
+            return null;
+        }
+        catch (IOException e)
+        {
+            diskErrors.incrementAndGet();
+            return null;
+        }
+    }
+
+    /** Writes the entry for the key, replacing the file atomically so that readers never see part of it */
+    private void writeFile(String hex, byte[] key, byte[] encoded)
+    {
+        Path file = directory.resolve(hex + ".result");
+        Path temporary = directory.resolve(hex + "." + Thread.currentThread().getId() + ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temporary)))
+            {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.write(key);
+                out.write(encoded);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            diskErrors.incrementAndGet();
+            try { Files.deleteIfExists(temporary); }
+            catch (IOException ignored) { }
+        }
+    }
+
+    private static String toHex(byte[] key)
+    {
+        StringBuilder hex = new StringBuilder(2 * key.length);
+        for (byte b : key)
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads a source file in a single pass: the file is read (or memory mapped, if it is large) and decoded once,
+ * and each line is decoded into a CompilationModel and appended to the editor's text as it is found.
+ * Lines are lower cased for the editor as well as the model, except for comments, which keep their case
+ */
+final class SourceLoader
+{
+    // Files at least this large are memory mapped rather than read onto the heap
+    private static final long MAP_THRESHOLD = 1 << 20;
+
+    private final CompilationModel model;
+    private final String[] lines;
+    private final String text;
+
+    private SourceLoader(CompilationModel model, String[] lines, String text)
+    {
+        this.model = model;
+        this.lines = lines;
+        this.text = text;
+    }
+
+    /**
+     * @param path The file to load
+     * @return The loaded file
+     * @throws IOException If the file cannot be read, or is not UTF-8 (which includes ASCII)
+     */
+    static SourceLoader load(Path path) throws IOException
+    {
+        CharBuffer chars;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(path + " is too large to load");
+
+            ByteBuffer bytes;
+            if (size >= MAP_THRESHOLD)
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            else
+            {
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) >= 0)
+                    ;
+                bytes.flip();
+            }
+            chars = StandardCharsets.UTF_8.newDecoder()
+                                          .onMalformedInput(CodingErrorAction.REPORT)
+                                          .onUnmappableCharacter(CodingErrorAction.REPORT)
+                                          .decode(bytes);
+        }
+
+        CompilationModel model = new CompilationModel();
+        List<String> lines = new ArrayList<>();
+        StringBuilder text = new StringBuilder(chars.length() + 1);
+        int start = 0;
+        int length = chars.length();
+        for (int i = 0; i <= length; i++)
+        {
+            if (i < length && chars.get(i) != '\n')
+                continue;
+            if (i == length && start == length)
+                break;  // The file ends with a line break, or is empty
+
+            int end = i > start && chars.get(i - 1) == '\r' ? i - 1 : i;
+            String line = chars.subSequence(start, end).toString();
+            if (!Parser.isComment(line))
+                line = line.toLowerCase();
+            model.appendLine(line);
+            lines.add(line);
+            text.append(line).append('\n');
+            start = i + 1;
+        }
+        model.appendLine("");   // The editor's empty last line, after the final line break
+
+        return new SourceLoader(model, lines.toArray(new String[0]), text.toString());
+    }
+
+    /** @return The compiled program, with its diagnostics */
+    CompilationModel getModel() { return model; }
+
+    /** @return The lines of the file as shown in the editor */
+    String[] getLines() { return lines.clone(); }
+
+    /** @return The text to show in the editor, with every line ending in a line break */
+    String getText() { return text; }
+}
@@ -0,0 +1,119 @@
+import java.io.Writer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javafx.application.Platform;
+import javafx.scene.text.Text;
+
+/**
+ * A Writer which appends to a JavaFX Text. It can be written to from any thread: text is collected
+ * and added to the Text on the JavaFX thread in batches, at most once every FLUSH_INTERVAL_MILLIS
+ */
+final class TextTraceWriter extends Writer
+{
+    private static final long FLUSH_INTERVAL_MILLIS = 100;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "trace-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Text text;
+    private final Runnable onFlush;
+    private final StringBuilder pending = new StringBuilder();
+    private boolean scheduled = false;
+    private long lastFlushNanos;
+
+    /**
+     * @param text The text to append to
+     * @param onFlush Run on the JavaFX thread after each batch is appended, e.g. to scroll to the bottom
+     */
+    TextTraceWriter(Text text, Runnable onFlush)
+    {
+        this.text = text;
+        this.onFlush = onFlush;
+        this.lastFlushNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length)
+    {
+        synchronized (pending)
+        {
+            pending.append(chars, offset, length);
+            schedule(false);
+        }
+    }
+
+    @Override
+    public void write(String string, int offset, int length)
+    {
+        synchronized (pending)
+        {
+            pending.append(string, offset, offset + length);
+            schedule(false);
+        }
+    }
+
+    @Override
+    public Writer append(CharSequence chars)
+    {
+        synchronized (pending)
+        {
+            pending.append(chars);
+            schedule(false);
+        }
+        return this;
+    }
+
+    /** Appends whatever has been written to the Text as soon as possible */
+    @Override
+    public void flush()
+    {
+        synchronized (pending)
+        {
+            schedule(true);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        flush();
+    }
+
+    /**
+     * Arranges for the pending text to be appended, unless that is already arranged
+     * @param now True to append it without waiting for the flush interval to pass
+     */
+    private void schedule(boolean now)
+    {
+        if (scheduled || pending.length() == 0)
+            return;
+        scheduled = true;
+
+        long waitMillis = FLUSH_INTERVAL_MILLIS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastFlushNanos);
+        if (now || waitMillis <= 0)
+            Platform.runLater(this::appendPending);
+        else
+            SCHEDULER.schedule(() -> Platform.runLater(this::appendPending), waitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Runs on the JavaFX thread */
+    private void appendPending()
+    {
+        String chunk;
+        synchronized (pending)
+        {
+            chunk = pending.toString();
+            pending.setLength(0);
+            scheduled = false;
+            lastFlushNanos = System.nanoTime();
+        }
+        text.setText(text.getText() + chunk);
+        if (onFlush != null)
+            onFlush.run();
+    }
+}
@@ -0,0 +1,317 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Steps through a program forwards and backwards. The program runs on the VM one instruction at a time, and each
+ * step taken for the first time is recorded in a log of primitive arrays: the index of the instruction, and the
+ * slot and previous value of each variable it wrote. Stepping back undoes the writes of the last step, and a full
+ * copy of the variables every SNAPSHOT_INTERVAL steps lets any recorded step be reached by running forward from
+ * the nearest copy before it (which repeats what was recorded, as programs have no input).
+ * Calls and returns also log the slots they write, and a return keeps the frame it removed to put back.
+ *
+ * Not thread safe, apart from cancel()
+ */
+final class TimeTravelDebugger
+{
+    private static final int SNAPSHOT_INTERVAL = 4096;
+    private static final byte UNDEFINED = 0, LONG = 1, WIDE = 2;    // What a write overwrote
+
+    private final Program program;
+    private final int[][] writes;       // The slots each instruction may write, or mark as defined
+    private final long maxSteps;
+    private RegisterFile registers;
+    private CallStack calls;            // Null if the program has no procedures
+    private int pc = 0;
+    private long step = 0;              // The number of steps taken to reach the current position
+    private String error = null;        // Why the instruction at pc could not run, or null
+    private volatile boolean cancelled = false;
+
+    // The log, for steps 0 to recorded - 1: step s ran the instruction at pcs[s], and overwrote the write
+    // entries from writeEnds[s - 1] (or 0) to writeEnds[s] - 1
+    private long recorded = 0;
+    private int[] pcs = new int[1024];
+    private long[] writeEnds = new long[1024];
+    private int[] writeSlots = new int[1024];
+    private long[] oldValues = new long[1024];
+    private byte[] oldKinds = new byte[1024];
+    private final Map<Long, BigInteger> oldWide = new HashMap<>();    // By write entry, for the WIDE ones
+    private long writeCount = 0;
+    private final List<RegisterFile> snapshots = new ArrayList<>();  // At every SNAPSHOT_INTERVAL steps
+    private final List<CallStack> callSnapshots = new ArrayList<>(); // With them, if there are procedures
+    private final Map<Long, CallStack.Frame> returns = new HashMap<>();  // The frame each return removed, by step
+
+    /**
+     * @param program The program, which should not be optimised, so that each step is a line of the source
+     * @param widening True to promote values that overflow a long, rather than wrapping them
+     * @param maxSteps The most steps to record, which bounds the memory used
+     */
+    TimeTravelDebugger(Program program, boolean widening, long maxSteps)
+    {
+        this.program = program;
+        this.maxSteps = maxSteps;
+        registers = new RegisterFile(program.getVariableNames(), widening);
+        writes = new int[program.size()][];
+        for (int i = 0; i < program.size(); i++)
+        {
+            BitSet slots = ControlFlowGraph.defines(program.get(i));
+            slots.or(ControlFlowGraph.marksDefined(program.get(i)));
+            writes[i] = slots.stream().toArray();
+        }
+        calls = program.hasProcedures() ? new CallStack(program) : null;
+        snapshot();
+    }
+
+    /** @return The number of steps taken to reach the current position */
+    long getStep() { return step; }
+
+    /** @return The number of steps recorded, which can be revisited without running them for the first time */
+    long getRecordedSteps() { return recorded; }
+
+    /** @return The current variables, which change as the debugger steps */
+    RegisterFile getRegisters() { return registers; }
+
+    /** @return The source line (0 based) of the next instruction, or -1 once the program has completed */
+    int getLine() { return isFinished() ? -1 : program.get(pc).line; }
+
+    /** @return True once the program has completed */
+    boolean isFinished() { return pc >= program.size(); }
+
+    /** @return Why the next instruction could not run, or null */
+    String getError() { return error; }
+
+    /**
+     * Stops a run to a line or step, from any thread
+     */
+    void cancel()
+    {
+        cancelled = true;
+    }
+
+    /**
+     * Runs the next instruction, recording it if it has not been run before
+     * @return True if it ran, false if the program has completed, the instruction failed (see getError()),
+     *         or maxSteps have been recorded
+     */
+    boolean stepForward()
+    {
+        if (isFinished())
+            return false;
+        if (step < recorded)
+        {
+            pc = run(pc);
+            step++;
+            return true;
+        }
+        if (recorded >= maxSteps)
+        {
+            error = "Stopped after recording " + maxSteps + " steps";
+            return false;
+        }
+
+        if (recorded % SNAPSHOT_INTERVAL == 0 && recorded / SNAPSHOT_INTERVAL == snapshots.size())
+            snapshot();
+        long firstWrite = writeCount;
+        for (int slot : writesOf(pc))
+            logWrite(slot);
+        if (program.get(pc).opcode == Opcode.RETURN)
+            returns.put(recorded, calls.top());
+        try
+        {
+            int next = run(pc);
+            if (next < 0)
+            {
+                undoWrites(firstWrite, writeCount);
+                writeCount = firstWrite;
+                error = "Call depth limit of " + CallStack.MAX_DEPTH + " exceeded";
+                return false;
+            }
+            grow();
+            pcs[(int) recorded] = pc;
+            writeEnds[(int) recorded] = writeCount;
+            recorded++;
+            step++;
+            pc = next;
+            error = null;
+            return true;
+        }
+        catch (ArithmeticException e)
+        {
+            // Put back anything the instruction changed before it failed
+            undoWrites(firstWrite, writeCount);
+            writeCount = firstWrite;
+            error = e.getMessage();
+            return false;
+        }
+    }
+
+    /**
+     * Undoes the last step
+     * @return True if it was undone, false if the program has not taken any steps
+     */
+    boolean stepBack()
+    {
+        if (step == 0)
+            return false;
+        step--;
+        undoWrites(step == 0 ? 0 : writeEnds[(int) step - 1], writeEnds[(int) step]);
+        pc = pcs[(int) step];
+        if (program.get(pc).opcode == Opcode.CALL)
+            calls.drop();
+        else if (program.get(pc).opcode == Opcode.RETURN)
+            calls.push(returns.get(step));
+        error = null;
+        return true;
+    }
+
+    /**
+     * Moves to a recorded step, by stepping back if it is close behind, or else running forward from the nearest
+     * copy of the variables before it
+     * @param target The step to move to, from 0 to getRecordedSteps()
+     */
+    void seek(long target)
+    {
+        if (target < 0 || target > recorded)
+            throw new IllegalArgumentException("Step " + target + " has not been recorded");
+        // A step at the end of the log may not have a copy of its own yet
+        int nearest = (int) Math.min(target / SNAPSHOT_INTERVAL, snapshots.size() - 1);
+        long snapshot = (long) nearest * SNAPSHOT_INTERVAL;
+        if (target < step && step - target <= target - snapshot)
+        {
+            while (step > target)
+                stepBack();
+            return;
+        }
+        if (target < step || target - step > target - snapshot)
+        {
+            registers = snapshots.get(nearest).copy();
+            calls = calls != null ? callSnapshots.get(nearest).copy() : null;
+            step = snapshot;
+            pc = step < recorded ? pcs[(int) step] : 0;
+            error = null;
+        }
+        while (step < target)
+            stepForward();
+    }
+
+    /**
+     * Steps until the next instruction is on a given line, taking at least one step and at most maxSteps (so that
+     * replaying recorded steps of a program that never reaches the line stops too)
+     * @param line The source line (0 based) to stop at
+     * @param forward True to run forwards, false to run backwards
+     * @return True if it stopped at the line, false if it ran out of steps, failed or was cancelled first
+     */
+    boolean runToLine(int line, boolean forward)
+    {
+        cancelled = false;
+        long taken = 0;
+        do
+        {
+            if (taken++ == maxSteps)
+            {
+                error = "Did not reach line " + (line + 1) + " within " + maxSteps + " steps";
+                return false;
+            }
+            if (cancelled || !(forward ? stepForward() : stepBack()))
+                return false;
+        }
+        while (getLine() != line);
+        return true;
+    }
+
+    /**
+     * Runs the instruction at pc
+     * @return The index of the next instruction, or -1 if it is a call and calls are already nested too deep
+     */
+    private int run(int pc)
+    {
+        switch (program.get(pc).opcode)
+        {
+            case CALL: return calls.call(pc, registers);
+            case RETURN: return calls.ret(registers);
+            default: return PartialEvaluator.step(program.get(pc), pc, registers);
+        }
+    }
+
+    /** @return The slots the instruction at pc may write, which for a call or return depends on the procedure */
+    private int[] writesOf(int pc)
+    {
+        Instruction instruction = program.get(pc);
+        switch (instruction.opcode)
+        {
+            case CALL: return program.getCallSite((int) instruction.literal).procedure.slots;
+            case RETURN:
+                Program.CallSite site = program.getCallSite((int) program.get(calls.caller()).literal);
+                int[] slots = Arrays.copyOf(site.procedure.slots, site.procedure.slots.length + site.arguments.length);
+                System.arraycopy(site.arguments, 0, slots, site.procedure.slots.length, site.arguments.length);
+                return slots;
+            default: return writes[pc];
+        }
+    }
+
+    /** Copies the variables and calls in progress, at a multiple of SNAPSHOT_INTERVAL steps */
+    private void snapshot()
+    {
+        snapshots.add(registers.copy());
+        if (calls != null)
+            callSnapshots.add(calls.copy());
+    }
+
+    /** Saves the current value of a slot, before an instruction writes it */
+    private void logWrite(int slot)
+    {
+        if (writeCount == writeSlots.length)
+        {
+            if (writeCount >= Integer.MAX_VALUE - 8)
+                throw new IllegalStateException("The debugger's log is full");
+            int length = (int) Math.min(2L * writeSlots.length, Integer.MAX_VALUE - 8);
+            writeSlots = Arrays.copyOf(writeSlots, length);
+            oldValues = Arrays.copyOf(oldValues, length);
+            oldKinds = Arrays.copyOf(oldKinds, length);
+        }
+        int i = (int) writeCount++;
+        writeSlots[i] = slot;
+        oldValues[i] = registers.get(slot);
+        if (registers.isWide(slot))
+        {
+            oldKinds[i] = WIDE;
+            oldWide.put((long) i, registers.getBig(slot));
+        }
+        else
+        {
+            oldKinds[i] = registers.isDefined(slot) ? LONG : UNDEFINED;
+            oldWide.remove((long) i);
+        }
+    }
+
+    /** Restores the slots overwritten by the write entries from first to end - 1, latest first */
+    private void undoWrites(long first, long end)
+    {
+        for (int i = (int) end - 1; i >= first; i--)
+        {
+            int slot = writeSlots[i];
+            switch (oldKinds[i])
+            {
+                case WIDE: registers.setBig(slot, oldWide.get((long) i)); break;
+                case LONG: registers.put(slot, oldValues[i], true); break;
+                default: registers.delete(slot);
+            }
+        }
+    }
+
+    /** Makes room in the step log for one more step */
+    private void grow()
+    {
+        if (recorded < pcs.length)
+            return;
+        if (recorded >= Integer.MAX_VALUE - 8)
+            throw new IllegalStateException("The debugger's log is full");
+        int length = (int) Math.min(2L * pcs.length, Integer.MAX_VALUE - 8);
+        pcs = Arrays.copyOf(pcs, length);
+        writeEnds = Arrays.copyOf(writeEnds, length);
+    }
+}
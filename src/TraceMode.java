@@ -0,0 +1,16 @@
+/**
+ * Which steps a BufferedTrace writes out
+ */
+enum TraceMode
+{
+    /** Every step */
+    FULL,
+    /** Every Nth step, and the final variables */
+    EVERY_NTH,
+    /** The last K steps, written when the program stops */
+    LAST_K,
+    /** Only the final variables */
+    FINAL_ONLY,
+    /** Only the variables each step changed, all of them every Nth step and at the end (see TraceReplayer) */
+    DELTA
+}
@@ -0,0 +1,185 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rebuilds the variables after every step from a DELTA trace written by a BufferedTrace, by applying each step's
+ * changes to the variables after the step before. Reads the trace one line at a time, so it takes no more memory
+ * however long the trace is
+ */
+final class TraceReplayer
+{
+    private final BufferedReader in;
+    private final RegisterFile registers;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private long step = 0;
+    private int line = 0;
+    private long lineNumber = 1;        // Of the trace, for errors
+    private boolean finished = false;
+
+    /**
+     * Reads the header of a trace
+     * @param in The trace
+     * @throws IOException If it cannot be read, or is not a DELTA trace
+     */
+    TraceReplayer(BufferedReader in) throws IOException
+    {
+        this.in = in;
+        String header = in.readLine();
+        if (header == null || !header.startsWith(BufferedTrace.VARIABLES_HEADER))
+            throw new IOException("Not a delta trace: it does not start with " + BufferedTrace.VARIABLES_HEADER);
+        String names = header.substring(BufferedTrace.VARIABLES_HEADER.length()).trim();
+        String[] variables = names.isEmpty() ? new String[0] : names.split(" ");
+        for (int slot = 0; slot < variables.length; slot++)
+            slots.put(variables[slot], slot);
+        // Wide values are only in the trace if they were in the program, so they can always be kept
+        registers = new RegisterFile(variables, true);
+    }
+
+    /**
+     * Moves on to the next step
+     * @return True if there was one, false once the trace has ended (leaving the final variables)
+     * @throws IOException If the trace cannot be read, or is not valid
+     */
+    boolean next() throws IOException
+    {
+        while (!finished)
+        {
+            String text = in.readLine();
+            lineNumber++;
+            if (text == null)
+                throw new IOException("The trace ends without the final variables, after step " + step);
+            int separator = text.indexOf(' ');
+            if (separator < 1)
+                throw invalid("is not a step");
+            String position = text.substring(0, separator - 1);
+            char kind = text.charAt(separator - 1);
+            if (kind == '=')
+            {
+                for (int slot = 0; slot < registers.size(); slot++)
+                    registers.delete(slot);
+            }
+            else if (kind != '|')
+                throw invalid("is not a step");
+            apply(text.substring(separator + 1));
+
+            if (position.isEmpty())
+            {
+                finished = true;
+                break;
+            }
+            try
+            {
+                line = Integer.parseInt(position);
+            }
+            catch (NumberFormatException e)
+            {
+                throw invalid("does not start with a line number");
+            }
+            step++;
+            return true;
+        }
+        return false;
+    }
+
+    /** @return The number of steps read so far */
+    long getStep() { return step; }
+
+    /** @return The source line (1 based) of the last step read */
+    int getLine() { return line; }
+
+    /** @return The variables after the last step read, which change as the trace is read */
+    RegisterFile getRegisters() { return registers; }
+
+    /** Sets the variables in "name:value, " pairs */
+    private void apply(String pairs) throws IOException
+    {
+        int start = 0;
+        while (start < pairs.length())
+        {
+            int end = pairs.indexOf(", ", start);
+            if (end < 0)
+                end = pairs.length();
+            int colon = pairs.lastIndexOf(':', end);
+            Integer slot = colon > start ? slots.get(pairs.substring(start, colon)) : null;
+            if (slot == null)
+                throw invalid("has an unknown variable");
+            String value = pairs.substring(colon + 1, end);
+            try
+            {
+                if (value.equals(BufferedTrace.UNDEFINED))
+                    registers.delete(slot);
+                else
+                    registers.setBig(slot, new BigInteger(value));
+            }
+            catch (NumberFormatException e)
+            {
+                throw invalid("has an invalid value");
+            }
+            start = end + 2;
+        }
+    }
+
+    private IOException invalid(String problem)
+    {
+        return new IOException("Line " + lineNumber + " of the trace " + problem);
+    }
+
+    /**
+     * Rebuilds a FULL trace from a DELTA trace
+     * @param in The DELTA trace
+     * @param out Where to write the variables after every step, as a FULL trace has them
+     * @return The number of steps
+     * @throws IOException If the trace cannot be read or written, or is not valid
+     */
+    static long replay(BufferedReader in, Writer out) throws IOException
+    {
+        TraceReplayer replayer = new TraceReplayer(in);
+        StringBuilder buffer = new StringBuilder();
+        while (replayer.next())
+        {
+            BufferedTrace.appendVariables(buffer, replayer.getRegisters());
+            if (buffer.length() >= 8192)
+            {
+                out.append(buffer);
+                buffer.setLength(0);
+            }
+        }
+        out.append(buffer);
+        out.flush();
+        return replayer.getStep();
+    }
+
+    /**
+     * Prints the FULL trace rebuilt from a DELTA trace file
+     * @param args The trace file
+     * @return The exit status: 0 if it was rebuilt, 1 if it could not be, 2 if the arguments are invalid
+     */
+    static int run(String[] args)
+    {
+        if (args.length != 1)
+        {
+            System.err.println("Usage: --replay trace-file");
+            return 2;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(args[0])))
+        {
+            replay(in, out);
+            return 0;
+        }
+        catch (IOException e)
+        {
+            System.err.println(args[0] + ": " + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * Receives the variables as a program runs, in place of printing them after every statement
+ */
+interface TraceSink
+{
+    /**
+     * Called after each statement completes
+     * @param pc The index of the instruction that completed
+     * @param registers The variables after it completed
+     */
+    void step(int pc, RegisterFile registers);
+
+    /**
+     * Called once when the program stops, whether it completed or failed
+     * @param registers The final variables
+     */
+    void finish(RegisterFile registers);
+
+    /**
+     * @return False if step() does nothing, so that engines can skip calling it
+     */
+    default boolean tracesSteps() { return true; }
+}
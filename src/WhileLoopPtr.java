@@ -1,10 +0,0 @@
-public class WhileLoopPtr
-{
-    public int startLine;
-    public int endLine;
-
-    WhileLoopPtr(int startLine)
-    {
-        this.startLine = startLine;
-    }
-}